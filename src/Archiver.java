@@ -0,0 +1,816 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Archiver class: creates and extracts the tar (optionally gzip-compressed) and zip archives of tar/zip/unzip.
+ * Archives are written as streams, file by file, without holding the archive in memory.
+ * Compression runs on all cores: gzip compresses the tar stream in independent chunks (ParallelDeflateOutputStream),
+ * zip compresses the small files ahead of writing them and large files in parallel chunks.
+ * Extraction reads the archive sequentially and writes the files on a worker pool.
+ */
+public class Archiver {
+    private static final int BLOCK = 512; // tar block size
+    private static final int SMALL_FILE = ParallelDeflateOutputStream.CHUNK_SIZE; // compressed/written as one task
+    private static final long EXTRACT_MEMORY = 64L * 1024 * 1024; // bytes of extracted files waiting to be written
+
+    private final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * A file or directory to archive, with its name inside the archive
+     */
+    private static class Entry {
+        final Path path;
+        final String name; // '/'-separated, directories end with '/'
+        final boolean directory;
+
+        Entry(Path path, String name, boolean directory) {
+            this.path = path;
+            this.name = name;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Lists the files and directories of the trees to archive, named relative to the parent of each root
+     * (archiving "a/b" stores "b", "b/c", ... like tar -C a b), in a stable order with directories first.
+     */
+    private static List<Entry> collectEntries(List<Path> roots) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Path root : roots) {
+            Path base = root.toAbsolutePath().normalize().getParent();
+            Path absoluteRoot = root.toAbsolutePath().normalize();
+            try (Stream<Path> tree = Files.walk(absoluteRoot)) {
+                for (Path path : tree.sorted().collect(Collectors.toList())) {
+                    boolean directory = Files.isDirectory(path);
+                    String name = (base == null ? path : base.relativize(path)).toString().replace('\\', '/');
+                    if (name.isEmpty())
+                        continue;
+                    entries.add(new Entry(path, directory ? name + "/" : name, directory));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // tar
+
+    /**
+     * Creates a tar archive of files/directory trees.
+     *
+     * @param roots   The files and directories to archive
+     * @param archive The archive to create
+     * @param gzip    true to compress the archive with gzip (in parallel chunks)
+     * @return the number of entries archived
+     * @throws IOException If a file can't be read or the archive can't be written
+     */
+    public int createTar(List<Path> roots, Path archive, boolean gzip) throws IOException {
+        List<Entry> entries = collectEntries(roots);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(archive), BufferPool.DEFAULT_BUFFER_SIZE)) {
+            ParallelDeflateOutputStream deflate = null;
+            OutputStream out = file;
+            if (gzip) {
+                // gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+                file.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 255});
+                deflate = new ParallelDeflateOutputStream(file, executor, parallelism * 2);
+                out = deflate;
+            }
+            try {
+                for (Entry entry : entries)
+                    writeTarEntry(entry, out);
+                out.write(new byte[BLOCK * 2]); // end of archive
+                if (deflate != null) {
+                    deflate.finish();
+                    writeIntLE(file, (int) deflate.getCrc());
+                    writeIntLE(file, (int) deflate.getUncompressedSize());
+                }
+            } catch (IOException | RuntimeException e) {
+                if (deflate != null)
+                    deflate.abort();
+                throw e;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return entries.size();
+    }
+
+    private static void writeTarEntry(Entry entry, OutputStream out) throws IOException {
+        long size = entry.directory ? 0 : Files.size(entry.path);
+        long mtime = Files.getLastModifiedTime(entry.path).toMillis() / 1000;
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        String prefix = "";
+        if (name.length > 100) {
+            // Split in ustar prefix/name at a '/', or fall back to a GNU long name entry
+            int split = entry.name.lastIndexOf('/', entry.name.length() - 2);
+            while (split > 0 && entry.name.substring(split + 1).getBytes(StandardCharsets.UTF_8).length <= 100) {
+                if (entry.name.substring(0, split).getBytes(StandardCharsets.UTF_8).length <= 155) {
+                    prefix = entry.name.substring(0, split);
+                    name = entry.name.substring(split + 1).getBytes(StandardCharsets.UTF_8);
+                    break;
+                }
+                split = entry.name.lastIndexOf('/', split - 1);
+            }
+            if (prefix.isEmpty()) {
+                byte[] longName = entry.name.getBytes(StandardCharsets.UTF_8);
+                out.write(tarHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), "", longName.length + 1, 0, 'L'));
+                out.write(longName);
+                out.write(new byte[BLOCK - longName.length % BLOCK]); // NUL terminator and padding
+                name = Arrays.copyOf(longName, 100);
+            }
+        }
+        out.write(tarHeader(name, prefix, size, mtime, entry.directory ? '5' : '0'));
+        if (!entry.directory)
+            writeTarContent(entry.path, size, out);
+    }
+
+    /**
+     * Writes exactly size bytes of a file (zeros if it shrank meanwhile) followed by the padding of its last block.
+     */
+    private static void writeTarContent(Path path, long size, OutputStream out) throws IOException {
+        long written = 0;
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out); // not closed, it would close the archive
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                int bytesRead;
+                while (written < size && (bytesRead = channel.read(buffer)) >= 0) {
+                    int count = (int) Math.min(bytesRead, size - written);
+                    IoScheduler.charge(count);
+                    buffer.flip().limit(count);
+                    while (buffer.hasRemaining())
+                        target.write(buffer);
+                    written += count;
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
+            }
+        }
+        if (written < size)
+            out.write(new byte[(int) (size - written)]);
+        int padding = (int) ((BLOCK - size % BLOCK) % BLOCK);
+        out.write(new byte[padding]);
+    }
+
+    private static byte[] tarHeader(byte[] name, String prefix, long size, long mtime, char type) {
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+        writeOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+        writeOctal(header, 108, 8, 0); // uid
+        writeOctal(header, 116, 8, 0); // gid
+        if (size < 077777777777L) {
+            writeOctal(header, 124, 12, size);
+        } else { // base-256 for sizes over 8 GiB
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++)
+                header[135 - i] = (byte) (size >>> (8 * i));
+        }
+        writeOctal(header, 136, 12, mtime);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(prefixBytes, 0, header, 345, prefixBytes.length);
+        // The checksum is computed with the checksum field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header)
+            checksum += b & 0xff;
+        writeOctal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Writes a NUL-terminated, zero-padded octal number in a header field.
+     */
+    private static void writeOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        int digits = length - 1;
+        for (int i = 0; i < digits; i++) {
+            int fromEnd = digits - 1 - i;
+            header[offset + i] = (byte) (fromEnd < octal.length() ? octal.charAt(octal.length() - 1 - fromEnd) : '0');
+        }
+        header[offset + digits] = 0;
+    }
+
+    /**
+     * Extracts a tar archive (gzip-compressed or not, detected from its first bytes) into a directory.
+     *
+     * @param archive The archive to extract
+     * @param target  The directory to extract into
+     * @return the number of entries extracted
+     * @throws IOException If the archive is malformed or a file can't be written
+     */
+    public int extractTar(Path archive, Path target) throws IOException {
+        int count = 0;
+        try (InputStream in = openTar(archive); ExtractPool pool = new ExtractPool()) {
+            TarHeader header;
+            while ((header = readTarHeader(in)) != null) {
+                Path path = safeResolve(target, header.name);
+                if (header.type == '5') {
+                    Files.createDirectories(path);
+                    count++;
+                } else if (header.type == '0' || header.type == 0) {
+                    pool.extract(path, in, header.size, header.mtime);
+                    count++;
+                } else {
+                    skipFully(in, header.size); // links and special files are not supported
+                }
+                skipFully(in, (BLOCK - header.size % BLOCK) % BLOCK);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lists the names of the entries of a tar archive.
+     *
+     * @param archive The archive to list
+     * @return the entry names, in archive order
+     * @throws IOException If the archive is malformed
+     */
+    public List<String> listTar(Path archive) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (InputStream in = openTar(archive)) {
+            TarHeader header;
+            while ((header = readTarHeader(in)) != null) {
+                names.add(header.name);
+                skipFully(in, header.size + (BLOCK - header.size % BLOCK) % BLOCK);
+            }
+        }
+        return names;
+    }
+
+    private static InputStream openTar(Path archive) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(archive), BufferPool.DEFAULT_BUFFER_SIZE);
+        in.mark(2);
+        boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return gzip ? new BufferedInputStream(new GZIPInputStream(in, BufferPool.DEFAULT_BUFFER_SIZE),
+                BufferPool.DEFAULT_BUFFER_SIZE) : in;
+    }
+
+    private static class TarHeader {
+        String name;
+        long size;
+        long mtime;
+        int type;
+    }
+
+    /**
+     * Reads the next header (following GNU long name entries).
+     *
+     * @return the header, or null at the end of the archive
+     */
+    private static TarHeader readTarHeader(InputStream in) throws IOException {
+        byte[] block = new byte[BLOCK];
+        String longName = null;
+        while (true) {
+            if (in.readNBytes(block, 0, BLOCK) < BLOCK)
+                return null; // truncated archive, treated as its end
+            boolean empty = true;
+            for (byte b : block) {
+                if (b != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+            if (empty)
+                return null;
+            TarHeader header = new TarHeader();
+            header.type = block[156];
+            header.size = parseSize(block);
+            header.mtime = parseOctal(block, 136, 12);
+            if (header.type == 'L') { // GNU long name: the content is the name of the next entry
+                byte[] name = in.readNBytes((int) header.size);
+                skipFully(in, (BLOCK - header.size % BLOCK) % BLOCK);
+                longName = cString(name, 0, name.length);
+                continue;
+            }
+            if (longName != null) {
+                header.name = longName;
+            } else {
+                String prefix = cString(block, 345, 155);
+                String name = cString(block, 0, 100);
+                header.name = prefix.isEmpty() ? name : prefix + "/" + name;
+            }
+            if (header.type == '0' && header.name.endsWith("/"))
+                header.type = '5';
+            return header;
+        }
+    }
+
+    private static long parseSize(byte[] block) {
+        if ((block[124] & 0x80) != 0) { // base-256
+            long size = 0;
+            for (int i = 128; i < 136; i++)
+                size = (size << 8) | (block[i] & 0xff);
+            return size;
+        }
+        return parseOctal(block, 124, 12);
+    }
+
+    private static long parseOctal(byte[] block, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = block[i];
+            if (b >= '0' && b <= '7')
+                value = value * 8 + (b - '0');
+            else if (b == 0 || (b == ' ' && value > 0))
+                break;
+        }
+        return value;
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0)
+            end++;
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException("unexpected end of archive");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // zip
+
+    /**
+     * The central directory record of a zip entry
+     */
+    private static class ZipRecord {
+        byte[] name;
+        int method, flags, dosTime;
+        long crc, compressedSize, size, offset;
+        boolean directory;
+    }
+
+    /**
+     * A zip entry ready to be written: its header fields and compressed content (null for large files,
+     * which are compressed while written)
+     */
+    private static class PreparedEntry {
+        Entry entry;
+        ZipRecord record;
+        byte[] content;
+    }
+
+    /**
+     * Creates a zip archive of files/directory trees.
+     * Small files are read and compressed on the worker pool ahead of the writer (a bounded window of them),
+     * large files are written with a data descriptor while ParallelDeflateOutputStream compresses their chunks.
+     *
+     * @param roots   The files and directories to archive
+     * @param archive The archive to create
+     * @return the number of entries archived
+     * @throws IOException If a file can't be read or the archive can't be written, or a file is over 4 GiB
+     */
+    public int createZip(List<Path> roots, Path archive) throws IOException {
+        List<Entry> entries = collectEntries(roots);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<ZipRecord> records = new ArrayList<>();
+        Deque<Future<PreparedEntry>> window = new ArrayDeque<>();
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(archive), BufferPool.DEFAULT_BUFFER_SIZE))) {
+            for (Entry entry : entries) {
+                long size = entry.directory ? 0 : Files.size(entry.path);
+                if (size > 0xFFFFFFFFL)
+                    throw new IOException(entry.name + ": file too large for zip (over 4 GiB)");
+                if (size > SMALL_FILE) {
+                    while (!window.isEmpty())
+                        records.add(writePrepared(await(window.poll()), out));
+                    records.add(writeLargeZipEntry(entry, out, executor));
+                } else {
+                    if (window.size() >= parallelism * 4)
+                        records.add(writePrepared(await(window.poll()), out));
+                    window.add(entry.directory ? CompletableFuture.completedFuture(prepareZipEntry(entry))
+                            : executor.submit(IoScheduler.bind(() -> prepareZipEntry(entry))));
+                }
+            }
+            while (!window.isEmpty())
+                records.add(writePrepared(await(window.poll()), out));
+            writeCentralDirectory(records, out);
+        } finally {
+            executor.shutdownNow();
+        }
+        return entries.size();
+    }
+
+    /**
+     * Reads and compresses a small file (run on the worker pool), or prepares the record of a directory.
+     */
+    private static PreparedEntry prepareZipEntry(Entry entry) throws IOException {
+        PreparedEntry prepared = new PreparedEntry();
+        prepared.entry = entry;
+        ZipRecord record = newRecord(entry);
+        if (!entry.directory) {
+            byte[] content = readSmallFile(entry.path);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            byte[] compressed = ParallelDeflateOutputStream.deflateAll(content, content.length);
+            record.crc = crc.getValue();
+            record.size = content.length;
+            // Store the file if compressing it doesn't pay off
+            if (compressed.length < content.length) {
+                record.method = ZipEntry.DEFLATED;
+                prepared.content = compressed;
+            } else {
+                prepared.content = content;
+            }
+            record.compressedSize = prepared.content.length;
+        }
+        prepared.record = record;
+        return prepared;
+    }
+
+    private static ZipRecord newRecord(Entry entry) throws IOException {
+        ZipRecord record = new ZipRecord();
+        record.name = entry.name.getBytes(StandardCharsets.UTF_8);
+        record.directory = entry.directory;
+        record.method = ZipEntry.STORED;
+        record.flags = 0x0800; // UTF-8 names
+        record.dosTime = dosTime(Files.getLastModifiedTime(entry.path));
+        return record;
+    }
+
+    private static ZipRecord writePrepared(PreparedEntry prepared, CountingOutputStream out) throws IOException {
+        ZipRecord record = prepared.record;
+        record.offset = out.count;
+        writeLocalHeader(record, out);
+        if (prepared.content != null)
+            out.write(prepared.content);
+        return record;
+    }
+
+    private static ZipRecord writeLargeZipEntry(Entry entry, CountingOutputStream out, ExecutorService executor)
+            throws IOException {
+        ZipRecord record = newRecord(entry);
+        record.method = ZipEntry.DEFLATED;
+        record.flags |= 0x0008; // sizes and CRC follow the data in a data descriptor
+        record.offset = out.count;
+        writeLocalHeader(record, out);
+        ParallelDeflateOutputStream deflate = new ParallelDeflateOutputStream(
+                out, executor, Runtime.getRuntime().availableProcessors() * 2);
+        try (SeekableByteChannel channel = Files.newByteChannel(entry.path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(deflate);
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                int bytesRead;
+                while ((bytesRead = channel.read(buffer)) >= 0) {
+                    buffer.flip();
+                    IoScheduler.charge(bytesRead);
+                    while (buffer.hasRemaining())
+                        target.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
+            }
+            deflate.finish();
+        } catch (IOException | RuntimeException e) {
+            deflate.abort();
+            throw e;
+        }
+        record.crc = deflate.getCrc();
+        record.size = deflate.getUncompressedSize();
+        record.compressedSize = deflate.getCompressedSize();
+        if (record.size > 0xFFFFFFFFL || record.compressedSize > 0xFFFFFFFFL)
+            throw new IOException(entry.name + ": file too large for zip (over 4 GiB)");
+        writeIntLE(out, 0x08074b50);
+        writeIntLE(out, (int) record.crc);
+        writeIntLE(out, (int) record.compressedSize);
+        writeIntLE(out, (int) record.size);
+        return record;
+    }
+
+    private static void writeLocalHeader(ZipRecord record, OutputStream out) throws IOException {
+        boolean descriptor = (record.flags & 0x0008) != 0;
+        writeIntLE(out, 0x04034b50);
+        writeShortLE(out, 20); // version needed
+        writeShortLE(out, record.flags);
+        writeShortLE(out, record.method);
+        writeIntLE(out, record.dosTime);
+        writeIntLE(out, descriptor ? 0 : (int) record.crc);
+        writeIntLE(out, descriptor ? 0 : (int) record.compressedSize);
+        writeIntLE(out, descriptor ? 0 : (int) record.size);
+        writeShortLE(out, record.name.length);
+        writeShortLE(out, 0); // extra field length
+        out.write(record.name);
+    }
+
+    /**
+     * Writes the central directory and its end record, with the zip64 end records when there are more than
+     * 65535 entries or the archive is over 4 GiB.
+     */
+    private static void writeCentralDirectory(List<ZipRecord> records, CountingOutputStream out) throws IOException {
+        long start = out.count;
+        for (ZipRecord record : records) {
+            boolean zip64Offset = record.offset > 0xFFFFFFFFL;
+            writeIntLE(out, 0x02014b50);
+            writeShortLE(out, zip64Offset ? 45 : 20); // version made by
+            writeShortLE(out, zip64Offset ? 45 : 20); // version needed
+            writeShortLE(out, record.flags);
+            writeShortLE(out, record.method);
+            writeIntLE(out, record.dosTime);
+            writeIntLE(out, (int) record.crc);
+            writeIntLE(out, (int) record.compressedSize);
+            writeIntLE(out, (int) record.size);
+            writeShortLE(out, record.name.length);
+            writeShortLE(out, zip64Offset ? 12 : 0); // extra field length
+            writeShortLE(out, 0); // comment length
+            writeShortLE(out, 0); // disk number
+            writeShortLE(out, 0); // internal attributes
+            writeIntLE(out, record.directory ? 0x10 : 0); // external attributes (MS-DOS directory flag)
+            writeIntLE(out, zip64Offset ? 0xFFFFFFFF : (int) record.offset);
+            out.write(record.name);
+            if (zip64Offset) {
+                writeShortLE(out, 0x0001); // zip64 extra field
+                writeShortLE(out, 8);
+                writeLongLE(out, record.offset);
+            }
+        }
+        long end = out.count;
+        long size = end - start;
+        boolean zip64 = records.size() > 0xFFFF || start > 0xFFFFFFFFL || size > 0xFFFFFFFFL;
+        if (zip64) {
+            writeIntLE(out, 0x06064b50); // zip64 end of central directory
+            writeLongLE(out, 44);
+            writeShortLE(out, 45);
+            writeShortLE(out, 45);
+            writeIntLE(out, 0);
+            writeIntLE(out, 0);
+            writeLongLE(out, records.size());
+            writeLongLE(out, records.size());
+            writeLongLE(out, size);
+            writeLongLE(out, start);
+            writeIntLE(out, 0x07064b50); // zip64 end of central directory locator
+            writeIntLE(out, 0);
+            writeLongLE(out, end);
+            writeIntLE(out, 1);
+        }
+        writeIntLE(out, 0x06054b50);
+        writeShortLE(out, 0);
+        writeShortLE(out, 0);
+        writeShortLE(out, zip64 ? 0xFFFF : records.size());
+        writeShortLE(out, zip64 ? 0xFFFF : records.size());
+        writeIntLE(out, zip64 ? 0xFFFFFFFF : (int) size);
+        writeIntLE(out, zip64 ? 0xFFFFFFFF : (int) start);
+        writeShortLE(out, 0); // comment length
+    }
+
+    /**
+     * Extracts a zip archive into a directory.
+     *
+     * @param archive The archive to extract
+     * @param target  The directory to extract into
+     * @return the number of entries extracted
+     * @throws IOException If the archive is malformed or a file can't be written
+     */
+    public int extractZip(Path archive, Path target) throws IOException {
+        int count = 0;
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive),
+                BufferPool.DEFAULT_BUFFER_SIZE), StandardCharsets.UTF_8); ExtractPool pool = new ExtractPool()) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                Path path = safeResolve(target, entry.getName());
+                long mtime = entry.getLastModifiedTime() == null ? -1 : entry.getLastModifiedTime().toMillis() / 1000;
+                if (entry.isDirectory())
+                    Files.createDirectories(path);
+                else
+                    pool.extract(path, in, entry.getSize(), mtime);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int dosTime(FileTime time) {
+        LocalDateTime date = LocalDateTime.ofInstant(time.toInstant(), ZoneId.systemDefault());
+        if (date.getYear() < 1980)
+            return (1 << 21) | (1 << 16);
+        return (date.getYear() - 1980) << 25 | date.getMonthValue() << 21 | date.getDayOfMonth() << 16
+                | date.getHour() << 11 | date.getMinute() << 5 | date.getSecond() >> 1;
+    }
+
+    // extraction
+
+    /**
+     * ExtractPool class: writes extracted files on a worker pool.
+     * Files up to SMALL_FILE bytes are read from the archive into memory and written by a worker
+     * (at most EXTRACT_MEMORY bytes wait to be written), larger files are written by the reading thread.
+     */
+    private class ExtractPool implements AutoCloseable {
+        private final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        private final Semaphore memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, EXTRACT_MEMORY));
+        private final List<Future<?>> writes = new ArrayList<>();
+
+        /**
+         * Extracts one file whose content is the next bytes of the archive stream.
+         *
+         * @param path  The path of the extracted file
+         * @param in    The archive stream, positioned at the content of the file
+         * @param size  The size of the file, or -1 if unknown (zip entries with a data descriptor)
+         * @param mtime The modification time of the file in seconds, or -1 if unknown
+         */
+        void extract(Path path, InputStream in, long size, long mtime) throws IOException {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            if (size < 0 || size > SMALL_FILE) {
+                writeStream(path, in, size, mtime);
+                return;
+            }
+            byte[] content = in.readNBytes((int) size);
+            if (content.length < size)
+                throw new EOFException("unexpected end of archive");
+            IoScheduler.operation(); // paced here, the writes run on the pool
+            IoScheduler.charge(content.length);
+            try {
+                memory.acquire(content.length);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("extraction interrupted");
+            }
+            writes.add(executor.submit(IoScheduler.bind(() -> {
+                try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(content);
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                } finally {
+                    memory.release(content.length);
+                }
+                setModifiedTime(path, mtime);
+                return null;
+            })));
+        }
+
+        /**
+         * Writes a large file (or one of unknown size) from the archive stream, on the calling thread.
+         */
+        private void writeStream(Path path, InputStream in, long size, long mtime) throws IOException {
+            try (OutputStream out = Files.newOutputStream(path)) {
+                byte[] chunk = new byte[BufferPool.DEFAULT_BUFFER_SIZE];
+                long remaining = size < 0 ? Long.MAX_VALUE : size;
+                while (remaining > 0) {
+                    int count = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (count < 0) {
+                        if (size >= 0)
+                            throw new EOFException("unexpected end of archive");
+                        break;
+                    }
+                    IoScheduler.charge(count);
+                    out.write(chunk, 0, count);
+                    remaining -= count;
+                }
+            }
+            setModifiedTime(path, mtime);
+        }
+
+        /**
+         * Waits for all the writes, throwing the first failure.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                for (Future<?> write : writes)
+                    await(write);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void setModifiedTime(Path path, long mtime) throws IOException {
+        if (mtime >= 0)
+            Files.setLastModifiedTime(path, FileTime.from(mtime, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Resolves an entry name inside the extraction directory, refusing names that would escape it
+     * (absolute paths or ".." components).
+     */
+    private static Path safeResolve(Path target, String name) throws IOException {
+        Path root = target.toAbsolutePath().normalize();
+        Path path = root.resolve(name.startsWith("/") ? name.substring(1) : name).normalize();
+        if (!path.startsWith(root) || path.equals(root))
+            throw new IOException("unsafe entry name in archive: " + name);
+        return path;
+    }
+
+    // helpers
+
+    private static byte[] readSmallFile(Path path) throws IOException {
+        IoScheduler.operation();
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+            ByteBuffer content = ByteBuffer.allocate((int) Math.min(channel.size(), SMALL_FILE));
+            int bytesRead;
+            while (content.hasRemaining() && (bytesRead = channel.read(content)) >= 0) {
+                IoScheduler.charge(bytesRead); // read until the buffer is full or the file ends
+            }
+            return Arrays.copyOf(content.array(), content.position());
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() throws IOException {
+        try {
+            return BufferPool.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+    }
+
+    private static void writeShortLE(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+        writeShortLE(out, value & 0xffff);
+        writeShortLE(out, (value >>> 16) & 0xffff);
+    }
+
+    private static void writeLongLE(OutputStream out, long value) throws IOException {
+        writeIntLE(out, (int) value);
+        writeIntLE(out, (int) (value >>> 32));
+    }
+
+    /**
+     * An output stream counting the bytes written, for the offsets of the zip records
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AsyncFileIO class: reads and copies files with AsynchronousFileChannel, so that several files can be
+ * read/written at the same time instead of one after another.
+ * Every file in flight holds one buffer taken from the BufferPool, and at most maxInFlight operations
+ * run at once (starting a new operation waits until a running one is done).
+ * Files are read by chunks handed to the caller in order, so their content is never held whole in memory.
+ */
+public class AsyncFileIO {
+    private final BufferPool pool;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+
+    public AsyncFileIO(BufferPool pool, int maxInFlight) {
+        this.pool = pool;
+        this.inFlight = new Semaphore(maxInFlight);
+        // Daemon threads, so that a pending completion never keeps the terminal from exiting
+        this.executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "async-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts reading a file, one chunk ahead of the caller: the first chunk is read now, and each call to
+     * ChunkedRead.next() hands over the chunk read and starts reading the following one into the same buffer,
+     * so a file being read holds one buffer whatever its size.
+     *
+     * @param path The path of the file to read
+     * @return the read, whose chunks fail with the IOException if the file can't be read
+     * @throws InterruptedException if interrupted while waiting for a free slot or buffer
+     */
+    public ChunkedRead read(Path path) throws InterruptedException {
+        inFlight.acquire();
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(path, EnumSet.of(StandardOpenOption.READ), executor);
+        } catch (IOException | RuntimeException e) {
+            inFlight.release();
+            return failed(e);
+        }
+        ChunkedRead read = new ChunkedRead(channel, acquireBuffer(channel));
+        read.pending = read.readChunk();
+        return read;
+    }
+
+    /**
+     * @return a read failing with the given exception (e.g. for an invalid path), for callers handling reads alike
+     */
+    public ChunkedRead failed(Throwable exc) {
+        ChunkedRead read = new ChunkedRead(null, null);
+        read.pending = CompletableFuture.failedFuture(exc);
+        read.finished.set(true);
+        return read;
+    }
+
+    /**
+     * ChunkedRead class: a file being read by chunks, in order
+     */
+    public class ChunkedRead implements AutoCloseable {
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private long position;
+        private CompletableFuture<ByteBuffer> pending; // the chunk being read, null once handed over
+
+        private ChunkedRead(AsynchronousFileChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return the read of the next chunk, completed when it is ready (to wait for several files at once)
+         */
+        public CompletableFuture<ByteBuffer> ready() {
+            if (pending == null) {
+                if (!finished.get())
+                    buffer.clear(); // the caller is done with the previous chunk
+                pending = readChunk();
+            }
+            return pending;
+        }
+
+        /**
+         * Hands over the next chunk: a future completed with the buffer holding it (valid until the next call),
+         * with null at the end of the file, or exceptionally with the IOException.
+         */
+        public CompletableFuture<ByteBuffer> next() {
+            CompletableFuture<ByteBuffer> chunk = ready();
+            pending = null;
+            return chunk;
+        }
+
+        private CompletableFuture<ByteBuffer> readChunk() {
+            CompletableFuture<ByteBuffer> chunk = new CompletableFuture<>();
+            if (finished.get()) { // after the end of the file
+                chunk.complete(null);
+                return chunk;
+            }
+            channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer bytesRead, Void attachment) {
+                    if (bytesRead < 0) { // end of file
+                        finish();
+                        chunk.complete(null);
+                        return;
+                    }
+                    position += bytesRead;
+                    buffer.flip();
+                    chunk.complete(buffer);
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    finish();
+                    chunk.completeExceptionally(exc);
+                }
+            });
+            return chunk;
+        }
+
+        private void finish() {
+            if (finished.compareAndSet(false, true))
+                AsyncFileIO.this.finish(channel, buffer);
+        }
+
+        /**
+         * Gives the buffer and the slot back if the file wasn't read to its end (once the read in progress is done)
+         */
+        @Override
+        public void close() {
+            if (finished.get())
+                return;
+            if (pending == null)
+                finish();
+            else
+                pending.whenComplete((chunk, exc) -> finish());
+        }
+    }
+
+    /**
+     * Starts copying a file to another location, replacing the destination if it exists.
+     * Each chunk is written at the same position it was read from, before the next chunk is read.
+     *
+     * @param source      The path of the file to copy
+     * @param destination The path of the copy
+     * @return a future completed when the copy is done, or completed exceptionally with the IOException
+     * @throws InterruptedException if interrupted while waiting for a free slot or buffer
+     */
+    public CompletableFuture<Void> copy(Path source, Path destination) throws InterruptedException {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AsynchronousFileChannel in, out;
+        inFlight.acquire();
+        try {
+            // opening the destination would truncate the source
+            if (Files.exists(destination) && Files.isSameFile(source, destination))
+                throw new FileSystemException(source.toString(), destination.toString(), "are the same file");
+            in = AsynchronousFileChannel.open(source, EnumSet.of(StandardOpenOption.READ), executor);
+        } catch (IOException | RuntimeException e) {
+            inFlight.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+        try {
+            out = AsynchronousFileChannel.open(destination, EnumSet.of(StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), executor);
+        } catch (IOException | RuntimeException e) {
+            close(in);
+            inFlight.release();
+            result.completeExceptionally(e);
+            return result;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = acquireBuffer(in);
+        } catch (InterruptedException e) {
+            close(out);
+            throw e;
+        }
+
+        CompletionHandler<Integer, Long> writeHandler = new CompletionHandler<>() {
+            @Override
+            public void completed(Integer bytesWritten, Long position) {
+                long nextPosition = position + bytesWritten;
+                if (buffer.hasRemaining()) { // partial write, write the rest of the chunk
+                    out.write(buffer, nextPosition, nextPosition, this);
+                } else {
+                    buffer.clear();
+                    in.read(buffer, nextPosition, nextPosition, readHandler(in, out, buffer, result, this));
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Long position) {
+                close(out);
+                finish(in, buffer);
+                result.completeExceptionally(exc);
+            }
+        };
+        in.read(buffer, 0, 0L, readHandler(in, out, buffer, result, writeHandler));
+        return result;
+    }
+
+    private CompletionHandler<Integer, Long> readHandler(AsynchronousFileChannel in, AsynchronousFileChannel out,
+                                                         ByteBuffer buffer, CompletableFuture<Void> result,
+                                                         CompletionHandler<Integer, Long> writeHandler) {
+        return new CompletionHandler<>() {
+            @Override
+            public void completed(Integer bytesRead, Long position) {
+                if (bytesRead < 0) { // end of file
+                    close(out);
+                    finish(in, buffer);
+                    result.complete(null);
+                    return;
+                }
+                buffer.flip();
+                out.write(buffer, position, position, writeHandler);
+            }
+
+            @Override
+            public void failed(Throwable exc, Long position) {
+                close(out);
+                finish(in, buffer);
+                result.completeExceptionally(exc);
+            }
+        };
+    }
+
+    /**
+     * Takes a buffer for an operation that already holds a slot, giving the slot back if interrupted.
+     */
+    private ByteBuffer acquireBuffer(AsynchronousFileChannel channel) throws InterruptedException {
+        try {
+            return pool.acquire();
+        } catch (InterruptedException e) {
+            close(channel);
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the channel and gives the buffer and the slot back once an operation is done.
+     */
+    private void finish(AsynchronousFileChannel channel, ByteBuffer buffer) {
+        close(channel);
+        pool.release(buffer);
+        inFlight.release();
+    }
+
+    private static void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing left to do with a channel that fails to close
+        }
+    }
+}
@@ -0,0 +1,330 @@
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BufferPool class: the pool of direct byte buffers shared by all the I/O commands of the terminal.
+ * Buffers come in a few size classes (4 KiB to 1 MiB), a request is served by the smallest class that fits it.
+ * Released buffers are kept in a small per-thread cache first, then in a shared free list per class.
+ * The total off-heap memory allocated by the pool (cached buffers included) is capped, when the cap is reached
+ * acquire() takes back the buffers cached by threads that ended, then an idle buffer cached by another thread,
+ * and only then waits until another buffer is released. The thread caches are used without taking the lock.
+ * In debug mode (-Dterminal.debug=true) the pool remembers where each buffer in use was acquired,
+ * so the buffers that are never released can be reported as leaks.
+ */
+public class BufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    // Bytes a thread may keep cached (counted in the cap)
+    private static final int THREAD_CACHE_BYTES = 256 * 1024;
+
+    private static final BufferPool shared = new BufferPool(
+            Long.getLong("terminal.bufferpool.max", 64L * 1024 * 1024),
+            Boolean.getBoolean("terminal.debug"));
+
+    private final long maxBytes;
+    private final boolean debug;
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> freeLists = new ArrayList<>();
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(this::newThreadCache);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    // Every thread cache, so the buffers of other threads can be taken back when the cap is reached
+    private final ConcurrentLinkedQueue<ThreadCache> caches = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger cachesCreated = new AtomicInteger();
+    private long allocatedBytes; // guarded by lock
+    private volatile int waiters; // changed under lock, read without it by release()
+    private final Map<ByteBuffer, Throwable> inUse = new IdentityHashMap<>(); // only used in debug mode
+
+    // Metrics
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong threadCacheHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    public BufferPool(long maxBytes, boolean debug) {
+        this.maxBytes = maxBytes;
+        this.debug = debug;
+        for (int i = 0; i < SIZE_CLASSES.length; i++)
+            freeLists.add(new ConcurrentLinkedDeque<>());
+    }
+
+    /**
+     * The buffers released by one thread and kept for its next acquire() calls
+     * (concurrent, so a thread waiting for a buffer can take them)
+     */
+    private static class ThreadCache {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final List<ConcurrentLinkedDeque<ByteBuffer>> buffers = new ArrayList<>();
+        final AtomicInteger bytes = new AtomicInteger();
+
+        ThreadCache() {
+            for (int i = 0; i < SIZE_CLASSES.length; i++)
+                buffers.add(new ConcurrentLinkedDeque<>());
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            ByteBuffer buffer = buffers.get(sizeClass).poll();
+            if (buffer != null)
+                bytes.addAndGet(-buffer.capacity());
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if (bytes.get() + buffer.capacity() > THREAD_CACHE_BYTES)
+                return false;
+            bytes.addAndGet(buffer.capacity());
+            buffers.get(sizeClass).push(buffer);
+            return true;
+        }
+
+        boolean ownerEnded() {
+            Thread thread = owner.get();
+            return thread == null || !thread.isAlive();
+        }
+    }
+
+    private ThreadCache newThreadCache() {
+        if (cachesCreated.incrementAndGet() % 64 == 0) { // forget the empty caches of ended threads now and then
+            caches.removeIf(cache -> cache.ownerEnded() && cache.bytes.get() == 0);
+        }
+        ThreadCache cache = new ThreadCache();
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * Gets the pool shared by all the commands of the terminal.
+     *
+     * @return the shared pool
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    /**
+     * Takes a buffer of the default size from the pool.
+     *
+     * @return a cleared buffer of DEFAULT_BUFFER_SIZE bytes
+     * @throws InterruptedException if interrupted while waiting for a free buffer
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        return acquire(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Takes a buffer from the pool, reusing a released buffer of the same size class if there is one,
+     * allocating a new one if the memory cap allows it, or waiting for a buffer to be released otherwise.
+     *
+     * @param minSize the minimum capacity needed (requests above the largest class get the largest class)
+     * @return a cleared buffer of at least min(minSize, 1 MiB) bytes
+     * @throws InterruptedException if interrupted while waiting for a free buffer
+     */
+    public ByteBuffer acquire(int minSize) throws InterruptedException {
+        int sizeClass = sizeClassOf(minSize);
+        acquires.incrementAndGet();
+        ByteBuffer buffer = threadCaches.get().poll(sizeClass);
+        if (buffer != null) {
+            threadCacheHits.incrementAndGet();
+        } else {
+            buffer = takeShared(sizeClass);
+        }
+        buffer.clear();
+        outstanding.incrementAndGet();
+        if (debug) {
+            synchronized (inUse) {
+                inUse.put(buffer, new Throwable("buffer acquired by " + Thread.currentThread().getName()));
+            }
+        }
+        return buffer;
+    }
+
+    private ByteBuffer takeShared(int sizeClass) throws InterruptedException {
+        ConcurrentLinkedDeque<ByteBuffer> freeList = freeLists.get(sizeClass);
+        int size = SIZE_CLASSES[sizeClass];
+        boolean waiting = false;
+        lock.lock();
+        try {
+            while (true) {
+                ByteBuffer buffer = freeList.poll();
+                if (buffer != null) {
+                    sharedHits.incrementAndGet();
+                    return buffer;
+                }
+                if (allocatedBytes + size <= maxBytes) {
+                    allocatedBytes += size;
+                    allocations.incrementAndGet();
+                    return ByteBuffer.allocateDirect(size);
+                }
+                // Free buffers of other classes are dropped, so their memory can be reused for this class
+                if (dropFreeBuffer(sizeClass))
+                    continue;
+                // Then the buffers kept in thread caches
+                if (reclaimCached(sizeClass))
+                    continue;
+                if (!waiting) {
+                    // Look again once registered: a buffer cached by a thread before that didn't signal
+                    waits.incrementAndGet();
+                    waiters++;
+                    waiting = true;
+                    continue;
+                }
+                released.await();
+            }
+        } finally {
+            if (waiting)
+                waiters--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops one free buffer of another size class from the shared free lists (called while holding the lock).
+     *
+     * @return true if a buffer was dropped
+     */
+    private boolean dropFreeBuffer(int exceptClass) {
+        for (int i = SIZE_CLASSES.length - 1; i >= 0; i--) {
+            if (i != exceptClass && freeLists.get(i).poll() != null) {
+                allocatedBytes -= SIZE_CLASSES[i];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes a buffer of the class available from the thread caches (called while holding the lock, when the cap
+     * is reached): the buffers cached by threads that ended go back to the free lists, otherwise a buffer of the
+     * class cached by another thread is moved to its free list, or a cached buffer of another class is dropped.
+     *
+     * @return true if a buffer was moved or dropped
+     */
+    private boolean reclaimCached(int sizeClass) {
+        boolean reclaimed = false;
+        Iterator<ThreadCache> iterator = caches.iterator();
+        while (iterator.hasNext()) {
+            ThreadCache cache = iterator.next();
+            if (cache.ownerEnded()) {
+                iterator.remove();
+                for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                    ByteBuffer buffer;
+                    while ((buffer = cache.poll(i)) != null) {
+                        freeLists.get(i).push(buffer);
+                        reclaimed = true;
+                    }
+                }
+            }
+        }
+        if (reclaimed)
+            return true;
+        for (ThreadCache cache : caches) {
+            ByteBuffer buffer = cache.poll(sizeClass);
+            if (buffer != null) {
+                freeLists.get(sizeClass).push(buffer);
+                return true;
+            }
+        }
+        for (ThreadCache cache : caches) {
+            for (int i = SIZE_CLASSES.length - 1; i >= 0; i--) {
+                if (i != sizeClass && cache.poll(i) != null) {
+                    allocatedBytes -= SIZE_CLASSES[i];
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a buffer to the pool so it can be reused by another read/write.
+     * The buffer must not be used by the caller after it is released.
+     *
+     * @param buffer the buffer previously taken by acquire()
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (debug) {
+            synchronized (inUse) {
+                if (inUse.remove(buffer) == null) {
+                    new IllegalStateException("buffer released twice or not acquired from this pool").printStackTrace();
+                    return;
+                }
+            }
+        }
+        outstanding.decrementAndGet();
+        int sizeClass = sizeClassOf(buffer.capacity());
+        // Nobody waiting: keep the buffer close to this thread
+        if (waiters == 0 && threadCaches.get().offer(sizeClass, buffer)) {
+            if (waiters > 0) // came to wait meanwhile, it can take the buffer from the cache
+                signalReleased();
+            return;
+        }
+        lock.lock();
+        try {
+            freeLists.get(sizeClass).push(buffer);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalReleased() {
+        lock.lock();
+        try {
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i])
+                return i;
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    /**
+     * Gets a summary of the pool metrics (hit rate, memory in use, buffers outstanding).
+     *
+     * @return the lines of the summary
+     */
+    public List<String> stats() {
+        long total = acquires.get();
+        long hits = threadCacheHits.get() + sharedHits.get();
+        List<String> lines = new ArrayList<>();
+        lines.add("acquires: " + total + ", hit rate: " + (total == 0 ? 0 : hits * 100 / total) + "% ("
+                + threadCacheHits.get() + " thread cache, " + sharedHits.get() + " shared)");
+        lock.lock();
+        try {
+            lines.add("allocations: " + allocations.get() + ", off-heap: " + allocatedBytes / 1024 + " KiB of "
+                    + maxBytes / 1024 + " KiB, waits: " + waits.get());
+        } finally {
+            lock.unlock();
+        }
+        lines.add("outstanding buffers: " + outstanding.get());
+        if (debug) {
+            synchronized (inUse) {
+                for (Throwable site : inUse.values()) {
+                    StackTraceElement[] trace = site.getStackTrace();
+                    lines.add("  possible leak: " + site.getMessage() + (trace.length > 2 ? " at " + trace[2] : ""));
+                }
+            }
+        }
+        return lines;
+    }
+}
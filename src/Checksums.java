@@ -0,0 +1,229 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums class: computes the checksums used by sha256sum, md5sum and crc32, and writes/verifies manifests
+ * (one "checksum  name" line per file, the format of sha256sum).
+ * Large files are read through memory-mapped segments, small ones through a pooled buffer,
+ * and lists of files are hashed in parallel.
+ */
+public class Checksums {
+    private static final long MAP_THRESHOLD = 256 * 1024; // smaller files are cheaper to read than to map
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024; // bytes mapped at once
+
+    /**
+     * The supported checksum algorithms
+     */
+    public enum Algorithm {
+        SHA256("sha256sum"), MD5("md5sum"), CRC32C("crc32");
+
+        final String command;
+
+        Algorithm(String command) {
+            this.command = command;
+        }
+
+        /**
+         * Creates a hasher computing this checksum.
+         *
+         * @return a new hasher
+         */
+        public Hasher newHasher() {
+            if (this == CRC32C)
+                return new Crc32cHasher();
+            try {
+                return new DigestHasher(MessageDigest.getInstance(this == SHA256 ? "SHA-256" : "MD5"));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // every JDK has SHA-256 and MD5
+            }
+        }
+    }
+
+    /**
+     * Hasher interface: computes a checksum over the bytes it is given
+     */
+    public interface Hasher {
+        void update(ByteBuffer bytes);
+
+        byte[] finish();
+    }
+
+    private static class DigestHasher implements Hasher {
+        private final MessageDigest digest;
+
+        DigestHasher(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        public void update(ByteBuffer bytes) {
+            digest.update(bytes);
+        }
+
+        public byte[] finish() {
+            return digest.digest();
+        }
+    }
+
+    private static class Crc32cHasher implements Hasher {
+        private final CRC32C crc = new CRC32C(); // computed with hardware instructions where the CPU has them
+
+        public void update(ByteBuffer bytes) {
+            crc.update(bytes);
+        }
+
+        public byte[] finish() {
+            return ByteBuffer.allocate(4).putInt((int) crc.getValue()).array();
+        }
+    }
+
+    /**
+     * The checksum of a file, or the error that happened while reading it
+     */
+    public static class Result {
+        public final String name;
+        public final String checksum; // null if the file couldn't be read
+        public final IOException error;
+
+        Result(String name, String checksum, IOException error) {
+            this.name = name;
+            this.checksum = checksum;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Computes the checksum of a file.
+     *
+     * @param file      The file to hash
+     * @param algorithm The checksum algorithm
+     * @return the checksum as lowercase hex
+     * @throws IOException If the file can't be read
+     */
+    public static String checksum(Path file, Algorithm algorithm) throws IOException {
+        Hasher hasher = algorithm.newHasher();
+        IoScheduler.operation();
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (channel instanceof FileChannel && size >= MAP_THRESHOLD) {
+                FileChannel fileChannel = (FileChannel) channel;
+                for (long position = 0; position < size; position += SEGMENT_SIZE) {
+                    IoScheduler.charge(Math.min(SEGMENT_SIZE, size - position));
+                    hasher.update(fileChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(SEGMENT_SIZE, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = acquireBuffer();
+                try {
+                    while (channel.read(buffer) >= 0) {
+                        buffer.flip();
+                        IoScheduler.charge(buffer.remaining());
+                        hasher.update(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    BufferPool.shared().release(buffer);
+                }
+            }
+        }
+        return HexFormat.of().formatHex(hasher.finish());
+    }
+
+    /**
+     * Computes the checksums of many files in parallel.
+     *
+     * @param files     The files to hash
+     * @param names     The names the results are reported with (same order as files)
+     * @param algorithm The checksum algorithm
+     * @return the results, in the order of the files
+     */
+    public static List<Result> checksumAll(List<Path> files, List<String> names, Algorithm algorithm) {
+        Result[] results = new Result[files.size()];
+        IntStream.range(0, files.size()).parallel().forEach(IoScheduler.bind(i -> { // paced as the command's I/O
+            try {
+                results[i] = new Result(names.get(i), checksum(files.get(i), algorithm), null);
+            } catch (IOException e) {
+                results[i] = new Result(names.get(i), null, e);
+            }
+        }));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Formats a manifest line.
+     *
+     * @return "checksum  name"
+     */
+    public static String manifestLine(String checksum, String name) {
+        return checksum + "  " + name;
+    }
+
+    /**
+     * ManifestWriter class: writes the manifest of the files copied by cp -r, one line per file as it is copied.
+     * The checksum of each file is computed from the bytes written to the copy, so the copy isn't read again.
+     */
+    public static class ManifestWriter implements Closeable {
+        private final BufferedWriter writer;
+        private final Algorithm algorithm;
+        private final Path root;
+        private final String displayRoot;
+
+        /**
+         * @param manifest    The manifest file to create
+         * @param algorithm   The checksum algorithm
+         * @param root        The destination directory of the copy
+         * @param displayRoot The name of the destination directory written in the manifest
+         */
+        public ManifestWriter(Path manifest, Algorithm algorithm, Path root, String displayRoot) throws IOException {
+            this.writer = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8);
+            this.algorithm = algorithm;
+            this.root = root;
+            this.displayRoot = displayRoot;
+        }
+
+        public Hasher newHasher() {
+            return algorithm.newHasher();
+        }
+
+        /**
+         * Adds the line of a copied file.
+         *
+         * @param copy     The path of the copy (inside the destination directory)
+         * @param checksum The checksum computed while copying
+         */
+        public synchronized void add(Path copy, byte[] checksum) throws IOException {
+            String name = displayRoot + "/" + root.relativize(copy).toString().replace('\\', '/');
+            writer.write(manifestLine(HexFormat.of().formatHex(checksum), name));
+            writer.newLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() throws IOException {
+        try {
+            return BufferPool.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * CopyCheckpoint class: the progress of a resumable cp -r, kept in a sidecar file next to the destination.
+ * The file lists the relative paths of the copied files, and of the directories whose whole tree is copied
+ * (so a finished subtree is one entry). Entries are appended and flushed in batches while copying;
+ * when a copy resumes, the file is rewritten as a sorted list without the entries inside finished directories,
+ * and loaded into a set, so skipping finished work is one lookup per entry.
+ * The entries of the last batch may be lost with the process: those files are checked again against
+ * the source (see Terminal.copyDirectoryResumable).
+ */
+public class CopyCheckpoint implements Closeable {
+    private static final int BATCH_ENTRIES = 1024; // entries written before a flush
+    private static final long BATCH_NANOS = 1_000_000_000L; // or time since the last flush
+    private static final String HEADER = "# cp -r checkpoint of ";
+
+    private final Path file;
+    private final Set<String> done;
+    private final BufferedWriter writer;
+    private int pending;
+    private long lastFlush = System.nanoTime();
+
+    private CopyCheckpoint(Path file, Set<String> done, BufferedWriter writer) {
+        this.file = file;
+        this.done = done;
+        this.writer = writer;
+    }
+
+    /**
+     * @return the sidecar file of a destination directory (".name.cp-checkpoint" next to it)
+     */
+    public static Path sidecar(Path destination) {
+        Path absolute = destination.toAbsolutePath().normalize();
+        return absolute.resolveSibling("." + absolute.getFileName() + ".cp-checkpoint");
+    }
+
+    /**
+     * Opens the checkpoint of a copy, loading the progress of an earlier run of the same copy.
+     *
+     * @param file   The sidecar file
+     * @param source The source directory (a checkpoint of another source is discarded)
+     * @return the checkpoint, ready to record more progress
+     * @throws IOException If the sidecar file can't be read or written
+     */
+    public static CopyCheckpoint open(Path file, Path source) throws IOException {
+        String header = HEADER + source.toAbsolutePath().normalize().toUri();
+        TreeSet<String> entries = new TreeSet<>();
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                if (header.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isEmpty())
+                            entries.add(unescape(line)); // a torn last line is just a path not found later
+                    }
+                }
+            }
+        }
+
+        // Rewrite the progress compacted: sorted, without the entries under a finished directory
+        Set<String> done = new HashSet<>();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter compacted = newWriter(temporary, StandardOpenOption.TRUNCATE_EXISTING)) {
+            compacted.write(header);
+            compacted.newLine();
+            String finishedDirectory = null;
+            for (String entry : entries) { // sorted, so a directory comes right before its entries
+                if (finishedDirectory != null && entry.startsWith(finishedDirectory + "/"))
+                    continue;
+                finishedDirectory = entry;
+                done.add(entry);
+                compacted.write(escape(entry));
+                compacted.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        return new CopyCheckpoint(file, done, newWriter(file, StandardOpenOption.APPEND));
+    }
+
+    private static BufferedWriter newWriter(Path path, OpenOption mode) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, mode), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true if the file or the whole directory at this relative path was copied by an earlier run
+     */
+    public boolean isDone(String relative) {
+        return done.contains(relative);
+    }
+
+    /**
+     * @return the number of entries loaded from an earlier run
+     */
+    public int resumedEntries() {
+        return done.size();
+    }
+
+    /**
+     * Records a copied file, or a directory whose whole tree is copied.
+     */
+    public void add(String relative) throws IOException {
+        writer.write(escape(relative));
+        writer.newLine();
+        if (++pending >= BATCH_ENTRIES || System.nanoTime() - lastFlush >= BATCH_NANOS) {
+            writer.flush();
+            pending = 0;
+            lastFlush = System.nanoTime();
+        }
+    }
+
+    /**
+     * Deletes the checkpoint once the whole copy is done.
+     */
+    public void complete() throws IOException {
+        writer.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    // A path is one line: backslashes and newlines in names are escaped
+    private static String escape(String path) {
+        return path.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String line) {
+        StringBuilder path = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                path.append(next == 'n' ? '\n' : next);
+            } else {
+                path.append(c);
+            }
+        }
+        return path.toString();
+    }
+}
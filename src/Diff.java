@@ -0,0 +1,456 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Diff class: compares files and directory trees for the diff command.
+ * Trees are walked together: the two listings of a directory are read at the same time, sorted,
+ * and merged name by name (nothing is kept of the directories already compared). Files are compared on the pool,
+ * the type and size first, the bytes only when the sizes match, while the walk goes on; the results are printed
+ * in the order of the walk, at most WINDOW comparisons ahead of the output.
+ * The line diff is Myers' O(ND) algorithm in its linear space variant (the middle snake of each part is found
+ * by searching from both ends, then both halves are compared recursively), over lines replaced by integer ids.
+ */
+public class Diff {
+    private static final int WINDOW = 256; // comparisons started ahead of the output
+
+    private final boolean brief;
+    private final PrintStream out;
+    private final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final ArrayDeque<Future<String>> pending = new ArrayDeque<>(); // the results to print, in order
+    private ExecutorService executor;
+    private int differences;
+
+    /**
+     * @param brief true to report only whether files differ, not how
+     * @param out   The stream the differences are printed to
+     */
+    public Diff(boolean brief, PrintStream out) {
+        this.brief = brief;
+        this.out = out;
+    }
+
+    /**
+     * Compares two files and prints their differences.
+     *
+     * @return the number of differences found (0 or 1)
+     * @throws IOException If a file can't be read
+     */
+    public int compareFiles(Path a, String nameA, Path b, String nameB) throws IOException {
+        String result = fileDifference(a, nameA, b, nameB, false);
+        if (result == null)
+            return 0;
+        out.print(result);
+        return 1;
+    }
+
+    /**
+     * Compares two directory trees and prints their differences.
+     *
+     * @return the number of differences found
+     * @throws IOException If a directory can't be read
+     */
+    public int compareTrees(Path a, String nameA, Path b, String nameB) throws IOException {
+        executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            compareDirectories(a, nameA, b, nameB);
+            while (!pending.isEmpty())
+                printNext();
+        } finally {
+            executor.shutdownNow();
+            pending.clear();
+        }
+        return differences;
+    }
+
+    private void compareDirectories(Path a, String nameA, Path b, String nameB) throws IOException {
+        Future<List<String>> listingB = executor.submit(IoScheduler.bind(() -> sortedNames(b)));
+        List<String> namesA = sortedNames(a);
+        List<String> namesB = await(listingB);
+
+        int i = 0, j = 0;
+        while (i < namesA.size() || j < namesB.size()) {
+            int order = i == namesA.size() ? 1 : j == namesB.size() ? -1 : namesA.get(i).compareTo(namesB.get(j));
+            if (order < 0) {
+                report("Only in " + nameA + ": " + namesA.get(i++) + "\n");
+            } else if (order > 0) {
+                report("Only in " + nameB + ": " + namesB.get(j++) + "\n");
+            } else {
+                String name = namesA.get(i++);
+                j++;
+                compareEntries(a.resolve(name), nameA + "/" + name, b.resolve(name), nameB + "/" + name);
+            }
+        }
+    }
+
+    private void compareEntries(Path a, String nameA, Path b, String nameB) throws IOException {
+        BasicFileAttributes attributesA = Files.readAttributes(a, BasicFileAttributes.class);
+        BasicFileAttributes attributesB = Files.readAttributes(b, BasicFileAttributes.class);
+        if (attributesA.isDirectory() && attributesB.isDirectory()) {
+            compareDirectories(a, nameA, b, nameB);
+        } else if (attributesA.isDirectory() || attributesB.isDirectory()) {
+            report("File " + nameA + " is a " + typeOf(attributesA) + " while file " + nameB + " is a "
+                    + typeOf(attributesB) + "\n");
+        } else if (brief && attributesA.size() != attributesB.size()) {
+            report("Files " + nameA + " and " + nameB + " differ\n");
+        } else {
+            pending.add(executor.submit(IoScheduler.bind(() -> {
+                try {
+                    return fileDifference(a, nameA, b, nameB, true);
+                } catch (IOException e) {
+                    return "diff: " + nameA + ": Error reading the file\n";
+                }
+            })));
+            if (pending.size() >= WINDOW)
+                printNext();
+        }
+    }
+
+    private static String typeOf(BasicFileAttributes attributes) {
+        return attributes.isDirectory() ? "directory" : attributes.isRegularFile() ? "regular file" : "special file";
+    }
+
+    private void report(String difference) throws IOException {
+        pending.add(CompletableFuture.completedFuture(difference));
+        if (pending.size() >= WINDOW)
+            printNext();
+    }
+
+    private void printNext() throws IOException {
+        String result = await(pending.poll());
+        if (result != null) {
+            differences++;
+            out.print(result);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while comparing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof DirectoryIteratorException)
+                throw ((DirectoryIteratorException) e.getCause()).getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static List<String> sortedNames(Path directory) throws IOException {
+        List<String> names = new ArrayList<>();
+        IoScheduler.operation();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries)
+                names.add(entry.getFileName().toString());
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Compares two files.
+     *
+     * @param inTree true to head the line diff with the "diff -r a b" line, as in the output of a tree comparison
+     * @return the printed difference, or null if the files are the same
+     */
+    private String fileDifference(Path a, String nameA, Path b, String nameB, boolean inTree) throws IOException {
+        if (sameContent(a, b))
+            return null;
+        if (brief)
+            return "Files " + nameA + " and " + nameB + " differ\n";
+        List<byte[]> linesA = readLines(a), linesB = readLines(b);
+        if (isBinary(linesA) || isBinary(linesB))
+            return "Binary files " + nameA + " and " + nameB + " differ\n";
+        StringBuilder result = new StringBuilder();
+        if (inTree)
+            result.append("diff -r ").append(nameA).append(' ').append(nameB).append('\n');
+        appendLineDiff(linesA, linesB, result);
+        return result.toString();
+    }
+
+    /**
+     * Compares the contents of two files: the sizes first, then the bytes, buffer by buffer up to the first mismatch.
+     */
+    static boolean sameContent(Path a, Path b) throws IOException {
+        if (Files.size(a) != Files.size(b))
+            return false;
+        if (Files.isSameFile(a, b))
+            return true;
+        IoScheduler.operation();
+        IoScheduler.operation();
+        ByteBuffer bufferA = acquireBuffer(), bufferB = null;
+        try (SeekableByteChannel channelA = Files.newByteChannel(a, StandardOpenOption.READ);
+             SeekableByteChannel channelB = Files.newByteChannel(b, StandardOpenOption.READ)) {
+            bufferB = acquireBuffer();
+            while (true) {
+                boolean endA = fill(channelA, bufferA), endB = fill(channelB, bufferB);
+                bufferA.flip();
+                bufferB.flip();
+                IoScheduler.charge(bufferA.remaining() + bufferB.remaining());
+                if (!bufferA.equals(bufferB)) // the sizes may have changed meanwhile
+                    return false;
+                if (endA || endB)
+                    return endA && endB;
+                bufferA.clear();
+                bufferB.clear();
+            }
+        } finally {
+            BufferPool.shared().release(bufferA);
+            if (bufferB != null)
+                BufferPool.shared().release(bufferB);
+        }
+    }
+
+    /**
+     * Fills a buffer from a channel.
+     *
+     * @return true at the end of the input
+     */
+    private static boolean fill(SeekableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static ByteBuffer acquireBuffer() throws IOException {
+        try {
+            return BufferPool.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+    }
+
+    private static List<byte[]> readLines(Path file) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+        try (LineReader reader = new LineReader(Files.newByteChannel(file, StandardOpenOption.READ))) {
+            byte[] line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    private static boolean isBinary(List<byte[]> lines) {
+        for (byte[] line : lines) {
+            for (byte b : line) {
+                if (b == 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Line class: a line as a key of the id map, hashed once and compared byte by byte only on equal hashes
+     */
+    private static class Line {
+        final byte[] bytes;
+        final int hash;
+
+        Line(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Line && ((Line) other).hash == hash && Arrays.equals(((Line) other).bytes, bytes);
+        }
+    }
+
+    /**
+     * Appends the line diff of two files in the default format of diff ("2,3c2", "< old", "---", "> new").
+     */
+    static void appendLineDiff(List<byte[]> linesA, List<byte[]> linesB, StringBuilder result) {
+        // Equal lines get the same id, so the algorithm compares ints
+        Map<Line, Integer> ids = new HashMap<>();
+        int[] a = new int[linesA.size()], b = new int[linesB.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = ids.computeIfAbsent(new Line(linesA.get(i)), line -> ids.size());
+        for (int j = 0; j < b.length; j++)
+            b[j] = ids.computeIfAbsent(new Line(linesB.get(j)), line -> ids.size());
+
+        boolean[] deleted = new boolean[a.length], inserted = new boolean[b.length];
+        new LineDiff(a, b, deleted, inserted).compare(0, a.length, 0, b.length);
+
+        // Walk the marks, one hunk per run of deleted and/or inserted lines
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length && !deleted[i] && !inserted[j]) {
+                i++;
+                j++;
+                continue;
+            }
+            int startA = i, startB = j;
+            while (i < a.length && deleted[i])
+                i++;
+            while (j < b.length && inserted[j])
+                j++;
+            char kind = i == startA ? 'a' : j == startB ? 'd' : 'c';
+            result.append(range(startA, i, kind == 'a')).append(kind).append(range(startB, j, kind == 'd')).append('\n');
+            for (int k = startA; k < i; k++)
+                result.append("< ").append(new String(linesA.get(k), StandardCharsets.UTF_8)).append('\n');
+            if (kind == 'c')
+                result.append("---\n");
+            for (int k = startB; k < j; k++)
+                result.append("> ").append(new String(linesB.get(k), StandardCharsets.UTF_8)).append('\n');
+        }
+    }
+
+    /**
+     * Formats the lines [start, end) as "first,last" (1-based), or the line before them if the range is empty.
+     */
+    private static String range(int start, int end, boolean empty) {
+        if (empty)
+            return Integer.toString(start);
+        return end - start == 1 ? Integer.toString(start + 1) : (start + 1) + "," + end;
+    }
+
+    /**
+     * LineDiff class: Myers' algorithm, marking the lines of a that are deleted and the lines of b that are inserted
+     */
+    private static class LineDiff {
+        private final int[] a, b;
+        private final boolean[] deleted, inserted;
+
+        LineDiff(int[] a, int[] b, boolean[] deleted, boolean[] inserted) {
+            this.a = a;
+            this.b = b;
+            this.deleted = deleted;
+            this.inserted = inserted;
+        }
+
+        /**
+         * Compares a[aLo, aHi) with b[bLo, bHi).
+         */
+        void compare(int aLo, int aHi, int bLo, int bHi) {
+            // The common prefix and suffix aren't part of any edit
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                aLo++;
+                bLo++;
+            }
+            while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                aHi--;
+                bHi--;
+            }
+            if (aLo == aHi) {
+                Arrays.fill(inserted, bLo, bHi, true);
+            } else if (bLo == bHi) {
+                Arrays.fill(deleted, aLo, aHi, true);
+            } else {
+                long split = middleSnake(aLo, aHi, bLo, bHi);
+                if (split < 0) { // nothing in common
+                    Arrays.fill(deleted, aLo, aHi, true);
+                    Arrays.fill(inserted, bLo, bHi, true);
+                } else {
+                    int x = (int) (split >>> 32), y = (int) split;
+                    compare(aLo, x, bLo, y);
+                    compare(x, aHi, y, bHi);
+                }
+            }
+        }
+
+        /**
+         * Finds a point of an optimal edit path in its middle, searching forward from the start
+         * and backward from the end until the two searches overlap. Only the furthest point reached on each
+         * diagonal is kept, so the space is linear.
+         *
+         * @return the point as x << 32 | y, or -1 if the parts have no line in common
+         */
+        private long middleSnake(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo, m = bHi - bLo;
+            int maxD = (n + m + 1) / 2;
+            int offset = maxD, length = 2 * maxD + 2;
+            int[] forward = new int[length], backward = new int[length]; // furthest x on each diagonal (x - y)
+            Arrays.fill(forward, -1);
+            Arrays.fill(backward, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0; // the searches meet in the forward step
+            // Diagonals that left the grid are no longer extended
+            int forwardStart = 0, forwardEnd = 0, backwardStart = 0, backwardEnd = 0;
+            for (int d = 0; d < maxD; d++) {
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                            ? forward[index + 1] : forward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[index] = x;
+                    if (x > n) {
+                        forwardEnd += 2;
+                    } else if (y > m) {
+                        forwardStart += 2;
+                    } else if (odd) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other])
+                            return (long) (aLo + x) << 32 | (bLo + y);
+                    }
+                }
+                for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                            ? backward[index + 1] : backward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[index] = x;
+                    if (x > n) {
+                        backwardEnd += 2;
+                    } else if (y > m) {
+                        backwardStart += 2;
+                    } else if (!odd) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && forward[other] != -1) {
+                            int forwardX = forward[other];
+                            int forwardY = forwardX - (other - offset);
+                            if (forwardX >= n - x)
+                                return (long) (aLo + forwardX) << 32 | (bLo + forwardY);
+                        }
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * ExternalSorter class: sorts the lines of files that may not fit in memory.
+ * Lines are kept as raw bytes. While the lines read so far fit in the memory budget they are sorted in memory,
+ * otherwise the input is cut in chunks, each chunk is sorted on its own thread and written to a temporary
+ * run file, and the runs are then merged (k-way, with a priority queue) into the output.
+ */
+public class ExternalSorter {
+    private static final int MAX_MERGE_WIDTH = 64; // runs merged at once, more runs need several passes
+    private static final int LINE_OVERHEAD = 32; // estimated heap bytes used by a byte[] besides its content
+
+    private final Comparator<byte[]> comparator;
+    private final long memoryBudget;
+    private final boolean unique;
+    private final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * @param comparator   The order of the lines
+     * @param memoryBudget The heap bytes the lines may take before they are spilled to run files
+     * @param unique       true to output only the first of the lines that compare equal
+     */
+    public ExternalSorter(Comparator<byte[]> comparator, long memoryBudget, boolean unique) {
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.unique = unique;
+    }
+
+    /**
+     * Sorts the lines of all the input files together and writes them to the output.
+     *
+     * @param inputs The files to sort
+     * @param output The stream the sorted lines are written to (it is flushed, not closed)
+     * @throws IOException If an input can't be read or a run file can't be written
+     */
+    public void sort(List<Path> inputs, OutputStream output) throws IOException {
+        // Every chunk being sorted plus the chunk being filled must fit in the budget together
+        long chunkBudget = Math.max(1, memoryBudget / (parallelism + 1));
+        List<byte[]> chunk = new ArrayList<>();
+        long chunkBytes = 0;
+        long totalBytes = 0;
+        boolean spilled = false;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore chunksInFlight = new Semaphore(parallelism);
+        List<Future<Path>> runs = new ArrayList<>();
+        try {
+            for (Path input : inputs) {
+                try (LineReader reader = new LineReader(Files.newByteChannel(input, StandardOpenOption.READ))) {
+                    byte[] line;
+                    while ((line = reader.readLine()) != null) {
+                        chunk.add(line);
+                        chunkBytes += line.length + LINE_OVERHEAD;
+                        totalBytes += line.length + LINE_OVERHEAD;
+                        // Spill only once everything read so far stops fitting in the whole budget
+                        if (chunkBytes >= chunkBudget && (spilled || totalBytes >= memoryBudget)) {
+                            if (!spilled) {
+                                spillInChunks(chunk, chunkBudget, executor, chunksInFlight, runs);
+                                spilled = true;
+                            } else {
+                                runs.add(spill(chunk, executor, chunksInFlight));
+                            }
+                            chunk = new ArrayList<>();
+                            chunkBytes = 0;
+                        }
+                    }
+                }
+            }
+
+            OutputStream out = new BufferedOutputStream(output, BufferPool.DEFAULT_BUFFER_SIZE);
+            if (!spilled) {
+                byte[][] lines = chunk.toArray(new byte[0][]);
+                Arrays.parallelSort(lines, comparator);
+                writeLines(Arrays.asList(lines), out);
+            } else {
+                if (!chunk.isEmpty())
+                    runs.add(spill(chunk, executor, chunksInFlight));
+                List<Path> runFiles = new ArrayList<>();
+                for (Future<Path> run : runs)
+                    runFiles.add(await(run));
+                runs.clear();
+                mergeRuns(runFiles, out);
+            }
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+            // Delete the run files of a failed sort
+            for (Future<Path> run : runs) {
+                try {
+                    Files.deleteIfExists(await(run));
+                } catch (IOException ignored) {
+                    // the run failed or was never written
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the lines read before the first spill (which may be up to the whole budget) into chunks
+     * of chunkBudget bytes and spills each of them.
+     */
+    private void spillInChunks(List<byte[]> lines, long chunkBudget, ExecutorService executor,
+                               Semaphore chunksInFlight, List<Future<Path>> runs) throws IOException {
+        List<byte[]> chunk = new ArrayList<>();
+        long chunkBytes = 0;
+        for (byte[] line : lines) {
+            chunk.add(line);
+            chunkBytes += line.length + LINE_OVERHEAD;
+            if (chunkBytes >= chunkBudget) {
+                runs.add(spill(chunk, executor, chunksInFlight));
+                chunk = new ArrayList<>();
+                chunkBytes = 0;
+            }
+        }
+        if (!chunk.isEmpty())
+            runs.add(spill(chunk, executor, chunksInFlight));
+    }
+
+    /**
+     * Sorts a chunk and writes it to a run file on a worker thread.
+     * Waits first if all the workers are busy, so the chunks held in memory stay within the budget.
+     */
+    private Future<Path> spill(List<byte[]> chunk, ExecutorService executor, Semaphore chunksInFlight)
+            throws IOException {
+        try {
+            chunksInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("sort interrupted");
+        }
+        return executor.submit(IoScheduler.bind(() -> { // the run is written as the command's I/O
+            try {
+                byte[][] lines = chunk.toArray(new byte[0][]);
+                chunk.clear();
+                Arrays.sort(lines, comparator);
+                long bytes = 0;
+                for (byte[] line : lines)
+                    bytes += line.length + 1;
+                IoScheduler.operation();
+                IoScheduler.charge(bytes);
+                Path run = Files.createTempFile("sort-run", ".tmp");
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(run),
+                        BufferPool.DEFAULT_BUFFER_SIZE)) {
+                    writeLines(Arrays.asList(lines), out);
+                }
+                return run;
+            } finally {
+                chunksInFlight.release();
+            }
+        }));
+    }
+
+    /**
+     * Merges the run files into the output, in several passes if there are more than MAX_MERGE_WIDTH runs.
+     * The run files are deleted once merged.
+     */
+    private void mergeRuns(List<Path> runFiles, OutputStream out) throws IOException {
+        while (runFiles.size() > MAX_MERGE_WIDTH) {
+            List<Path> merged = new ArrayList<>();
+            for (int i = 0; i < runFiles.size(); i += MAX_MERGE_WIDTH) {
+                List<Path> group = runFiles.subList(i, Math.min(i + MAX_MERGE_WIDTH, runFiles.size()));
+                Path run = Files.createTempFile("sort-run", ".tmp");
+                try (OutputStream runOut = new BufferedOutputStream(Files.newOutputStream(run),
+                        BufferPool.DEFAULT_BUFFER_SIZE)) {
+                    merge(group, runOut, false);
+                }
+                merged.add(run);
+            }
+            runFiles = merged;
+        }
+        merge(runFiles, out, unique);
+    }
+
+    /**
+     * Merges sorted run files into a stream with a priority queue holding the next line of each run,
+     * then deletes the run files.
+     */
+    private void merge(List<Path> runFiles, OutputStream out, boolean dropDuplicates) throws IOException {
+        class RunHead {
+            final LineReader reader;
+            byte[] line;
+
+            RunHead(LineReader reader) {
+                this.reader = reader;
+            }
+        }
+        PriorityQueue<RunHead> heads = new PriorityQueue<>(Math.max(1, runFiles.size()),
+                (a, b) -> comparator.compare(a.line, b.line));
+        List<LineReader> readers = new ArrayList<>();
+        try {
+            for (Path runFile : runFiles) {
+                LineReader reader = new LineReader(FileChannel.open(runFile, StandardOpenOption.READ));
+                readers.add(reader);
+                RunHead head = new RunHead(reader);
+                if ((head.line = reader.readLine()) != null)
+                    heads.add(head);
+            }
+            byte[] previous = null;
+            while (!heads.isEmpty()) {
+                RunHead head = heads.poll();
+                if (!dropDuplicates || previous == null || comparator.compare(previous, head.line) != 0) {
+                    out.write(head.line);
+                    out.write('\n');
+                    previous = head.line;
+                }
+                if ((head.line = head.reader.readLine()) != null)
+                    heads.add(head);
+            }
+        } finally {
+            for (LineReader reader : readers)
+                reader.close();
+            for (Path runFile : runFiles)
+                Files.deleteIfExists(runFile);
+        }
+    }
+
+    /**
+     * Writes sorted lines, dropping the duplicates if the sorter is unique
+     * (duplicates across run files are dropped again while merging)
+     */
+    private void writeLines(List<byte[]> lines, OutputStream out) throws IOException {
+        byte[] previous = null;
+        for (byte[] line : lines) {
+            if (unique && previous != null && comparator.compare(previous, line) == 0)
+                continue;
+            out.write(line);
+            out.write('\n');
+            previous = line;
+        }
+    }
+
+    private static Path await(Future<Path> run) throws IOException {
+        try {
+            return run.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("sort interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Comparators
+
+    /**
+     * Compares whole lines byte by byte (unsigned), which is the order of "LC_ALL=C sort".
+     *
+     * @return the comparator
+     */
+    public static Comparator<byte[]> bytewise() {
+        return Arrays::compareUnsigned;
+    }
+
+    /**
+     * Compares lines from the start of a field to the end of the line, fields are separated by blanks
+     * (the blanks before a field belong to it, as in sort -k).
+     *
+     * @param field      The 1-based field the key starts at
+     * @param numeric    true to compare the keys as numbers instead of bytes
+     * @param lastResort true to break ties between equal keys by comparing whole lines
+     *                   (false for sort -u, where lines with equal keys are duplicates)
+     * @return the comparator
+     */
+    public static Comparator<byte[]> byKey(int field, boolean numeric, boolean lastResort) {
+        return (a, b) -> {
+            int keyA = keyStart(a, field), keyB = keyStart(b, field);
+            int result = numeric ? Double.compare(parseNumber(a, keyA), parseNumber(b, keyB))
+                    : Arrays.compareUnsigned(a, keyA, a.length, b, keyB, b.length);
+            return result != 0 || !lastResort ? result : Arrays.compareUnsigned(a, b);
+        };
+    }
+
+    /**
+     * Finds where a field starts in a line (the end of the line if the line has fewer fields).
+     */
+    private static int keyStart(byte[] line, int field) {
+        int i = 0;
+        for (int f = 1; f < field; f++) {
+            while (i < line.length && isBlank(line[i]))
+                i++;
+            while (i < line.length && !isBlank(line[i]))
+                i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Parses the number at the start of a key (after blanks), lines without a number compare as 0 as in sort -n.
+     */
+    private static double parseNumber(byte[] line, int start) {
+        int i = start;
+        while (i < line.length && isBlank(line[i]))
+            i++;
+        boolean negative = i < line.length && line[i] == '-';
+        if (negative)
+            i++;
+        double value = 0;
+        while (i < line.length && line[i] >= '0' && line[i] <= '9')
+            value = value * 10 + (line[i++] - '0');
+        if (i < line.length && line[i] == '.') {
+            double scale = 0.1;
+            for (i++; i < line.length && line[i] >= '0' && line[i] <= '9'; i++, scale /= 10)
+                value += (line[i] - '0') * scale;
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FileSystemRegistry class: resolves the operands of the commands that are URIs instead of paths,
+ * opening the file system behind each URI once and reusing it for every later command.
+ * Supported are "zip:archive.zip!/dir" (the archive is a file of the disk), "jar:" URIs,
+ * "mem:/dir" and "mem://name/dir" (MemFileSystemProvider), "file:" URIs,
+ * and the URIs of any other installed FileSystemProvider.
+ * The default in-memory file system is also mounted at a directory of the disk (/mem by default),
+ * paths under it resolve to the in-memory file system, like a tmpfs mount.
+ */
+public class FileSystemRegistry {
+    // A scheme is at least two characters, so Windows drive letters ("C:\dir") stay paths
+    private static final Pattern URI_PATTERN = Pattern.compile("([a-zA-Z][a-zA-Z0-9+.-]+):(.*)");
+
+    private final Map<String, FileSystem> fileSystems = new ConcurrentHashMap<>(); // by key, e.g. "zip:/abs/a.zip"
+    private final Map<FileSystem, String> labels = new ConcurrentHashMap<>(); // how paths of each file system are shown
+    private final Path mountPoint; // null if the in-memory file system isn't mounted
+
+    /**
+     * @param mountPoint The absolute directory the default in-memory file system is mounted at (empty for none)
+     */
+    public FileSystemRegistry(String mountPoint) {
+        this.mountPoint = mountPoint.isEmpty() ? null : Path.of(mountPoint).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Returns the in-memory file system mounted at the mount point (the one of "mem:/"), creating it the first time.
+     */
+    public MemFileSystem mounted() {
+        MemFileSystem fileSystem = MemFileSystemProvider.instance().getOrCreate(URI.create("mem:/"));
+        labels.putIfAbsent(fileSystem, mountPoint != null ? mountPoint.toString() : "mem:");
+        return fileSystem;
+    }
+
+    /**
+     * @return true if the operand is a URI this registry resolves
+     */
+    public static boolean isUri(String operand) {
+        return URI_PATTERN.matcher(operand).matches();
+    }
+
+    /**
+     * Resolves an operand against a directory: a path under the mount point resolves to the in-memory
+     * file system, and a relative path from the in-memory file system may leave it (e.g. "..").
+     *
+     * @param operand    The path or URI
+     * @param workingDir The current directory
+     * @return the path
+     * @throws IOException If the file system of a URI can't be opened
+     */
+    public Path resolvePath(String operand, Path workingDir) throws IOException {
+        if (isUri(operand))
+            return resolve(operand, workingDir);
+        if (mountPoint == null)
+            return workingDir.resolve(operand);
+        MemFileSystem mounted = mounted();
+        Path base = workingDir.getFileSystem() == mounted
+                ? Path.of(mountPoint + workingDir.toAbsolutePath().toString()) : workingDir;
+        Path path = base.resolve(operand);
+        if (path.getFileSystem() != FileSystems.getDefault())
+            return path;
+        Path normalized = path.toAbsolutePath().normalize();
+        if (!normalized.startsWith(mountPoint))
+            return base == workingDir ? path : normalized;
+        return mounted.getPath("/" + mountPoint.relativize(normalized).toString().replace('\\', '/'));
+    }
+
+    /**
+     * Resolves a URI operand to a path of its file system, opening the file system the first time.
+     *
+     * @param operand    The URI
+     * @param workingDir The current directory (relative archive paths of "zip:" are resolved against it
+     *                   when it is on the disk)
+     * @return the path
+     * @throws IOException If the file system can't be opened
+     */
+    public Path resolve(String operand, Path workingDir) throws IOException {
+        Matcher matcher = URI_PATTERN.matcher(operand);
+        if (!matcher.matches())
+            return workingDir.resolve(operand);
+        String scheme = matcher.group(1).toLowerCase(Locale.ROOT); // not the Turkish dotless i
+        String rest = matcher.group(2);
+        switch (scheme) {
+            case "file":
+                return Path.of(toUri(operand));
+            case "zip": {
+                int separator = rest.indexOf("!/");
+                String archive = separator < 0 ? rest : rest.substring(0, separator);
+                String inner = separator < 0 ? "/" : rest.substring(separator + 1);
+                Path archivePath = (workingDir.getFileSystem() == FileSystems.getDefault() ? workingDir.resolve(archive)
+                        : Path.of(archive)).toAbsolutePath().normalize();
+                FileSystem fileSystem = open("zip:" + archivePath, "zip:" + archivePath + "!",
+                        () -> FileSystems.newFileSystem(archivePath, Map.of()));
+                return fileSystem.getPath(inner);
+            }
+            case MemFileSystemProvider.SCHEME: {
+                URI uri = toUri(operand);
+                MemFileSystem fileSystem = MemFileSystemProvider.instance().getOrCreate(uri);
+                if (fileSystem == mounted())
+                    return MemFileSystemProvider.instance().getPath(uri);
+                fileSystems.putIfAbsent("mem://" + fileSystem.getName(), fileSystem);
+                labels.putIfAbsent(fileSystem, "mem://" + fileSystem.getName());
+                return MemFileSystemProvider.instance().getPath(uri);
+            }
+            default: {
+                URI uri = toUri(operand);
+                for (FileSystemProvider provider : FileSystemProvider.installedProviders()) {
+                    if (!provider.getScheme().equalsIgnoreCase(scheme))
+                        continue;
+                    try {
+                        return provider.getPath(uri);
+                    } catch (FileSystemNotFoundException e) {
+                        String key = scheme.equals("jar") ? operand.substring(0, operand.lastIndexOf("!/") < 0
+                                ? operand.length() : operand.lastIndexOf("!/")) : scheme + ":" + uri.getAuthority();
+                        open(key, key + (scheme.equals("jar") ? "!" : ""),
+                                () -> provider.newFileSystem(uri, Map.of()));
+                        return provider.getPath(uri);
+                    }
+                }
+                throw new ProviderNotFoundException("no file system provider for \"" + scheme + ":\"");
+            }
+        }
+    }
+
+    /**
+     * Converts a URI back to a path (like Path.of(URI), but also for the "mem" scheme, which isn't installed).
+     *
+     * @throws FileSystemNotFoundException If the file system of the URI is not open
+     */
+    public static Path pathOf(URI uri) {
+        if (MemFileSystemProvider.SCHEME.equalsIgnoreCase(uri.getScheme()))
+            return MemFileSystemProvider.instance().getPath(uri);
+        return Path.of(uri);
+    }
+
+    private interface Opener {
+        FileSystem open() throws IOException;
+    }
+
+    /**
+     * Returns the cached file system of a key, opening it the first time.
+     */
+    private FileSystem open(String key, String label, Opener opener) throws IOException {
+        FileSystem fileSystem = fileSystems.get(key);
+        if (fileSystem != null && fileSystem.isOpen())
+            return fileSystem;
+        synchronized (this) {
+            fileSystem = fileSystems.get(key);
+            if (fileSystem == null || !fileSystem.isOpen()) {
+                fileSystem = opener.open();
+                fileSystems.put(key, fileSystem);
+                labels.put(fileSystem, label);
+            }
+            return fileSystem;
+        }
+    }
+
+    private static URI toUri(String operand) throws IOException {
+        try {
+            return new URI(operand);
+        } catch (URISyntaxException e) {
+            throw new InvalidPathException(operand, e.getReason());
+        }
+    }
+
+    /**
+     * Formats a path for the prompt and pwd: plain for the default file system, prefixed by its URI otherwise.
+     */
+    public String display(Path path) {
+        if (path.getFileSystem() == FileSystems.getDefault())
+            return path.toString();
+        String label = labels.get(path.getFileSystem());
+        if (label == null)
+            return path.toUri().toString();
+        if (label.equals(String.valueOf(mountPoint)))
+            return path.getNameCount() == 0 ? label : label + path.toAbsolutePath();
+        return label + path.toAbsolutePath();
+    }
+
+    /**
+     * Closes the opened file systems (writing back the changes made to zip archives).
+     */
+    public void closeAll() {
+        for (FileSystem fileSystem : fileSystems.values()) {
+            try {
+                if (!(fileSystem instanceof MemFileSystem))
+                    fileSystem.close();
+            } catch (IOException | UnsupportedOperationException ignored) {
+                // nothing more can be done when the terminal exits
+            }
+        }
+        fileSystems.clear();
+        labels.clear();
+    }
+}
@@ -0,0 +1,319 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * IoScheduler class: paces the file I/O of the commands, shared by all the terminal sessions.
+ * Each session can limit the bytes/second and the operations/second (opens, creates, deletes) of a command
+ * with token buckets, and bulk commands (cp, rm, archives, ...) give way to interactive ones (ls, cd, pwd, ...):
+ * while an interactive command of any session is doing I/O (it did some in the last INTERACTIVE_IDLE_NANOS),
+ * each chunk of bulk I/O waits for it (for a bounded time, so bulk commands are slowed down, never starved).
+ * An interactive command waiting for something else (tail -f, cat reading the keyboard) doesn't hold bulk
+ * commands back, and one that moves more than INTERACTIVE_BYTES (e.g. cat of a huge file) is treated as bulk
+ * from then on.
+ * The I/O helpers report their work with charge() and operation(), which find the command of the calling thread,
+ * so they cost nothing outside a command and don't need to be passed any state.
+ */
+public class IoScheduler {
+    static final long INTERACTIVE_BYTES = 1024 * 1024; // an interactive command moving more is treated as bulk
+    private static final long MAX_DEFER_NANOS = TimeUnit.MILLISECONDS.toNanos(50); // per chunk of bulk I/O
+    // an interactive command without I/O for this long stops holding bulk I/O back
+    private static final long INTERACTIVE_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final Set<String> BULK_COMMANDS = Set.of("cp", "rm", "rmdir", "sort", "uniq", "sha256sum",
+            "md5sum", "crc32", "tar", "zip", "unzip", "diff", "updatedb", "xargs", "parallel");
+    private static final IoScheduler SHARED = new IoScheduler();
+    private static final ThreadLocal<Context> CURRENT = new ThreadLocal<>();
+
+    private final AtomicInteger interactiveCommands = new AtomicInteger();
+    private volatile long lastInteractiveIo = System.nanoTime() - INTERACTIVE_IDLE_NANOS; // of any interactive command
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition interactiveIdle = lock.newCondition();
+    private final AtomicLong deferredNanos = new AtomicLong(); // time bulk I/O waited for interactive commands
+    private final AtomicLong throttledNanos = new AtomicLong(); // time I/O waited for its token buckets
+
+    public static IoScheduler shared() {
+        return SHARED;
+    }
+
+    /**
+     * Limit class: the limits of a command, 0 for no limit
+     */
+    public static class Limit {
+        final long bytesPerSecond;
+        final long opsPerSecond;
+
+        public Limit(long bytesPerSecond, long opsPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.opsPerSecond = opsPerSecond;
+        }
+    }
+
+    /**
+     * Creates the scheduling state of a terminal session.
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * Session class: the limits of one terminal session, with one pair of token buckets per limited command
+     * (a command has the same budget every time it runs, and other sessions have their own)
+     */
+    public class Session {
+        private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+        private final Map<String, TokenBucket[]> buckets = new ConcurrentHashMap<>(); // {bytes, ops}, null if unlimited
+        private final Map<String, Boolean> priorities = new ConcurrentHashMap<>(); // command -> bulk, overrides
+
+        private Session() {
+        }
+
+        public void setLimit(String command, Limit limit) {
+            limits.put(command, limit);
+            buckets.put(command, new TokenBucket[]{
+                    limit.bytesPerSecond > 0 ? new TokenBucket(limit.bytesPerSecond) : null,
+                    limit.opsPerSecond > 0 ? new TokenBucket(limit.opsPerSecond) : null});
+        }
+
+        public boolean removeLimit(String command) {
+            buckets.remove(command);
+            return limits.remove(command) != null;
+        }
+
+        public void setBulk(String command, boolean bulk) {
+            priorities.put(command, bulk);
+        }
+
+        public boolean isBulk(String command) {
+            return priorities.getOrDefault(command, BULK_COMMANDS.contains(command));
+        }
+
+        /**
+         * @return the limited commands and their limits, sorted by command
+         */
+        public Map<String, Limit> limits() {
+            return new TreeMap<>(limits);
+        }
+
+        /**
+         * Starts scheduling the I/O of a command run by the calling thread (until the context is closed).
+         * A command started by another one (e.g. by time) takes over, and the outer one stops being interactive.
+         */
+        public Context begin(String command) {
+            Context previous = CURRENT.get();
+            if (previous != null)
+                previous.demote();
+            TokenBucket[] commandBuckets = buckets.getOrDefault(command, new TokenBucket[2]);
+            Context context = new Context(previous, !isBulk(command), commandBuckets[0], commandBuckets[1]);
+            if (context.interactive)
+                interactiveCommands.incrementAndGet();
+            CURRENT.set(context);
+            return context;
+        }
+    }
+
+    /**
+     * Context class: the scheduling state of one running command
+     */
+    public class Context implements AutoCloseable {
+        private final Context previous;
+        private final TokenBucket bytes, ops;
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile boolean interactive;
+
+        private Context(Context previous, boolean interactive, TokenBucket bytes, TokenBucket ops) {
+            this.previous = previous;
+            this.interactive = interactive;
+            this.bytes = bytes;
+            this.ops = ops;
+        }
+
+        /**
+         * Treats the command as bulk from now on.
+         */
+        private synchronized void demote() {
+            if (interactive) {
+                interactive = false;
+                leaveInteractive();
+            }
+        }
+
+        private void acquire(long byteCount, long opCount) {
+            if (interactive && byteCount > 0 && transferred.addAndGet(byteCount) > INTERACTIVE_BYTES)
+                demote();
+            if (interactive)
+                lastInteractiveIo = System.nanoTime();
+            else
+                deferToInteractive();
+            if (bytes != null && byteCount > 0)
+                throttle(bytes.reserve(byteCount));
+            if (ops != null && opCount > 0)
+                throttle(ops.reserve(opCount));
+        }
+
+        @Override
+        public void close() {
+            demote();
+            if (previous == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Reports bytes about to be read or written by the command of the calling thread, waiting as its limits
+     * and its priority require.
+     */
+    public static void charge(long bytes) {
+        Context context = CURRENT.get();
+        if (context != null)
+            context.acquire(bytes, 0);
+    }
+
+    /**
+     * Reports a file operation (an open, a create, a delete) of the command of the calling thread.
+     */
+    public static void operation() {
+        Context context = CURRENT.get();
+        if (context != null)
+            context.acquire(0, 1);
+    }
+
+    /**
+     * Wraps an action run on other threads (e.g. a parallel stream), so its I/O is charged to the calling command.
+     */
+    public static IntConsumer bind(IntConsumer action) {
+        Context context = CURRENT.get();
+        if (context == null)
+            return action;
+        return index -> {
+            Context previous = CURRENT.get();
+            CURRENT.set(context);
+            try {
+                action.accept(index);
+            } finally {
+                if (previous == null)
+                    CURRENT.remove();
+                else
+                    CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps a task run on another thread (e.g. by an executor), so its I/O is charged to the calling command.
+     */
+    public static <T> Callable<T> bind(Callable<T> task) {
+        Context context = CURRENT.get();
+        if (context == null)
+            return task;
+        return () -> {
+            Context previous = CURRENT.get();
+            CURRENT.set(context);
+            try {
+                return task.call();
+            } finally {
+                if (previous == null)
+                    CURRENT.remove();
+                else
+                    CURRENT.set(previous);
+            }
+        };
+    }
+
+    private void leaveInteractive() {
+        if (interactiveCommands.decrementAndGet() == 0) {
+            lock.lock();
+            try {
+                interactiveIdle.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits while interactive commands are doing I/O, for at most MAX_DEFER_NANOS.
+     */
+    private void deferToInteractive() {
+        long start = System.nanoTime();
+        if (interactiveCommands.get() == 0 || start - lastInteractiveIo >= INTERACTIVE_IDLE_NANOS)
+            return;
+        lock.lock();
+        try {
+            long remaining;
+            // until they end or go quiet (no signal then, the wait times out)
+            while (interactiveCommands.get() > 0 && (remaining = Math.min(start + MAX_DEFER_NANOS,
+                    lastInteractiveIo + INTERACTIVE_IDLE_NANOS) - System.nanoTime()) > 0)
+                interactiveIdle.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // stop waiting, the command sees the interruption itself
+        } finally {
+            lock.unlock();
+            deferredNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void throttle(long waitNanos) {
+        if (waitNanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throttledNanos.addAndGet(waitNanos);
+    }
+
+    /**
+     * @return the number of interactive commands running in all the sessions
+     */
+    public int interactiveCommands() {
+        return interactiveCommands.get();
+    }
+
+    public long deferredMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deferredNanos.get());
+    }
+
+    public long throttledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * TokenBucket class: a rate limit allowing bursts of one second.
+     * A request larger than the available tokens takes them anyway and leaves a debt the caller sleeps off,
+     * so requests of any size get through at the configured rate.
+     */
+    private static class TokenBucket {
+        private final double rate; // tokens per second
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        /**
+         * Takes tokens.
+         *
+         * @return how long the caller must wait, in nanoseconds
+         */
+        synchronized long reserve(long count) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / 1e9);
+            last = now;
+            tokens -= count;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+    }
+}
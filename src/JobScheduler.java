@@ -0,0 +1,384 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * JobScheduler class: runs the commands of xargs and parallel on a bounded pool of threads.
+ * The output of every job is kept in its own buffer (System.out is routed per thread while jobs run),
+ * and the buffers are printed in the order of the jobs, as soon as all the earlier jobs are done.
+ * Jobs that write the same path, or a path inside another one's (mkdir a, then touch a/b), run one after another
+ * in their input order, and commands whose effects aren't known (restore, updatedb, ...) run alone:
+ * a job starts only when the jobs it depends on are done, so waiting jobs don't hold a thread.
+ * A job fails when its command reports an error (exit status 1), and a job reading or writing what a failed job
+ * wrote (or coming after a failed job that ran alone) isn't run and fails too. Waiting only for the order
+ * (a write after the jobs reading the path, a job running alone after all the others) doesn't make a job fail.
+ * At most WINDOW_PER_THREAD jobs per thread are started ahead of the output, so long inputs are streamed.
+ */
+public class JobScheduler {
+    private static final int WINDOW_PER_THREAD = 4;
+    // Commands reading the files of their operands, whose options may take a value (head -n 5, sort -k 2)
+    private static final Set<String> READ_ONLY = Set.of("ls", "cat", "head", "tail", "sort", "uniq",
+            "sha256sum", "md5sum", "crc32", "diff");
+    // Commands that change the state of the session, which jobs can't do
+    static final Set<String> SESSION_COMMANDS = Set.of("cd", "pushd", "popd", "exit", "atomic", "limits",
+            "trace", "record", "xargs", "parallel");
+
+    /**
+     * Runner interface: runs one command of the terminal on the calling thread
+     */
+    interface Runner {
+        /**
+         * @return the exit status of the command: 0 on success
+         */
+        int run(String name, String[] args);
+    }
+
+    private final String command; // the name errors are reported with
+    private final int parallelism;
+    private final Runner runner;
+    private final Function<String, Path> resolver; // operand -> absolute path
+    private final Set<String> available;
+
+    // The jobs that wrote and read each path so far
+    private final PathJobs writers = new PathJobs(), readers = new PathJobs();
+    private CompletableFuture<Boolean> barrier = CompletableFuture.completedFuture(true); // the last exclusive job
+    private CompletableFuture<?> all = CompletableFuture.completedFuture(null); // every job so far
+
+    /**
+     * @param command     The name of the command running the jobs (xargs or parallel)
+     * @param parallelism The maximum number of jobs running at once
+     * @param runner      Runs one command
+     * @param resolver    Resolves an operand against the current directory
+     * @param available   The names of the available commands
+     */
+    public JobScheduler(String command, int parallelism, Runner runner, Function<String, Path> resolver,
+                        Set<String> available) {
+        this.command = command;
+        this.parallelism = parallelism;
+        this.runner = runner;
+        this.resolver = resolver;
+        this.available = available;
+    }
+
+    /**
+     * Job class: one command line, its output and whether it failed
+     */
+    private static class Job {
+        final int number;
+        final String[] line; // the command name followed by its arguments
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CompletableFuture<Boolean> done; // true if the job succeeded
+        boolean failed;
+
+        Job(int number, String[] line) {
+            this.number = number;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Runs jobs until there are no more, printing their outputs in order.
+     *
+     * @param lines The command lines of the jobs (command name followed by arguments), read as jobs are started
+     * @return the number of jobs that failed (the command reported an error, unknown command, not allowed in a job,
+     * an unexpected error, or not run because a job it depends on failed)
+     * @throws IOException If interrupted while waiting for the jobs
+     */
+    public int run(Iterator<String[]> lines) throws IOException {
+        OutputRouter.install();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, command + "-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Job> pending = new ArrayDeque<>();
+        int failed = 0, number = 0;
+        try {
+            while (lines.hasNext()) {
+                Job job = new Job(++number, lines.next());
+                start(job, executor);
+                pending.add(job);
+                // Print the finished jobs at the head, and wait for the head when too many are started
+                while (!pending.isEmpty() && (pending.peek().done.isDone()
+                        || pending.size() >= parallelism * WINDOW_PER_THREAD))
+                    failed += print(pending.poll());
+            }
+            while (!pending.isEmpty())
+                failed += print(pending.poll());
+        } finally {
+            executor.shutdownNow();
+        }
+        return failed;
+    }
+
+    private int print(Job job) throws IOException {
+        try {
+            job.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for job " + job.number);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // jobs catch their errors
+        }
+        System.out.flush(); // the records of the command running the jobs, in ndjson mode
+        OutputRouter.installed.write(job.output.toByteArray()); // the jobs' output is already in records
+        OutputRouter.installed.flush();
+        return job.failed ? 1 : 0;
+    }
+
+    private void start(Job job, ExecutorService executor) {
+        String name = job.line.length > 0 ? job.line[0] : "";
+        String[] args = job.line.length > 0 ? Arrays.copyOfRange(job.line, 1, job.line.length) : new String[0];
+        if (!available.contains(name) || SESSION_COMMANDS.contains(name)) {
+            if (available.contains(name))
+                fail(job, "ENOTSUP", name + ": can't be run as a job");
+            else
+                fail(job, "ENOCMD", name + ": command not found");
+            job.done = CompletableFuture.completedFuture(false);
+            return;
+        }
+
+        // A write waits for the earlier jobs reading or writing the same paths (or the paths above or inside them),
+        // a read for the earlier jobs writing them
+        // Only the jobs writing what it accesses (or running alone before it) make a job fail with them
+        Accesses accesses = accessesOf(name, args);
+        List<CompletableFuture<Boolean>> inputs = new ArrayList<>();
+        List<CompletableFuture<?>> dependencies = new ArrayList<>();
+        if (accesses == null) {
+            dependencies.add(all);
+        } else {
+            inputs.add(barrier);
+            for (Path path : accesses.writes) {
+                writers.addOverlapping(path, inputs);
+                readers.addOverlapping(path, dependencies);
+            }
+            for (Path path : accesses.reads)
+                writers.addOverlapping(path, inputs);
+        }
+        inputs.removeIf(input -> input == null || input.isDone() && input.join());
+        dependencies.addAll(inputs);
+        dependencies.removeIf(dependency -> dependency == null || dependency.isDone());
+
+        Supplier<Boolean> task = () -> {
+            if (inputs.stream().anyMatch(input -> !input.join())) {
+                fail(job, "EFAIL", name + ": not run, a job it depends on failed");
+                return false;
+            }
+            OutputRouter.TARGET.set(job.output);
+            try {
+                if (runner.run(name, args) != 0)
+                    job.failed = true;
+            } catch (RuntimeException e) {
+                fail(job, "EFAIL", name + ": " + e);
+            } finally {
+                System.out.flush();
+                OutputRouter.TARGET.remove();
+            }
+            return !job.failed;
+        };
+        job.done = dependencies.isEmpty() ? CompletableFuture.supplyAsync(task, executor)
+                : CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> task.get(), executor);
+
+        // Register the accesses of the job for the jobs after it
+        if (accesses == null) {
+            barrier = job.done;
+        } else {
+            for (Path path : accesses.writes)
+                writers.add(path, job.done);
+            for (Path path : accesses.reads)
+                readers.add(path, job.done);
+        }
+        all = all.isDone() ? job.done : CompletableFuture.allOf(all, job.done);
+    }
+
+    private void fail(Job job, String code, String message) {
+        job.failed = true;
+        String error = command + ": job " + job.number + ": " + message;
+        byte[] line = StructuredOutput.enabled() ? StructuredOutput.errorRecord(command, code, error)
+                : (error + System.lineSeparator()).getBytes();
+        job.output.write(line, 0, line.length);
+    }
+
+    /**
+     * PathJobs class: the jobs that accessed each path, and the jobs that accessed anything inside each directory
+     */
+    private static class PathJobs {
+        private final Map<Path, CompletableFuture<Boolean>> paths = new HashMap<>();
+        private final Map<Path, CompletableFuture<Boolean>> subtrees = new HashMap<>();
+
+        void add(Path path, CompletableFuture<Boolean> job) {
+            paths.merge(path, job, PathJobs::both);
+            for (Path directory = path; directory != null; directory = directory.getParent())
+                subtrees.merge(directory, job, PathJobs::both);
+        }
+
+        // Done when both jobs are, true if both succeeded
+        private static CompletableFuture<Boolean> both(CompletableFuture<Boolean> previous,
+                                                       CompletableFuture<Boolean> next) {
+            return previous.isDone() && previous.join() ? next : previous.thenCombine(next, Boolean::logicalAnd);
+        }
+
+        /**
+         * Adds the jobs that accessed a path, a directory above it, or anything inside it.
+         */
+        void addOverlapping(Path path, List<? super CompletableFuture<Boolean>> jobs) {
+            jobs.add(subtrees.get(path));
+            for (Path parent = path.getParent(); parent != null; parent = parent.getParent())
+                jobs.add(paths.get(parent));
+        }
+    }
+
+    /**
+     * Accesses class: the paths a command reads and writes
+     */
+    private static class Accesses {
+        final List<Path> reads = new ArrayList<>();
+        final List<Path> writes = new ArrayList<>();
+    }
+
+    /**
+     * Finds the paths a command may read and write.
+     *
+     * @return the absolute paths, or null if they aren't known
+     */
+    private Accesses accessesOf(String name, String[] args) {
+        if (name.equals("time"))
+            return args.length == 0 ? new Accesses() : accessesOf(args[0], Arrays.copyOfRange(args, 1, args.length));
+        List<String> operands = new ArrayList<>();
+        List<String> values = new ArrayList<>(); // the operands of options
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--manifest") || args[i].equals("-@") || (READ_ONLY.contains(name)
+                    && (args[i].equals("-n") || args[i].equals("-k") || args[i].equals("-S")))) {
+                if (i + 1 < args.length)
+                    values.add(args[++i]);
+            } else if (!args[i].startsWith("-")) {
+                operands.add(args[i]);
+            }
+        }
+        List<String> reads = List.of(), writes = List.of();
+        switch (name) {
+            case "cp" -> {
+                if (!operands.isEmpty()) {
+                    reads = operands.subList(0, operands.size() - 1);
+                    writes = new ArrayList<>(List.of(operands.get(operands.size() - 1)));
+                    writes.addAll(values); // the manifest
+                }
+            }
+            case "mkdir", "touch", "rm", "rmdir" -> {
+                if (!values.isEmpty()) // -@ <file>: the operands are in the file
+                    return null;
+                writes = new ArrayList<>();
+                for (String operand : operands)
+                    writes.add(operand.equals("*") ? "." : operand); // rmdir * empties the current directory
+            }
+            case "tar" -> {
+                String mode = args.length > 0 ? args[0] : "";
+                if (mode.startsWith("-c") && !operands.isEmpty()) {
+                    writes = operands.subList(0, 1);
+                    reads = operands.subList(1, operands.size());
+                } else if (mode.startsWith("-x") && !operands.isEmpty()) {
+                    reads = operands.subList(0, 1);
+                    writes = List.of(operands.size() > 1 ? operands.get(1) : ".");
+                } else {
+                    reads = operands;
+                }
+            }
+            case "zip" -> {
+                if (!operands.isEmpty()) {
+                    writes = operands.subList(0, 1);
+                    reads = operands.subList(1, operands.size());
+                }
+            }
+            case "unzip" -> {
+                if (!operands.isEmpty()) {
+                    reads = operands.subList(0, 1);
+                    writes = List.of(operands.size() > 1 ? operands.get(1) : ".");
+                }
+            }
+            case "echo", "pwd", "history", "help", "pool", "locate" -> {
+                // no file operands
+            }
+            case "ls", "cat", "head", "tail", "sort", "uniq", "sha256sum", "md5sum", "crc32", "diff" -> {
+                reads = operands.isEmpty() ? List.of(".") : operands;
+            }
+            default -> {
+                return null; // snapshot, restore, updatedb, ...: run alone
+            }
+        }
+        Accesses accesses = new Accesses();
+        resolveAll(reads, accesses.reads);
+        resolveAll(writes, accesses.writes);
+        return accesses;
+    }
+
+    private void resolveAll(List<String> operands, List<Path> paths) {
+        for (String operand : operands) {
+            try {
+                paths.add(resolver.apply(operand).toAbsolutePath().normalize());
+            } catch (InvalidPathException e) {
+                // the command reports it
+            }
+        }
+    }
+
+    /**
+     * OutputRouter class: the System.out of the terminal once jobs have run (under the records of the ndjson mode),
+     * writing to the buffer of the job running on the calling thread, or to the original output
+     */
+    static class OutputRouter extends OutputStream {
+        static final ThreadLocal<OutputStream> TARGET = new ThreadLocal<>();
+        private static OutputRouter installed;
+
+        private final OutputStream original;
+
+        private OutputRouter(OutputStream original) {
+            this.original = original;
+        }
+
+        static synchronized void install() {
+            if (installed == null) {
+                installed = new OutputRouter(System.out);
+                System.setOut(new PrintStream(installed, true));
+            }
+        }
+
+        private OutputStream target() {
+            OutputStream target = TARGET.get();
+            return target != null ? target : original;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            target().write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
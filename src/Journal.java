@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Journal class: the append-only operation journal that makes the mutating commands crash-safe in atomic mode.
+ * A multi-file operation runs as a transaction: before touching the file system it records its intents
+ * (files staged to temporary copies, directories created, files moved aside to be deleted), then a COMMIT record,
+ * then it applies the changes and records DONE.
+ * If the terminal stops in the middle, the next start rolls the committed transactions forward
+ * and the uncommitted ones back, so every operation either happened completely or not at all.
+ * Every intent is written to the journal before its change is made, so the change can be undone;
+ * only COMMIT records (and the intents of moves that can't be redone) are forced to disk,
+ * and transactions committing at the same time share one force (group commit).
+ * The files staged by a transaction are forced to disk before its COMMIT record, so a committed transaction
+ * never rolls forward onto files the OS hadn't written yet.
+ * A journal belongs to one process, which holds a lock on it: a terminal started while another one runs takes
+ * the next free journal (".1", ".2", ... after the name), and only the journals nobody holds are recovered,
+ * so a terminal never undoes the transactions another one is still running.
+ * Paths are written as URIs, so a record is always one line with space-separated fields.
+ */
+public class Journal {
+    private static final long COMPACT_SIZE = 4L * 1024 * 1024; // truncate the journal past this size when idle
+
+    private final Path file;
+    private final FileChannel channel;
+    private FileLock lock; // held while the journal is open, null if another process holds it
+    private final Object syncLock = new Object();
+    private StringBuilder pending = new StringBuilder(); // records appended but not written yet, guarded by this
+    private long appendedSequence; // guarded by this
+    private long writtenSequence; // guarded by syncLock
+    private long durableSequence; // guarded by syncLock
+    private int openTransactions; // guarded by this
+    private final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+    private Journal(Path file) throws IOException {
+        this.file = file;
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens the journal, first recovering the transactions left unfinished by a previous run.
+     *
+     * @param file   The journal file
+     * @param report Receives one line per recovered transaction
+     * @return the journal, empty and ready for new transactions
+     * @throws IOException If the journal can't be read or written
+     */
+    public static Journal open(Path file, List<String> report) throws IOException {
+        Journal journal = null;
+        for (int slot = 0; journal == null; slot++) {
+            Journal candidate = new Journal(slot(file, slot));
+            if (candidate.tryLock())
+                journal = candidate;
+            else
+                candidate.channel.close();
+        }
+        // The journal taken, and those of the other terminals that stopped without a successor
+        for (int slot = 0; Files.exists(slot(file, slot)); slot++) {
+            Path other = slot(file, slot);
+            if (other.equals(journal.file)) {
+                if (Files.size(other) > 0)
+                    recover(other, report);
+                journal.channel.truncate(0);
+                continue;
+            }
+            Journal orphan = new Journal(other);
+            try {
+                if (orphan.tryLock() && Files.size(other) > 0) {
+                    recover(other, report);
+                    orphan.channel.truncate(0);
+                }
+            } finally {
+                orphan.channel.close(); // releases the lock
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * @return true if a journal of the file (one of its slots) has records, left by a terminal that stopped
+     */
+    public static boolean hasRecords(Path file) throws IOException {
+        for (int slot = 0; Files.exists(slot(file, slot)); slot++) {
+            if (Files.size(slot(file, slot)) > 0)
+                return true;
+        }
+        return false;
+    }
+
+    // The journal of the nth terminal running at once
+    private static Path slot(Path file, int slot) {
+        return slot == 0 ? file : file.resolveSibling(file.getFileName() + "." + slot);
+    }
+
+    // Takes the lock of the journal, false if another process (or another journal of this one) holds it
+    private boolean tryLock() throws IOException {
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        return lock != null;
+    }
+
+    /**
+     * Starts a transaction.
+     *
+     * @param operation The name of the operation (for the recovery report)
+     * @return the transaction
+     */
+    public Transaction begin(String operation) {
+        synchronized (this) {
+            openTransactions++;
+        }
+        Transaction transaction = new Transaction(Long.toString(nextId.getAndIncrement(), 36));
+        append(transaction.id + " BEGIN " + operation);
+        return transaction;
+    }
+
+    /**
+     * Transaction class: the intents of one multi-file operation, applied all together after commit()
+     */
+    public class Transaction {
+        private final String id;
+        private final List<String[]> intents = new ArrayList<>(); // {kind, path, path}
+        private int temporaryCount;
+        private boolean committed, finished;
+
+        private Transaction(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Records that a file is going to be written to a temporary file and renamed to its final path on commit.
+         *
+         * @param target The final path of the file
+         * @return the temporary path to write the file to (in the same directory, so the rename is atomic)
+         * @throws IOException If the intent can't be written to the journal
+         */
+        public Path stage(Path target) throws IOException {
+            Path temporary = target.resolveSibling("." + target.getFileName() + ".tmp-" + id + "-" + temporaryCount++);
+            write(record("STAGE", temporary, target));
+            return temporary;
+        }
+
+        /**
+         * Records that a directory is going to be created (removed again if the transaction rolls back).
+         *
+         * @param directory The directory about to be created (it must not exist: a rollback removes it)
+         * @throws IOException If the intent can't be written to the journal
+         */
+        public void createDirectory(Path directory) throws IOException {
+            write(record("MKDIR", directory, null));
+        }
+
+        /**
+         * Moves files or directories aside, to be deleted on commit (or moved back if the transaction rolls back).
+         * The intents are forced to disk (once for the whole batch) before the moves,
+         * so a moved file can always be found again.
+         *
+         * @param targets The files or directories to delete
+         * @throws IOException If a file can't be moved
+         */
+        public void delete(List<Path> targets) throws IOException {
+            List<Path> trashes = new ArrayList<>();
+            long last = 0;
+            for (Path target : targets) {
+                Path trash = target.resolveSibling("." + target.getFileName() + ".trash-" + id + "-" + temporaryCount++);
+                trashes.add(trash);
+                last = record("TRASH", trash, target);
+            }
+            sync(last);
+            for (int i = 0; i < targets.size(); i++)
+                Files.move(targets.get(i), trashes.get(i), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private synchronized long record(String kind, Path first, Path second) {
+            intents.add(new String[]{kind, first.toUri().toString(), second == null ? null : second.toUri().toString()});
+            return append(id + " " + kind + " " + first.toUri() + (second == null ? "" : " " + second.toUri()));
+        }
+
+        /**
+         * Makes the transaction durable, after this it is rolled forward even if the terminal stops.
+         */
+        public void commit() throws IOException {
+            for (String[] intent : intents) {
+                if (intent[0].equals("STAGE"))
+                    force(Path.of(URI.create(intent[1])));
+            }
+            sync(append(id + " COMMIT"));
+            committed = true;
+        }
+
+        /**
+         * Applies a committed transaction: renames the staged files to their final paths and deletes the trash.
+         *
+         * @throws IOException If a rename or delete fails (the journal keeps the transaction for recovery)
+         */
+        public void apply() throws IOException {
+            if (!committed)
+                throw new IllegalStateException("transaction not committed");
+            boolean done = false;
+            try {
+                rollForward(intents);
+                done = true;
+            } finally {
+                finish(done ? "DONE" : null); // without DONE, the next start completes the transaction
+            }
+        }
+
+        /**
+         * Undoes what the transaction did so far (used when an operation fails before commit).
+         */
+        public void rollback() {
+            if (finished || committed)
+                return;
+            rollBack(intents);
+            finish("ABORT");
+        }
+
+        private void finish(String kind) {
+            finished = true;
+            if (kind != null)
+                append(id + " " + kind);
+            synchronized (Journal.this) {
+                openTransactions--;
+            }
+            compactIfIdle();
+        }
+    }
+
+    /**
+     * Appends a record to the pending records (written by the next write() or sync()).
+     *
+     * @return the sequence number of the record
+     */
+    private synchronized long append(String record) {
+        pending.append(record).append('\n');
+        return ++appendedSequence;
+    }
+
+    /**
+     * Writes the pending records and forces them to disk, unless another thread already did it for this record.
+     * While one thread forces, the others queue on syncLock and their records are written together by the next one.
+     *
+     * @param sequence The sequence number of the record that must be durable
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (durableSequence >= sequence)
+                return;
+            long upTo = writePending();
+            channel.force(false);
+            durableSequence = upTo;
+        }
+    }
+
+    /**
+     * Forces a file written by the caller to disk, before a record or a rename makes it permanent
+     * (nothing to do for files that aren't on the disk, e.g. inside a zip archive)
+     */
+    public static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (UnsupportedOperationException e) {
+            // no file channel on this file system
+        }
+    }
+
+    /**
+     * Writes the pending records to the journal file without forcing them, unless another thread already did it
+     * for this record: an intent must be in the file before its change, so a crashed process (whose writes the
+     * OS still completes) leaves a journal to recover from.
+     *
+     * @param sequence The sequence number of the record that must be written
+     */
+    private void write(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (writtenSequence < sequence)
+                writePending();
+        }
+    }
+
+    // Writes all the pending records (syncLock held), returning the sequence number of the last one
+    private long writePending() throws IOException {
+        String records;
+        long upTo;
+        synchronized (this) {
+            records = pending.toString();
+            pending = new StringBuilder();
+            upTo = appendedSequence;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        writtenSequence = upTo;
+        return upTo;
+    }
+
+    /**
+     * Truncates the journal when no transaction is open and it grew past COMPACT_SIZE.
+     */
+    private void compactIfIdle() {
+        synchronized (syncLock) {
+            synchronized (this) {
+                try {
+                    if (openTransactions == 0 && channel.size() + pending.length() > COMPACT_SIZE) {
+                        pending = new StringBuilder();
+                        channel.truncate(0);
+                        writtenSequence = durableSequence = appendedSequence;
+                    }
+                } catch (IOException ignored) {
+                    // the journal just stays longer
+                }
+            }
+        }
+    }
+
+    // Recovery
+
+    /**
+     * Reads the journal left by a previous run and finishes its transactions:
+     * committed ones are rolled forward, the others are rolled back.
+     */
+    private static void recover(Path file, List<String> report) throws IOException {
+        Map<String, List<String[]>> intents = new LinkedHashMap<>();
+        Map<String, String> operations = new LinkedHashMap<>();
+        Map<String, String> states = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields.length < 2)
+                continue; // a torn last record
+            String id = fields[0];
+            switch (fields[1]) {
+                case "BEGIN" -> {
+                    operations.put(id, fields.length > 2 ? fields[2] : "?");
+                    intents.put(id, new ArrayList<>());
+                    states.put(id, "OPEN");
+                }
+                case "STAGE", "TRASH" -> {
+                    if (fields.length == 4 && intents.containsKey(id))
+                        intents.get(id).add(new String[]{fields[1], fields[2], fields[3]});
+                }
+                case "MKDIR" -> {
+                    if (fields.length == 3 && intents.containsKey(id))
+                        intents.get(id).add(new String[]{fields[1], fields[2], null});
+                }
+                case "COMMIT", "DONE", "ABORT" -> states.put(id, fields[1]);
+                default -> {
+                    // unknown or torn record
+                }
+            }
+        }
+        for (Map.Entry<String, String> transaction : states.entrySet()) {
+            String id = transaction.getKey();
+            try {
+                if (transaction.getValue().equals("COMMIT")) {
+                    rollForward(intents.get(id));
+                    report.add("journal: completed interrupted " + operations.get(id) + " (" + id + ")");
+                } else if (transaction.getValue().equals("OPEN")) {
+                    rollBack(intents.get(id));
+                    report.add("journal: rolled back interrupted " + operations.get(id) + " (" + id + ")");
+                }
+            } catch (IOException | RuntimeException e) {
+                report.add("journal: failed to recover " + operations.get(id) + " (" + id + "): " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Completes the intents of a committed transaction (safe to run again after a crash).
+     */
+    private static void rollForward(List<String[]> intents) throws IOException {
+        for (String[] intent : intents) {
+            Path first = FileSystemRegistry.pathOf(URI.create(intent[1]));
+            if (intent[0].equals("STAGE") && Files.exists(first))
+                Files.move(first, FileSystemRegistry.pathOf(URI.create(intent[2])), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            else if (intent[0].equals("TRASH"))
+                deleteTree(first);
+        }
+    }
+
+    /**
+     * Undoes the intents of an unfinished transaction, last intent first (best effort).
+     */
+    private static void rollBack(List<String[]> intents) {
+        for (int i = intents.size() - 1; i >= 0; i--) {
+            String[] intent = intents.get(i);
+            try {
+                Path first = FileSystemRegistry.pathOf(URI.create(intent[1]));
+                switch (intent[0]) {
+                    case "STAGE" -> Files.deleteIfExists(first);
+                    case "MKDIR" -> Files.deleteIfExists(first); // only if still empty
+                    case "TRASH" -> {
+                        if (Files.exists(first))
+                            Files.move(first, FileSystemRegistry.pathOf(URI.create(intent[2])),
+                                    StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // keep undoing the other intents
+            }
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS))
+            return;
+        try (Stream<Path> tree = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) tree.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    /**
+     * Closes the journal when the terminal exits, emptying it if no transaction is open.
+     */
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (openTransactions == 0) {
+                    pending = new StringBuilder();
+                    channel.truncate(0);
+                    writtenSequence = durableSequence = appendedSequence;
+                }
+            }
+            sync(appendedSequence);
+            channel.close();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * LineReader class: reads the lines of a channel as raw bytes (no charset decoding) through a pooled buffer.
+ * A line is everything up to a '\n' (which is not included in the line), the last line of the input
+ * doesn't need to end with '\n'.
+ */
+public class LineReader implements Closeable {
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private byte[] pending = new byte[256]; // the part of the current line read so far
+    private boolean endOfInput;
+
+    public LineReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        try {
+            this.buffer = BufferPool.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
+        }
+        buffer.flip(); // start empty
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return the bytes of the line without the '\n', or null at the end of the input
+     */
+    public byte[] readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n')
+                    return Arrays.copyOf(pending, length);
+                if (length == pending.length)
+                    pending = Arrays.copyOf(pending, length * 2);
+                pending[length++] = b;
+            }
+            if (endOfInput || !fill())
+                return length > 0 ? Arrays.copyOf(pending, length) : null;
+        }
+    }
+
+    /**
+     * Reads more bytes into the buffer.
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int bytesRead;
+        do {
+            bytesRead = channel.read(buffer);
+        } while (bytesRead == 0);
+        IoScheduler.charge(Math.max(0, bytesRead));
+        buffer.flip();
+        if (bytesRead < 0)
+            endOfInput = true;
+        return bytesRead > 0;
+    }
+
+    /**
+     * Closes the channel and gives the buffer back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        BufferPool.shared().release(buffer);
+        channel.close();
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * LoadTest class: replays a session recorded by the record command as many concurrent sessions of the terminal,
+ * each one in its own generated tree of files, and reports the throughput, the latency percentiles of every command
+ * (and of Parser.parse), the bytes each command allocates, and the GC activity, so a change making cp, ls or
+ * the parser slower shows up in the numbers before a release.
+ * <p>
+ * java LoadTest [options] &lt;recording&gt;, with the options:
+ * -c N sessions at once (4), -n N replays of the recording by each session (1), -w N replays before measuring (1),
+ * --speed X (1 replays at the recorded pace, 2 twice as fast, 0 without pauses),
+ * --dirs N and --files N of the tree of each session (10 directories of 100 files), --size bytes of each file (4K),
+ * --root dir of the trees (a temporary directory by default), --keep to not delete the trees.
+ * <p>
+ * The tree of a session is data.txt and d0/f0.txt ... d&lt;dirs-1&gt;/f&lt;files-1&gt;.txt (text lines),
+ * which a recording made in such a tree can use with relative paths. Sessions run on their own threads,
+ * with their output counted and discarded; exit, record and trace (which would stop or change the process)
+ * are not replayed, and input read by commands (xargs, parallel, tail -f) is an empty line.
+ * When the replay is paced, the latency of a command counts from when the recording says it starts,
+ * so a command delayed by a slow one before it isn't reported as fast.
+ */
+public class LoadTest {
+    private static final Set<String> SKIPPED = Set.of("exit", "record", "trace");
+    private static final String PARSE = "(parse)"; // the row of Parser.parse in the report
+
+    private int sessions = 4;
+    private int iterations = 1;
+    private int warmup = 1;
+    private double speed = 1;
+    private int dirs = 10;
+    private int files = 100;
+    private long size = 4096;
+    private Path root;
+    private boolean keep;
+
+    /**
+     * Command class: a recorded command line to replay
+     */
+    private static class Command {
+        final long offsetNanos;
+        final String line;
+        final String name;
+
+        Command(long offsetNanos, String line, String name) {
+            this.offsetNanos = offsetNanos;
+            this.line = line;
+            this.name = name;
+        }
+    }
+
+    /**
+     * Stats class: the latencies and allocations of a command in one session (merged into the report)
+     */
+    private static class Stats {
+        final Histogram latency = new Histogram();
+        long allocated; // by the session thread, -1 if unknown
+        long notFound;
+
+        void merge(Stats other) {
+            latency.merge(other.latency);
+            allocated = allocated < 0 || other.allocated < 0 ? -1 : allocated + other.allocated;
+            notFound += other.notFound;
+        }
+    }
+
+    /**
+     * Histogram class: counts of values in log-linear buckets (32 per power of two, so within 3%),
+     * constant in size however long the test runs
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            counts[bucket(Math.max(0, value))]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        void merge(Histogram other) {
+            for (int i = 0; i < counts.length; i++)
+                counts[i] += other.counts[i];
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * @return the highest value of the bucket holding the value at this quantile (0 to 1)
+         */
+        long percentile(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(highest(i), max);
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; // >= 0
+            return (exponent + 1) * SUB_BUCKETS + (int) (value >>> exponent) - SUB_BUCKETS;
+        }
+
+        private static long highest(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS - 1;
+            long first = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << exponent;
+            return first + (1L << exponent) - 1;
+        }
+    }
+
+    /**
+     * Session class: a terminal replaying the recording in its own tree
+     */
+    private class Session {
+        final Terminal terminal = new Terminal();
+        final Parser parser = new Parser(); // timed on its own, the terminal parses the line again
+        final Path tree;
+        final Map<String, Stats> stats = new HashMap<>();
+        final CountingOutputStream output = new CountingOutputStream();
+
+        Session(Path tree) {
+            this.tree = tree;
+        }
+
+        void replay(List<Command> commands, int times, boolean measured) {
+            JobScheduler.OutputRouter.TARGET.set(output);
+            try {
+                terminal.execute("cd " + tree);
+                for (int i = 0; i < times; i++)
+                    replayOnce(commands, measured);
+            } finally {
+                System.out.flush();
+                JobScheduler.OutputRouter.TARGET.remove();
+            }
+        }
+
+        private void replayOnce(List<Command> commands, boolean measured) {
+            long start = System.nanoTime();
+            for (Command command : commands) {
+                long due = speed > 0 ? start + (long) (command.offsetNanos / speed) : System.nanoTime();
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                long parseStart = System.nanoTime();
+                parser.parse(command.line);
+                long parsed = System.nanoTime();
+                long allocatedBefore = allocatedBytes();
+                long commandStart = System.nanoTime();
+                boolean found = terminal.execute(command.line);
+                long end = System.nanoTime();
+                long allocatedAfter = allocatedBytes();
+                if (!measured)
+                    continue;
+                stats.computeIfAbsent(PARSE, name -> new Stats()).latency.record(parsed - parseStart);
+                Stats commandStats = stats.computeIfAbsent(command.name, name -> new Stats());
+                commandStats.latency.record(end - (speed > 0 ? Math.min(due, commandStart) : commandStart));
+                if (allocatedBefore < 0)
+                    commandStats.allocated = -1;
+                else if (commandStats.allocated >= 0)
+                    commandStats.allocated += allocatedAfter - allocatedBefore;
+                if (!found)
+                    commandStats.notFound++;
+            }
+        }
+    }
+
+    /**
+     * CountingOutputStream class: discards the output of a session, counting its bytes
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            bytes += length;
+        }
+    }
+
+    // The bytes allocated by the calling thread, -1 if the JVM doesn't count them
+    private static long allocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()
+                ? threads.getCurrentThreadAllocatedBytes() : -1;
+    }
+
+    /**
+     * Entry point of the load test
+     *
+     * @param args The options and the recording (see the class comment)
+     */
+    public static void main(String[] args) {
+        LoadTest test = new LoadTest();
+        String recording = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-")) {
+                    if (recording != null)
+                        throw new IllegalArgumentException("extra operand '" + arg + "'");
+                    recording = arg;
+                    continue;
+                }
+                if (arg.equals("--keep")) {
+                    test.keep = true;
+                    continue;
+                }
+                if (i + 1 == args.length)
+                    throw new IllegalArgumentException("option requires an argument -- '" + arg + "'");
+                String value = args[++i];
+                switch (arg) {
+                    case "-c" -> test.sessions = positive(value);
+                    case "-n" -> test.iterations = positive(value);
+                    case "-w" -> test.warmup = Integer.parseInt(value);
+                    case "--speed" -> test.speed = Double.parseDouble(value);
+                    case "--dirs" -> test.dirs = positive(value);
+                    case "--files" -> test.files = positive(value);
+                    case "--size" -> test.size = Terminal.parseSize(value);
+                    case "--root" -> test.root = Path.of(value);
+                    default -> throw new IllegalArgumentException("invalid argument '" + arg + "'");
+                }
+            }
+            if (recording == null)
+                throw new IllegalArgumentException("missing recording operand");
+            if (test.warmup < 0 || test.speed < 0 || Double.isNaN(test.speed))
+                throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            System.out.println("LoadTest: invalid number");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.out.println("LoadTest: " + e.getMessage());
+            System.out.println("usage: java LoadTest [-c sessions] [-n replays] [-w warmup replays] [--speed X] "
+                    + "[--dirs N] [--files N] [--size bytes] [--root dir] [--keep] <recording>");
+            return;
+        }
+        try {
+            test.run(Path.of(recording));
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("LoadTest: " + e.getMessage());
+        }
+    }
+
+    private static int positive(String value) {
+        int number = Integer.parseInt(value);
+        if (number <= 0)
+            throw new NumberFormatException();
+        return number;
+    }
+
+    private void run(Path recording) throws IOException {
+        List<Command> commands = load(recording);
+        if (commands.isEmpty()) {
+            System.out.println("LoadTest: no commands to replay in " + recording);
+            return;
+        }
+        Path trees = root != null ? Files.createDirectories(root) : Files.createTempDirectory("terminal-load");
+        if (trees.toAbsolutePath().toString().contains(" ")) {
+            System.out.println("LoadTest: the trees can't be under a path with spaces (" + trees + ")");
+            return;
+        }
+
+        // Commands reading input get an empty line (which ends the input of xargs and parallel, and stops tail -f)
+        System.setIn(new InputStream() {
+            @Override
+            public int read() {
+                return '\n';
+            }
+
+            @Override
+            public int available() {
+                return 1;
+            }
+        });
+        JobScheduler.OutputRouter.install(); // the output of each session goes to its counter
+        List<Session> all = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(sessions);
+        try {
+            System.out.println("generating " + sessions + " trees of " + dirs + " x " + files + " files of "
+                    + Trace.formatBytes(size) + " in " + trees);
+            for (int i = 0; i < sessions; i++) {
+                Path tree = trees.resolve("session-" + i);
+                generateTree(tree);
+                all.add(new Session(tree.toAbsolutePath()));
+            }
+
+            if (warmup > 0) {
+                System.out.println("warming up: " + warmup + " replay(s) of " + commands.size() + " commands");
+                replay(executor, all, commands, warmup, false);
+            }
+            System.out.println("replaying " + commands.size() + " commands " + iterations + " time(s) in " + sessions
+                    + " sessions" + (speed > 0 ? " at " + speed + "x the recorded pace" : " without pauses"));
+            Map<String, long[]> gcBefore = gcCounters();
+            Trace.Usage start = Trace.Usage.now();
+            replay(executor, all, commands, iterations, true);
+            Trace.Usage end = Trace.Usage.now();
+            report(all, start, end, gcBefore);
+        } finally {
+            executor.shutdownNow();
+            if (!keep) {
+                for (int i = 0; i < sessions; i++)
+                    deleteTree(trees.resolve("session-" + i));
+                if (root == null)
+                    Files.deleteIfExists(trees);
+            }
+        }
+    }
+
+    private List<Command> load(Path recording) throws IOException {
+        Parser parser = new Parser();
+        List<Command> commands = new ArrayList<>();
+        for (SessionRecording.Entry entry : SessionRecording.load(recording)) {
+            if (parser.parse(entry.line) && !SKIPPED.contains(parser.getCommandName()))
+                commands.add(new Command(entry.offsetMillis * 1_000_000, entry.line, parser.getCommandName()));
+        }
+        if (!commands.isEmpty()) { // the replay starts with the first command
+            long first = commands.get(0).offsetNanos;
+            commands.replaceAll(command -> new Command(command.offsetNanos - first, command.line, command.name));
+        }
+        return commands;
+    }
+
+    private void replay(ExecutorService executor, List<Session> all, List<Command> commands, int times,
+                        boolean measured) throws IOException {
+        List<Future<?>> running = new ArrayList<>();
+        for (Session session : all)
+            running.add(executor.submit(() -> session.replay(commands, times, measured)));
+        try {
+            for (Future<?> session : running)
+                session.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("a session failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Generates the tree of a session: data.txt, and the files of its directories, made of numbered lines
+     */
+    private void generateTree(Path tree) throws IOException {
+        Files.createDirectories(tree);
+        byte[] content = lines(size);
+        Files.write(tree.resolve("data.txt"), content);
+        for (int d = 0; d < dirs; d++) {
+            Path dir = Files.createDirectories(tree.resolve("d" + d));
+            for (int f = 0; f < files; f++)
+                Files.write(dir.resolve("f" + f + ".txt"), content);
+        }
+    }
+
+    private static byte[] lines(long size) {
+        StringBuilder text = new StringBuilder((int) Math.min(size, Integer.MAX_VALUE - 16) + 32);
+        for (int line = 1; text.length() < size; line++)
+            text.append("line ").append(line % 997).append(" of the load test fixture\n"); // repeats, for uniq/sort
+        text.setLength((int) size);
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void deleteTree(Path tree) throws IOException {
+        if (!Files.exists(tree))
+            return;
+        try (Stream<Path> paths = Files.walk(tree)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+
+    // The collections and the milliseconds spent by each collector
+    private static Map<String, long[]> gcCounters() {
+        Map<String, long[]> counters = new TreeMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            counters.put(collector.getName(), new long[]{collector.getCollectionCount(), collector.getCollectionTime()});
+        return counters;
+    }
+
+    private void report(List<Session> all, Trace.Usage start, Trace.Usage end, Map<String, long[]> gcBefore) {
+        Map<String, Stats> merged = new TreeMap<>();
+        long output = 0;
+        for (Session session : all) {
+            session.stats.forEach((name, stats) -> merged.computeIfAbsent(name, key -> new Stats()).merge(stats));
+            output += session.output.bytes;
+        }
+        long commands = merged.entrySet().stream().filter(entry -> !entry.getKey().equals(PARSE))
+                .mapToLong(entry -> entry.getValue().latency.count()).sum();
+        double seconds = (end.wallNanos - start.wallNanos) / 1e9;
+        System.out.println();
+        System.out.printf("%d commands in %.3fs: %.1f commands/s, %s of output%n", commands, seconds,
+                commands / seconds, Trace.formatBytes(output));
+        System.out.println();
+        System.out.printf("%-12s %9s %9s %9s %9s %9s %9s %11s%n",
+                "command", "count", "p50", "p90", "p99", "p99.9", "max", "alloc/op");
+        merged.forEach((name, stats) -> {
+            Histogram latency = stats.latency;
+            System.out.printf("%-12s %9d %9s %9s %9s %9s %9s %11s%s%n", name, latency.count(),
+                    formatNanos(latency.percentile(0.5)), formatNanos(latency.percentile(0.9)),
+                    formatNanos(latency.percentile(0.99)), formatNanos(latency.percentile(0.999)),
+                    formatNanos(latency.max()), name.equals(PARSE) || stats.allocated < 0 ? "-"
+                            : Trace.formatBytes(stats.allocated / Math.max(1, latency.count())),
+                    stats.notFound > 0 ? "  (" + stats.notFound + " not found)" : "");
+        });
+        System.out.println();
+        Map<String, long[]> gcAfter = gcCounters();
+        gcAfter.forEach((collector, after) -> {
+            long[] before = gcBefore.getOrDefault(collector, new long[2]);
+            long time = after[1] - before[1];
+            System.out.printf("gc %s: %d collections, %d ms (%.1f%% of the time)%n", collector, after[0] - before[0],
+                    time, seconds > 0 ? time / 10.0 / seconds : 0);
+        });
+        for (String line : end.since(start)) {
+            if (!line.endsWith("(terminal thread)")) // the main thread only waits for the sessions
+                System.out.println(line);
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000)
+            return nanos + "ns";
+        if (nanos < 1_000_000)
+            return String.format("%.1fus", nanos / 1e3);
+        if (nanos < 1_000_000_000)
+            return String.format("%.2fms", nanos / 1e6);
+        return String.format("%.2fs", nanos / 1e9);
+    }
+}
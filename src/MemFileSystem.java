@@ -0,0 +1,827 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * MemFileSystem class: a tmpfs-like file system kept in memory, served by MemFileSystemProvider under "mem://name/"
+ * (the default one is also mounted at /mem of the terminal).
+ * Inodes are slots of a table made of fixed-size pages of primitive arrays (kind, size and times of every inode),
+ * a directory maps its names to inode numbers, and the content of a file is a list of off-heap chunks
+ * (holes are missing chunks, and a small file only gets a small chunk).
+ * The table, its pages, the directories and the chunks are tagged with the generation that created them:
+ * objects of the current generation are changed in place, older ones are shared with a snapshot and copied
+ * before their first change. So snapshot() and restore() only swap the table and start a new generation,
+ * and a reset after a test costs nothing until the files are written again.
+ * All the operations lock the file system. Access times aren't updated (like a noatime mount),
+ * so reading never copies anything.
+ */
+public class MemFileSystem extends FileSystem {
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; // inodes per page
+    static final int CHUNK_SIZE = 64 * 1024; // bytes of a full chunk of file content
+    private static final int MIN_CHUNK = 256; // smallest chunk, grown by doubling up to CHUNK_SIZE
+    private static final int SHARED = -1; // generation of a chunk shared by two files after a copy
+    private static final byte FREE = 0, FILE = 1, DIRECTORY = 2;
+    private static final byte[] ZEROS = new byte[CHUNK_SIZE];
+
+    private final MemFileSystemProvider provider;
+    private final String name;
+    private volatile boolean open = true;
+    private Table table; // guarded by this
+    private int generation; // guarded by this, objects tagged with an older generation are shared
+    private int restores; // guarded by this, channels opened before the last restore are invalid
+    private final Map<String, Table> snapshots = new LinkedHashMap<>(); // guarded by this
+    private final Map<Integer, Integer> openCounts = new HashMap<>(); // open channels per inode, guarded by this
+    private final Set<Integer> orphans = new HashSet<>(); // deleted while open, freed on last close, guarded by this
+
+    /**
+     * Table class: the inode table, pages of inodes and the numbers of the free inodes
+     */
+    private static final class Table {
+        final int generation;
+        Page[] pages;
+        int count; // inodes in use
+        int next; // lowest inode number never used
+        int[] free; // inode numbers freed, reused first
+        int freeCount;
+
+        Table(int generation) {
+            this.generation = generation;
+            this.pages = new Page[4];
+            this.free = new int[16];
+        }
+
+        Table(int generation, Table other) {
+            this.generation = generation;
+            this.pages = other.pages.clone();
+            this.count = other.count;
+            this.next = other.next;
+            this.free = other.free.clone();
+            this.freeCount = other.freeCount;
+        }
+    }
+
+    /**
+     * Page class: PAGE_SIZE inodes, one array per field
+     */
+    private static final class Page {
+        final int generation;
+        final byte[] kinds;
+        final long[] sizes, created, modified, accessed; // times in milliseconds
+        final Object[] contents; // Directory or FileData
+
+        Page(int generation) {
+            this.generation = generation;
+            kinds = new byte[PAGE_SIZE];
+            sizes = new long[PAGE_SIZE];
+            created = new long[PAGE_SIZE];
+            modified = new long[PAGE_SIZE];
+            accessed = new long[PAGE_SIZE];
+            contents = new Object[PAGE_SIZE];
+        }
+
+        Page(int generation, Page other) {
+            this.generation = generation;
+            kinds = other.kinds.clone();
+            sizes = other.sizes.clone();
+            created = other.created.clone();
+            modified = other.modified.clone();
+            accessed = other.accessed.clone();
+            contents = other.contents.clone();
+        }
+    }
+
+    private static final class Directory {
+        final int generation;
+        final TreeMap<String, Integer> entries;
+
+        Directory(int generation, TreeMap<String, Integer> entries) {
+            this.generation = generation;
+            this.entries = entries;
+        }
+    }
+
+    private static final class FileData {
+        final int generation;
+        ByteBuffer[] chunks; // null for a hole
+        int[] chunkGenerations;
+
+        FileData(int generation, ByteBuffer[] chunks, int[] chunkGenerations) {
+            this.generation = generation;
+            this.chunks = chunks;
+            this.chunkGenerations = chunkGenerations;
+        }
+    }
+
+    MemFileSystem(MemFileSystemProvider provider, String name) {
+        this.provider = provider;
+        this.name = name;
+        this.table = new Table(generation);
+        allocate(DIRECTORY); // the root directory, inode 0
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Snapshots
+
+    /**
+     * Saves the current state under a name (replacing a snapshot of the same name), in constant time.
+     */
+    public synchronized void snapshot(String snapshot) {
+        checkOpen();
+        snapshots.put(snapshot, table);
+        generation++;
+    }
+
+    /**
+     * Brings the file system back to a snapshot, in constant time (the snapshot is kept and can be restored again).
+     * The channels open at that time are closed.
+     *
+     * @return false if there is no snapshot of that name
+     */
+    public synchronized boolean restore(String snapshot) {
+        checkOpen();
+        Table saved = snapshots.get(snapshot);
+        if (saved == null)
+            return false;
+        table = saved;
+        generation++;
+        restores++;
+        openCounts.clear();
+        orphans.clear();
+        return true;
+    }
+
+    /**
+     * Deletes a snapshot, the memory only it used is reclaimed.
+     *
+     * @return false if there is no snapshot of that name
+     */
+    public synchronized boolean deleteSnapshot(String snapshot) {
+        return snapshots.remove(snapshot) != null;
+    }
+
+    /**
+     * @return the names of the snapshots with their number of inodes, oldest first
+     */
+    public synchronized Map<String, Integer> listSnapshots() {
+        Map<String, Integer> list = new LinkedHashMap<>();
+        snapshots.forEach((snapshot, saved) -> list.put(snapshot, saved.count));
+        return list;
+    }
+
+    /**
+     * @return the number of inodes in use
+     */
+    public synchronized int inodeCount() {
+        return table.count;
+    }
+
+    // The inode table
+
+    private Page page(int inode) {
+        return table.pages[inode >>> PAGE_BITS];
+    }
+
+    private static int slot(int inode) {
+        return inode & (PAGE_SIZE - 1);
+    }
+
+    /**
+     * Returns the page of an inode for a change, copying the table and the page first if they are shared.
+     */
+    private Page pageForWrite(int inode) {
+        if (table.generation != generation)
+            table = new Table(generation, table);
+        int index = inode >>> PAGE_BITS;
+        Page page = table.pages[index];
+        if (page.generation != generation)
+            table.pages[index] = page = new Page(generation, page);
+        return page;
+    }
+
+    private Directory directory(int inode) {
+        return (Directory) page(inode).contents[slot(inode)];
+    }
+
+    private Directory directoryForWrite(int inode) {
+        Page page = pageForWrite(inode);
+        Directory directory = (Directory) page.contents[slot(inode)];
+        if (directory.generation != generation)
+            page.contents[slot(inode)] = directory = new Directory(generation, new TreeMap<>(directory.entries));
+        return directory;
+    }
+
+    private FileData fileForWrite(int inode) {
+        Page page = pageForWrite(inode);
+        FileData data = (FileData) page.contents[slot(inode)];
+        if (data.generation != generation)
+            page.contents[slot(inode)] = data = new FileData(generation, data.chunks.clone(), data.chunkGenerations.clone());
+        return data;
+    }
+
+    private int allocate(byte kind) {
+        if (table.generation != generation)
+            table = new Table(generation, table);
+        int inode = table.freeCount > 0 ? table.free[--table.freeCount] : table.next++;
+        int index = inode >>> PAGE_BITS;
+        if (index == table.pages.length)
+            table.pages = Arrays.copyOf(table.pages, index * 2);
+        if (table.pages[index] == null)
+            table.pages[index] = new Page(generation);
+        Page page = pageForWrite(inode);
+        int slot = slot(inode);
+        long now = System.currentTimeMillis();
+        page.kinds[slot] = kind;
+        page.sizes[slot] = 0;
+        page.created[slot] = page.modified[slot] = page.accessed[slot] = now;
+        page.contents[slot] = kind == DIRECTORY ? new Directory(generation, new TreeMap<>())
+                : new FileData(generation, new ByteBuffer[0], new int[0]);
+        table.count++;
+        return inode;
+    }
+
+    private void free(int inode) {
+        Page page = pageForWrite(inode);
+        page.kinds[slot(inode)] = FREE;
+        page.contents[slot(inode)] = null; // the chunks are reclaimed once no snapshot uses them
+        if (table.freeCount == table.free.length)
+            table.free = Arrays.copyOf(table.free, table.free.length * 2);
+        table.free[table.freeCount++] = inode;
+        table.count--;
+    }
+
+    private void touch(int inode) {
+        pageForWrite(inode).modified[slot(inode)] = System.currentTimeMillis();
+    }
+
+    // Paths
+
+    private static String[] namesOf(MemPath path) {
+        return ((MemPath) path.toAbsolutePath().normalize()).names();
+    }
+
+    /**
+     * Walks the first count names from the root.
+     *
+     * @return the inode, or -1 if the path doesn't exist
+     */
+    private int find(String[] names, int count) {
+        int inode = 0;
+        for (int i = 0; i < count; i++) {
+            if (page(inode).kinds[slot(inode)] != DIRECTORY)
+                return -1;
+            Integer next = directory(inode).entries.get(names[i]);
+            if (next == null)
+                return -1;
+            inode = next;
+        }
+        return inode;
+    }
+
+    private int findExisting(MemPath path) throws IOException {
+        checkOpen();
+        String[] names = namesOf(path);
+        int inode = find(names, names.length);
+        if (inode < 0)
+            throw new NoSuchFileException(path.toString());
+        return inode;
+    }
+
+    /**
+     * Finds the directory a path is created in.
+     */
+    private int parentOf(String[] names, MemPath path) throws IOException {
+        if (names.length == 0)
+            throw new FileAlreadyExistsException(path.toString()); // the root
+        int parent = find(names, names.length - 1);
+        if (parent < 0 || page(parent).kinds[slot(parent)] != DIRECTORY)
+            throw new NoSuchFileException(path.toString());
+        return parent;
+    }
+
+    private boolean isDirectory(int inode) {
+        return page(inode).kinds[slot(inode)] == DIRECTORY;
+    }
+
+    // Operations (called by MemFileSystemProvider)
+
+    /**
+     * Creates a file or a directory.
+     *
+     * @return the new inode
+     * @throws FileAlreadyExistsException If the name is already taken
+     */
+    synchronized int create(MemPath path, boolean directory) throws IOException {
+        checkOpen();
+        String[] names = namesOf(path);
+        int parent = parentOf(names, path);
+        String name = names[names.length - 1];
+        if (directory(parent).entries.containsKey(name))
+            throw new FileAlreadyExistsException(path.toString());
+        int inode = allocate(directory ? DIRECTORY : FILE);
+        directoryForWrite(parent).entries.put(name, inode);
+        touch(parent);
+        return inode;
+    }
+
+    /**
+     * Removes a name and its inode (the inode of a file still open is freed when its last channel is closed).
+     *
+     * @throws DirectoryNotEmptyException If the path is a directory with entries
+     */
+    synchronized void delete(MemPath path) throws IOException {
+        checkOpen();
+        String[] names = namesOf(path);
+        if (names.length == 0)
+            throw new FileSystemException(path.toString(), null, "Device or resource busy");
+        int parent = parentOf(names, path);
+        String name = names[names.length - 1];
+        Integer inode = directory(parent).entries.get(name);
+        if (inode == null)
+            throw new NoSuchFileException(path.toString());
+        if (isDirectory(inode) && !directory(inode).entries.isEmpty())
+            throw new DirectoryNotEmptyException(path.toString());
+        directoryForWrite(parent).entries.remove(name);
+        touch(parent);
+        if (openCounts.containsKey(inode))
+            orphans.add(inode);
+        else
+            free(inode);
+    }
+
+    /**
+     * Renames a file or a directory (the inode and its content are not copied).
+     */
+    synchronized void move(MemPath source, MemPath target, boolean replace) throws IOException {
+        int inode = findExisting(source);
+        String[] from = namesOf(source), to = namesOf(target);
+        if (Arrays.equals(from, to))
+            return;
+        boolean intoItself = to.length > from.length && Arrays.equals(from, Arrays.copyOf(to, from.length));
+        if (inode == 0 || (isDirectory(inode) && intoItself))
+            throw new FileSystemException(source.toString(), target.toString(), "Invalid argument");
+        int targetParent = parentOf(to, target);
+        Integer existing = directory(targetParent).entries.get(to[to.length - 1]);
+        if (existing != null) {
+            if (existing == inode)
+                return;
+            if (!replace)
+                throw new FileAlreadyExistsException(target.toString());
+            delete(target);
+        }
+        int sourceParent = parentOf(from, source);
+        directoryForWrite(sourceParent).entries.remove(from[from.length - 1]);
+        directoryForWrite(targetParent).entries.put(to[to.length - 1], inode);
+        touch(sourceParent);
+        touch(targetParent);
+    }
+
+    /**
+     * Copies a file (its chunks are shared by both files until one of them writes to them)
+     * or creates an empty directory (like Files.copy).
+     */
+    synchronized void copy(MemPath source, MemPath target, boolean replace, boolean copyAttributes)
+            throws IOException {
+        int inode = findExisting(source);
+        String[] to = namesOf(target);
+        int existing = find(to, to.length);
+        if (existing == inode)
+            return;
+        if (existing >= 0) {
+            if (!replace)
+                throw new FileAlreadyExistsException(target.toString());
+            delete(target);
+        }
+        boolean directory = isDirectory(inode);
+        int copy = create(target, directory);
+        if (!directory) {
+            FileData data = fileForWrite(inode);
+            Arrays.fill(data.chunkGenerations, SHARED); // both files copy a chunk before changing it
+            pageForWrite(copy).contents[slot(copy)] = new FileData(generation, data.chunks.clone(),
+                    data.chunkGenerations.clone());
+            pageForWrite(copy).sizes[slot(copy)] = page(inode).sizes[slot(inode)];
+        }
+        if (copyAttributes)
+            pageForWrite(copy).modified[slot(copy)] = page(inode).modified[slot(inode)];
+    }
+
+    /**
+     * Lists the names of a directory (a copy, so the caller can iterate without the lock).
+     */
+    synchronized List<String> list(MemPath directory) throws IOException {
+        int inode = findExisting(directory);
+        if (!isDirectory(inode))
+            throw new NotDirectoryException(directory.toString());
+        return new ArrayList<>(directory(inode).entries.keySet());
+    }
+
+    synchronized void checkAccess(MemPath path) throws IOException {
+        findExisting(path); // everything is readable and writable
+    }
+
+    synchronized boolean isSameFile(MemPath path, MemPath other) throws IOException {
+        return findExisting(path) == findExisting(other);
+    }
+
+    synchronized BasicFileAttributes readAttributes(MemPath path) throws IOException {
+        int inode = findExisting(path);
+        Page page = page(inode);
+        int slot = slot(inode);
+        return new Attributes(inode, page.kinds[slot] == DIRECTORY, page.kinds[slot] == DIRECTORY ? 0 : page.sizes[slot],
+                page.created[slot], page.modified[slot], page.accessed[slot]);
+    }
+
+    synchronized void setTimes(MemPath path, FileTime modified, FileTime accessed, FileTime created)
+            throws IOException {
+        int inode = findExisting(path);
+        Page page = pageForWrite(inode);
+        if (modified != null)
+            page.modified[slot(inode)] = modified.toMillis();
+        if (accessed != null)
+            page.accessed[slot(inode)] = accessed.toMillis();
+        if (created != null)
+            page.created[slot(inode)] = created.toMillis();
+    }
+
+    /**
+     * Attributes class: the basic attributes of an inode at the time they were read
+     */
+    private static class Attributes implements BasicFileAttributes {
+        private final int inode;
+        private final boolean directory;
+        private final long size, created, modified, accessed;
+
+        Attributes(int inode, boolean directory, long size, long created, long modified, long accessed) {
+            this.inode = inode;
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+            this.modified = modified;
+            this.accessed = accessed;
+        }
+
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(modified);
+        }
+
+        public FileTime lastAccessTime() {
+            return FileTime.fromMillis(accessed);
+        }
+
+        public FileTime creationTime() {
+            return FileTime.fromMillis(created);
+        }
+
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        public boolean isOther() {
+            return false;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Object fileKey() {
+            return inode;
+        }
+    }
+
+    // File content
+
+    /**
+     * Opens a file, creating or truncating it as the options ask.
+     */
+    synchronized SeekableByteChannel newChannel(MemPath path, Set<? extends OpenOption> options) throws IOException {
+        checkOpen();
+        boolean write = options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND);
+        String[] names = namesOf(path);
+        int inode = find(names, names.length);
+        if (inode < 0) {
+            if (!write || !(options.contains(StandardOpenOption.CREATE) || options.contains(StandardOpenOption.CREATE_NEW)))
+                throw new NoSuchFileException(path.toString());
+            inode = create(path, false);
+        } else if (write && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (isDirectory(inode))
+            throw new FileSystemException(path.toString(), null, "Is a directory");
+        if (write && options.contains(StandardOpenOption.TRUNCATE_EXISTING))
+            truncate(inode, 0);
+        openCounts.merge(inode, 1, Integer::sum);
+        return new MemChannel(inode, restores, !write || options.contains(StandardOpenOption.READ), write,
+                options.contains(StandardOpenOption.APPEND));
+    }
+
+    /**
+     * Checks that a channel was opened since the last restore (its inode may mean another file now).
+     */
+    private void checkChannel(int opened) throws IOException {
+        checkOpen();
+        if (opened != restores)
+            throw new ClosedChannelException();
+    }
+
+    private synchronized int read(int inode, int opened, long position, ByteBuffer destination) throws IOException {
+        checkChannel(opened);
+        long size = page(inode).sizes[slot(inode)];
+        if (position >= size)
+            return -1;
+        FileData data = (FileData) page(inode).contents[slot(inode)];
+        int count = (int) Math.min(destination.remaining(), size - position);
+        for (int done = 0; done < count; ) {
+            long offset = position + done;
+            int index = (int) (offset / CHUNK_SIZE);
+            int from = (int) (offset % CHUNK_SIZE);
+            int length = Math.min(count - done, CHUNK_SIZE - from);
+            ByteBuffer chunk = index < data.chunks.length ? data.chunks[index] : null;
+            int stored = chunk == null ? 0 : Math.max(0, Math.min(length, chunk.capacity() - from));
+            if (stored > 0)
+                destination.put(chunk.slice(from, stored));
+            destination.put(ZEROS, 0, length - stored); // a hole, or the unallocated end of a small chunk
+            done += length;
+        }
+        return count;
+    }
+
+    private synchronized int write(int inode, int opened, long position, ByteBuffer source) throws IOException {
+        checkChannel(opened);
+        int count = source.remaining();
+        if (count == 0)
+            return 0;
+        long end = position + count;
+        if ((end - 1) / CHUNK_SIZE >= Integer.MAX_VALUE)
+            throw new FileSystemException(name, null, "File too large");
+        FileData data = fileForWrite(inode);
+        int last = (int) ((end - 1) / CHUNK_SIZE);
+        if (last >= data.chunks.length) {
+            data.chunks = Arrays.copyOf(data.chunks, last + 1);
+            data.chunkGenerations = Arrays.copyOf(data.chunkGenerations, last + 1);
+        }
+        for (int done = 0; done < count; ) {
+            long offset = position + done;
+            int index = (int) (offset / CHUNK_SIZE);
+            int from = (int) (offset % CHUNK_SIZE);
+            int length = Math.min(count - done, CHUNK_SIZE - from);
+            chunkForWrite(data, index, from + length).put(from, source, source.position(), length);
+            source.position(source.position() + length);
+            done += length;
+        }
+        Page page = pageForWrite(inode);
+        page.sizes[slot(inode)] = Math.max(page.sizes[slot(inode)], end);
+        page.modified[slot(inode)] = System.currentTimeMillis();
+        return count;
+    }
+
+    /**
+     * Returns a chunk the current generation owns, with at least the given capacity
+     * (copying a shared chunk, and growing a small one by doubling).
+     */
+    private ByteBuffer chunkForWrite(FileData data, int index, int needed) {
+        ByteBuffer chunk = data.chunks[index];
+        if (chunk != null && data.chunkGenerations[index] == generation && chunk.capacity() >= needed)
+            return chunk;
+        int capacity = chunk == null ? MIN_CHUNK : chunk.capacity();
+        while (capacity < needed)
+            capacity <<= 1;
+        ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        if (chunk != null)
+            copy.put(0, chunk, 0, chunk.capacity());
+        data.chunks[index] = copy;
+        data.chunkGenerations[index] = generation;
+        return copy;
+    }
+
+    private synchronized void truncate(int inode, long size) {
+        Page page = page(inode);
+        if (size >= page.sizes[slot(inode)])
+            return;
+        FileData data = fileForWrite(inode);
+        int keep = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int i = keep; i < data.chunks.length; i++)
+            data.chunks[i] = null;
+        int from = (int) (size % CHUNK_SIZE);
+        if (from != 0 && keep - 1 < data.chunks.length && data.chunks[keep - 1] != null
+                && data.chunks[keep - 1].capacity() > from) {
+            ByteBuffer chunk = chunkForWrite(data, keep - 1, 0);
+            chunk.put(from, ZEROS, 0, chunk.capacity() - from); // a later extension reads zeros
+        }
+        page = pageForWrite(inode);
+        page.sizes[slot(inode)] = size;
+        page.modified[slot(inode)] = System.currentTimeMillis();
+    }
+
+    private synchronized long size(int inode, int opened) throws IOException {
+        checkChannel(opened);
+        return page(inode).sizes[slot(inode)];
+    }
+
+    private synchronized void closeChannel(int inode, int opened) {
+        if (opened != restores || !open)
+            return;
+        Integer count = openCounts.merge(inode, -1, Integer::sum);
+        if (count != null && count == 0) {
+            openCounts.remove(inode);
+            if (orphans.remove(inode))
+                free(inode);
+        }
+    }
+
+    /**
+     * MemChannel class: a channel reading and writing one in-memory file
+     */
+    private class MemChannel implements SeekableByteChannel {
+        private final int inode, opened;
+        private final boolean readable, writable, append;
+        private long position;
+        private boolean channelOpen = true;
+
+        MemChannel(int inode, int opened, boolean readable, boolean writable, boolean append) {
+            this.inode = inode;
+            this.opened = opened;
+            this.readable = readable;
+            this.writable = writable;
+            this.append = append;
+        }
+
+        private void checkChannelOpen() throws ClosedChannelException {
+            if (!channelOpen)
+                throw new ClosedChannelException();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer destination) throws IOException {
+            checkChannelOpen();
+            if (!readable)
+                throw new NonReadableChannelException();
+            int count = MemFileSystem.this.read(inode, opened, position, destination);
+            if (count > 0)
+                position += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer source) throws IOException {
+            checkChannelOpen();
+            if (!writable)
+                throw new NonWritableChannelException();
+            synchronized (MemFileSystem.this) {
+                if (append)
+                    position = MemFileSystem.this.size(inode, opened);
+                int count = MemFileSystem.this.write(inode, opened, position, source);
+                position += count;
+                return count;
+            }
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            checkChannelOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            checkChannelOpen();
+            if (newPosition < 0)
+                throw new IllegalArgumentException("negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            checkChannelOpen();
+            return MemFileSystem.this.size(inode, opened);
+        }
+
+        @Override
+        public synchronized SeekableByteChannel truncate(long size) throws IOException {
+            checkChannelOpen();
+            if (!writable)
+                throw new NonWritableChannelException();
+            if (size < 0)
+                throw new IllegalArgumentException("negative size");
+            synchronized (MemFileSystem.this) {
+                checkChannel(opened);
+                MemFileSystem.this.truncate(inode, size);
+            }
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return channelOpen;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (channelOpen) {
+                channelOpen = false;
+                closeChannel(inode, opened);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (!open)
+            throw new ClosedFileSystemException();
+    }
+
+    // FileSystem
+
+    @Override
+    public FileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        snapshots.clear();
+        provider.removeFileSystem(name);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(MemPath.parse(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return List.of();
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        return MemPath.parse(this, more.length == 0 ? first : first + "/" + String.join("/", more));
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        // Matches the string form of the path with the default file system's glob/regex engine
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return path -> matcher.matches(Path.of(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("the in-memory file system has no users");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("the in-memory file system has no watch service");
+    }
+}
@@ -0,0 +1,245 @@
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MemFileSystemProvider class: the provider of the "mem" scheme, in-memory file systems named by the URI authority
+ * ("mem:/dir" is the file system named "default", "mem://scratch/dir" the one named "scratch").
+ * It isn't installed through the service loader, FileSystemRegistry hands its URIs to it directly.
+ */
+public class MemFileSystemProvider extends FileSystemProvider {
+    public static final String SCHEME = "mem";
+    private static final String DEFAULT_NAME = "default";
+    private static final MemFileSystemProvider INSTANCE = new MemFileSystemProvider();
+
+    private final Map<String, MemFileSystem> fileSystems = new ConcurrentHashMap<>();
+
+    public static MemFileSystemProvider instance() {
+        return INSTANCE;
+    }
+
+    private static String nameOf(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme()))
+            throw new IllegalArgumentException("URI scheme is not \"" + SCHEME + "\"");
+        return uri.getAuthority() == null || uri.getAuthority().isEmpty() ? DEFAULT_NAME : uri.getAuthority();
+    }
+
+    /**
+     * Returns the file system of a URI, creating it the first time.
+     */
+    public MemFileSystem getOrCreate(URI uri) {
+        return fileSystems.computeIfAbsent(nameOf(uri), name -> new MemFileSystem(this, name));
+    }
+
+    void removeFileSystem(String name) {
+        fileSystems.remove(name);
+    }
+
+    private static MemPath toMemPath(Path path) {
+        if (!(path instanceof MemPath))
+            throw new ProviderMismatchException();
+        return (MemPath) path;
+    }
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) {
+        String name = nameOf(uri);
+        MemFileSystem fileSystem = new MemFileSystem(this, name);
+        if (fileSystems.putIfAbsent(name, fileSystem) != null)
+            throw new FileSystemAlreadyExistsException(name);
+        return fileSystem;
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        MemFileSystem fileSystem = fileSystems.get(nameOf(uri));
+        if (fileSystem == null)
+            throw new FileSystemNotFoundException(uri.toString());
+        return fileSystem;
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String path = uri.getPath() != null ? uri.getPath() : uri.getSchemeSpecificPart(); // "mem:dir" is opaque
+        return getFileSystem(uri).getPath(path.isEmpty() ? "/" : path).toAbsolutePath();
+    }
+
+    // Files
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+            throws IOException {
+        return toMemPath(path).getFileSystem().newChannel(toMemPath(path), options);
+    }
+
+    // Directories
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        List<String> names = toMemPath(dir).getFileSystem().list(toMemPath(dir));
+        return new DirectoryStream<>() {
+            private boolean iterated;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (iterated)
+                    throw new IllegalStateException("iterator already obtained");
+                iterated = true;
+                return names.stream().map(dir::resolve).filter(path -> {
+                    try {
+                        return filter.accept(path);
+                    } catch (IOException e) {
+                        throw new DirectoryIteratorException(e);
+                    }
+                }).iterator();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        toMemPath(dir).getFileSystem().create(toMemPath(dir), true);
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        toMemPath(path).getFileSystem().delete(toMemPath(path));
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        MemPath from = toMemPath(source), to = toMemPath(target);
+        if (from.getFileSystem() != to.getFileSystem())
+            throw new ProviderMismatchException();
+        from.getFileSystem().copy(from, to, List.of(options).contains(StandardCopyOption.REPLACE_EXISTING),
+                List.of(options).contains(StandardCopyOption.COPY_ATTRIBUTES));
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        MemPath from = toMemPath(source), to = toMemPath(target);
+        if (from.getFileSystem() != to.getFileSystem())
+            throw new ProviderMismatchException();
+        from.getFileSystem().move(from, to, List.of(options).contains(StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2))
+            return true;
+        if (!(path2 instanceof MemPath) || toMemPath(path).getFileSystem() != ((MemPath) path2).getFileSystem())
+            return false;
+        return toMemPath(path).getFileSystem().isSameFile(toMemPath(path), (MemPath) path2);
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().startsWith(".");
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        throw new UnsupportedOperationException("the in-memory file system has no file store");
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        toMemPath(path).getFileSystem().checkAccess(toMemPath(path));
+    }
+
+    // Attributes
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class)
+            return null;
+        MemPath memPath = toMemPath(path);
+        return (V) new BasicFileAttributeView() {
+            public String name() {
+                return "basic";
+            }
+
+            public BasicFileAttributes readAttributes() throws IOException {
+                return memPath.getFileSystem().readAttributes(memPath);
+            }
+
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+                    throws IOException {
+                memPath.getFileSystem().setTimes(memPath, lastModifiedTime, lastAccessTime, createTime);
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if (type != BasicFileAttributes.class)
+            throw new UnsupportedOperationException(type.getSimpleName() + " not supported");
+        return (A) toMemPath(path).getFileSystem().readAttributes(toMemPath(path));
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        String names = attributes.startsWith("basic:") ? attributes.substring(6) : attributes;
+        if (names.contains(":"))
+            throw new UnsupportedOperationException("View not supported: " + attributes);
+        BasicFileAttributes read = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> all = new LinkedHashMap<>();
+        all.put("lastModifiedTime", read.lastModifiedTime());
+        all.put("lastAccessTime", read.lastAccessTime());
+        all.put("creationTime", read.creationTime());
+        all.put("size", read.size());
+        all.put("isRegularFile", read.isRegularFile());
+        all.put("isDirectory", read.isDirectory());
+        all.put("isSymbolicLink", false);
+        all.put("isOther", false);
+        all.put("fileKey", read.fileKey());
+        if (names.equals("*"))
+            return all;
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String name : names.split(",")) {
+            if (!all.containsKey(name))
+                throw new IllegalArgumentException("'" + name + "' not recognized");
+            selected.put(name, all.get(name));
+        }
+        return selected;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+        String name = attribute.startsWith("basic:") ? attribute.substring(6) : attribute;
+        BasicFileAttributeView view = getFileAttributeView(path, BasicFileAttributeView.class);
+        switch (name) {
+            case "lastModifiedTime" -> view.setTimes((FileTime) value, null, null);
+            case "lastAccessTime" -> view.setTimes(null, (FileTime) value, null);
+            case "creationTime" -> view.setTimes(null, null, (FileTime) value);
+            default -> throw new IllegalArgumentException("'" + attribute + "' not recognized");
+        }
+    }
+}
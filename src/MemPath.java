@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MemPath class: a path of the in-memory file system ("/" separated, the working directory is the root).
+ */
+public class MemPath implements Path {
+    private final MemFileSystem fileSystem;
+    private final boolean absolute;
+    private final String[] names;
+
+    MemPath(MemFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    /**
+     * Parses a "/"-separated path (empty names, from repeated or trailing slashes, are dropped).
+     */
+    static MemPath parse(MemFileSystem fileSystem, String path) {
+        if (path.indexOf('\0') >= 0)
+            throw new InvalidPathException(path, "Nul character not allowed");
+        List<String> names = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (!name.isEmpty())
+                names.add(name);
+        }
+        return new MemPath(fileSystem, path.startsWith("/"), names.toArray(new String[0]));
+    }
+
+    String[] names() {
+        return names;
+    }
+
+    @Override
+    public MemFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new MemPath(fileSystem, true, new String[0]) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        return names.length == 0 ? null : new MemPath(fileSystem, false, new String[]{names[names.length - 1]});
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || (names.length == 1 && !absolute))
+            return null;
+        return new MemPath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex)
+            throw new IllegalArgumentException();
+        return new MemPath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof MemPath))
+            return false;
+        MemPath path = (MemPath) other;
+        if (path.fileSystem != fileSystem || path.absolute != absolute || path.names.length > names.length)
+            return false;
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof MemPath))
+            return false;
+        MemPath path = (MemPath) other;
+        if (path.fileSystem != fileSystem || path.names.length > names.length || (path.absolute && !equals(path)))
+            return false;
+        for (int i = 1; i <= path.names.length; i++) {
+            if (!path.names[path.names.length - i].equals(names[names.length - i]))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> normalized = new ArrayList<>();
+        for (String name : names) {
+            if (name.equals("."))
+                continue;
+            if (name.equals("..")) {
+                if (!normalized.isEmpty() && !normalized.get(normalized.size() - 1).equals("..")) {
+                    normalized.remove(normalized.size() - 1);
+                    continue;
+                }
+                if (absolute)
+                    continue; // ".." of the root is the root
+            }
+            normalized.add(name);
+        }
+        return new MemPath(fileSystem, absolute, normalized.toArray(new String[0]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        MemPath path = checkPath(other);
+        if (path.absolute)
+            return path;
+        if (path.names.length == 0)
+            return this;
+        String[] resolved = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, resolved, names.length, path.names.length);
+        return new MemPath(fileSystem, absolute, resolved);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(parse(fileSystem, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        MemPath path = checkPath(other);
+        if (path.absolute != absolute)
+            throw new IllegalArgumentException("'other' is different type of Path");
+        int common = 0;
+        while (common < names.length && common < path.names.length && names[common].equals(path.names[common]))
+            common++;
+        List<String> relative = new ArrayList<>();
+        for (int i = common; i < names.length; i++)
+            relative.add("..");
+        relative.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new MemPath(fileSystem, false, relative.toArray(new String[0]));
+    }
+
+    @Override
+    public URI toUri() {
+        try {
+            return new URI(MemFileSystemProvider.SCHEME, fileSystem.getName(), toAbsolutePath().toString(), null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return absolute ? this : new MemPath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path real = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(real);
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("the in-memory file system has no watch service");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(other.toString());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof MemPath && ((MemPath) other).fileSystem == fileSystem
+                && other.toString().equals(toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return (absolute ? "/" : "") + String.join("/", names);
+    }
+
+    private MemPath checkPath(Path other) {
+        if (!(other instanceof MemPath) || ((MemPath) other).fileSystem != fileSystem)
+            throw new ProviderMismatchException();
+        return (MemPath) other;
+    }
+}
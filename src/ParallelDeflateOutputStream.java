@@ -0,0 +1,173 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ParallelDeflateOutputStream class: compresses the bytes written to it into a raw deflate stream,
+ * compressing independent chunks on a worker pool (the technique of pigz).
+ * Each chunk is compressed by its own Deflater and ended with a sync flush, so the compressed chunks
+ * can simply be concatenated, only the last chunk ends the deflate stream.
+ * Compressed chunks are written to the underlying stream in order, and at most a bounded number
+ * of chunks are compressed at once. The CRC-32 and the sizes needed by gzip/zip trailers are tracked.
+ */
+public class ParallelDeflateOutputStream extends OutputStream {
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int chunkLength;
+    private long uncompressedSize;
+    private long compressedSize;
+    private boolean finished;
+
+    /**
+     * @param out        The stream the compressed bytes are written to (not closed by finish())
+     * @param executor   The pool compressing the chunks
+     * @param maxPending The number of chunks compressed at once
+     */
+    public ParallelDeflateOutputStream(OutputStream out, ExecutorService executor, int maxPending) {
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        crc.update(bytes, offset, length);
+        uncompressedSize += length;
+        while (length > 0) {
+            if (chunkLength == CHUNK_SIZE)
+                submitChunk(false);
+            int count = Math.min(length, CHUNK_SIZE - chunkLength);
+            System.arraycopy(bytes, offset, chunk, chunkLength, count);
+            chunkLength += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Hands the current chunk to the pool, writing the oldest compressed chunks first if too many are pending.
+     */
+    private void submitChunk(boolean last) throws IOException {
+        while (pending.size() >= maxPending)
+            writeCompressed(pending.poll());
+        byte[] input = chunk;
+        int inputLength = chunkLength;
+        pending.add(executor.submit(IoScheduler.bind(() -> deflate(input, inputLength, last))));
+        chunk = new byte[CHUNK_SIZE];
+        chunkLength = 0;
+    }
+
+    /**
+     * Compresses one chunk with a fresh Deflater (raw deflate, no zlib header).
+     */
+    private static byte[] deflate(byte[] input, int length, boolean last) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(input, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, count);
+                }
+            } else {
+                // A sync flush ends the chunk on a byte boundary without ending the deflate stream
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeCompressed(Future<byte[]> future) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("compression failed", e.getCause());
+        }
+        out.write(compressed);
+        compressedSize += compressed.length;
+    }
+
+    /**
+     * Ends the deflate stream and writes all the pending chunks, without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+        submitChunk(true);
+        while (!pending.isEmpty())
+            writeCompressed(pending.poll());
+        chunk = null;
+    }
+
+    /**
+     * Discards the chunks that are not written yet (after a failure).
+     */
+    public void abort() {
+        finished = true;
+        for (Future<byte[]> future : pending)
+            future.cancel(true);
+        pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Compresses a small input on the calling thread into a complete raw deflate stream
+     * (used for the many small files of an archive, which are compressed in parallel with each other instead).
+     *
+     * @param input  The bytes to compress
+     * @param length The number of bytes of input to compress
+     * @return the compressed bytes
+     */
+    public static byte[] deflateAll(byte[] input, int length) {
+        return deflate(input, length, true);
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PathCache class: the operands already resolved against the working directory, so an operand used again
+ * (a command repeated, or the jobs of a parallel script) is one lookup instead of being parsed, resolved
+ * against the working directory and normalized again (see FileSystemRegistry.resolvePath).
+ * Cached paths are normalized, so "a/../b" and "b" give the same path and no ".." reaches the file operations.
+ * The cache holds the most recently used operands of one working directory, and is cleared when the working
+ * directory changes. Resolution is lexical, so entries don't go stale when files come and go; the entries
+ * at or under a removed directory (or a file system brought back to a snapshot) are dropped with invalidate.
+ */
+public class PathCache {
+    private static final int OPERANDS = 1024; // cached operands of the working directory
+
+    /**
+     * Resolves an operand against a working directory (FileSystemRegistry::resolvePath).
+     */
+    public interface Resolver {
+        Path resolve(String operand, Path workingDir) throws IOException;
+    }
+
+    // guarded by this
+    private Path directory; // the working directory the operands were resolved against
+    private final Map<String, Path> operands = new LinkedHashMap<>(OPERANDS * 4 / 3 + 1, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Path> eldest) {
+            return size() > OPERANDS;
+        }
+    };
+
+    /**
+     * Returns the normalized path of an operand in a working directory, resolving it the first time.
+     * The resolver runs outside the lock (it may open the file system of a URI).
+     *
+     * @throws IOException If the resolver fails (failures aren't cached)
+     */
+    public Path resolve(Path workingDir, String operand, Resolver resolver) throws IOException {
+        synchronized (this) {
+            if (workingDir.equals(directory)) {
+                Path path = operands.get(operand);
+                if (path != null)
+                    return path;
+            }
+        }
+        Path path = resolver.resolve(operand, workingDir).normalize();
+        synchronized (this) {
+            if (!workingDir.equals(directory)) { // the working directory changed
+                operands.clear();
+                directory = workingDir;
+            }
+            operands.put(operand, path);
+        }
+        return path;
+    }
+
+    /**
+     * Drops the operands resolving to a removed or renamed directory, or under it.
+     */
+    public synchronized void invalidate(Path removed) {
+        Path gone = removed.toAbsolutePath().normalize();
+        operands.values().removeIf(path -> path.getFileSystem() == gone.getFileSystem()
+                && path.toAbsolutePath().normalize().startsWith(gone));
+    }
+
+    /**
+     * Drops every entry of a file system (e.g. the in-memory file system restored to a snapshot).
+     */
+    public synchronized void invalidate(FileSystem fileSystem) {
+        operands.values().removeIf(path -> path.getFileSystem() == fileSystem);
+    }
+}
@@ -0,0 +1,655 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * PathIndex class: the index of path names used by updatedb and locate, kept in one memory-mapped file.
+ * The paths of a tree are stored in walk order, which is their sorted order when '/' sorts before every other byte,
+ * front-coded (each path keeps only the bytes that differ from the previous one) in blocks of BLOCK_SIZE paths.
+ * A trigram table maps every three bytes (ASCII lowercase) found in the paths to the blocks containing them,
+ * as delta-coded varints, so a substring query decodes only the blocks that have all the trigrams of the query.
+ * Directories carry their modification time: an update walks the tree along with the previous index,
+ * and a directory whose time didn't change keeps its entries from the index instead of being listed again
+ * (only its subdirectories are checked).
+ *
+ * File layout: header, path blocks, block offsets (long[]), trigram table (int trigram, int blocks, long offset),
+ * posting lists, root path.
+ */
+public class PathIndex {
+    private static final int MAGIC = 0x544C4F43; // "TLOC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int BLOCK_SIZE = 32; // paths per front-coded block, and per posting
+    private static final long UNREADABLE = Long.MIN_VALUE; // the time of a directory that couldn't be listed
+
+    private final MappedByteBuffer buffer;
+    private final long pathCount;
+    private final int blockCount, trigramCount;
+    private final int blocksOffset, trigramsOffset;
+    private final String root;
+
+    private PathIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("not a path index");
+        pathCount = buffer.getLong(8);
+        blockCount = buffer.getInt(16);
+        trigramCount = buffer.getInt(20);
+        blocksOffset = buffer.getInt(24);
+        trigramsOffset = buffer.getInt(28);
+        int rootOffset = buffer.getInt(36);
+        byte[] rootBytes = new byte[buffer.getInt(rootOffset)];
+        buffer.get(rootOffset + 4, rootBytes);
+        root = new String(rootBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps an index file.
+     *
+     * @throws IOException If the file can't be read or isn't an index
+     */
+    public static PathIndex open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("path index too large");
+            return new PathIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public String root() {
+        return root;
+    }
+
+    public long size() {
+        return pathCount;
+    }
+
+    /**
+     * Finds the paths containing a string, in sorted order.
+     *
+     * @param query      The string to find
+     * @param ignoreCase true to ignore ASCII case
+     * @param limit      The maximum number of paths to find
+     * @param action     Called with each path found
+     * @return the number of paths found
+     */
+    public long search(String query, boolean ignoreCase, long limit, Consumer<String> action) {
+        byte[] pattern = query.getBytes(StandardCharsets.UTF_8);
+        if (ignoreCase)
+            lowerCase(pattern, pattern.length);
+        int[] blocks = candidateBlocks(pattern);
+        long found = 0;
+        byte[] path = new byte[256];
+        byte[] compared = ignoreCase ? new byte[256] : null;
+        for (int i = 0; i < blocks.length && found < limit; i++) {
+            int position = (int) buffer.getLong(blocksOffset + blocks[i] * 8);
+            long first = (long) blocks[i] * BLOCK_SIZE;
+            int pathLength = 0;
+            for (long entry = first; entry < Math.min(first + BLOCK_SIZE, pathCount) && found < limit; entry++) {
+                int shared = readVarint(position);
+                position = varintEnd;
+                int suffix = readVarint(position);
+                position = varintEnd;
+                if (shared + suffix > path.length)
+                    path = Arrays.copyOf(path, Math.max(shared + suffix, path.length * 2));
+                buffer.get(position, path, shared, suffix);
+                position += suffix;
+                pathLength = shared + suffix;
+                position += buffer.get(position) == 1 ? 9 : 1; // kind, and the time of a directory
+                byte[] haystack = path;
+                if (ignoreCase) {
+                    if (compared.length < pathLength)
+                        compared = new byte[path.length];
+                    System.arraycopy(path, 0, compared, 0, pathLength);
+                    lowerCase(compared, pathLength);
+                    haystack = compared;
+                }
+                if (indexOf(haystack, pathLength, pattern) >= 0) {
+                    found++;
+                    action.accept(new String(path, 0, pathLength, StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Intersects the posting lists of the trigrams of a query (rarest first).
+     *
+     * @return the blocks that may contain the query, in order
+     */
+    private int[] candidateBlocks(byte[] pattern) {
+        if (pattern.length < 3) { // no trigram, every block is a candidate
+            int[] all = new int[blockCount];
+            Arrays.setAll(all, i -> i);
+            return all;
+        }
+        byte[] lowered = pattern.clone();
+        lowerCase(lowered, lowered.length);
+        List<Integer> entries = new ArrayList<>();
+        for (int i = 0; i + 3 <= lowered.length; i++) {
+            int entry = findTrigram(trigram(lowered, i));
+            if (entry < 0)
+                return new int[0];
+            if (!entries.contains(entry))
+                entries.add(entry);
+        }
+        entries.sort((x, y) -> Integer.compare(postingCount(x), postingCount(y)));
+        int[] blocks = decodePostings(entries.get(0));
+        for (int i = 1; i < entries.size() && blocks.length > 0; i++)
+            blocks = intersect(blocks, entries.get(i));
+        return blocks;
+    }
+
+    private int findTrigram(int trigram) {
+        int low = 0, high = trigramCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int value = buffer.getInt(trigramsOffset + middle * 16);
+            if (value < trigram)
+                low = middle + 1;
+            else if (value > trigram)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    private int postingCount(int entry) {
+        return buffer.getInt(trigramsOffset + entry * 16 + 4);
+    }
+
+    private int[] decodePostings(int entry) {
+        int[] blocks = new int[postingCount(entry)];
+        int position = (int) buffer.getLong(trigramsOffset + entry * 16 + 8);
+        int block = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            block += readVarint(position);
+            position = varintEnd;
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    /**
+     * Keeps the blocks that are also in the posting list of a trigram (both lists are sorted).
+     */
+    private int[] intersect(int[] blocks, int entry) {
+        int count = postingCount(entry), kept = 0, j = 0;
+        int position = (int) buffer.getLong(trigramsOffset + entry * 16 + 8);
+        int block = 0;
+        for (int i = 0; i < count && j < blocks.length; i++) {
+            block += readVarint(position);
+            position = varintEnd;
+            while (j < blocks.length && blocks[j] < block)
+                j++;
+            if (j < blocks.length && blocks[j] == block)
+                blocks[kept++] = blocks[j++];
+        }
+        return Arrays.copyOf(blocks, kept);
+    }
+
+    private int varintEnd; // the position after the last varint read
+
+    private int readVarint(int position) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get(position++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                varintEnd = position;
+                return value;
+            }
+        }
+    }
+
+    private static int indexOf(byte[] haystack, int length, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void lowerCase(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] >= 'A' && bytes[i] <= 'Z')
+                bytes[i] += 'a' - 'A';
+        }
+    }
+
+    private static int trigram(byte[] bytes, int i) {
+        return (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+    }
+
+    /**
+     * Compares paths in walk order: byte by byte (unsigned), with '/' before every other byte,
+     * so a directory is followed by its whole tree before its next sibling.
+     */
+    private static int comparePaths(byte[] a, int aLength, byte[] b, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                int x = a[i] == '/' ? -1 : a[i] & 0xff, y = b[i] == '/' ? -1 : b[i] & 0xff;
+                return Integer.compare(x, y);
+            }
+        }
+        return Integer.compare(aLength, bLength);
+    }
+
+    /**
+     * The result of an update
+     */
+    public static class Stats {
+        public long paths;
+        public long listed; // directories listed because they changed (or were new)
+        public long reused; // directories whose entries were kept from the previous index
+    }
+
+    /**
+     * Indexes a directory tree, reusing the previous index for the directories that didn't change.
+     * The new index is written next to the file, then renamed over it.
+     *
+     * @param file The index file (it may not exist yet)
+     * @param root The directory to index, a path of the default file system
+     * @return the number of paths indexed and of directories listed/reused
+     * @throws IOException If the root can't be read or the index can't be written
+     */
+    public static Stats update(Path file, Path root) throws IOException {
+        Path absolute = root.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(absolute, BasicFileAttributes.class);
+        if (!attributes.isDirectory())
+            throw new NotDirectoryException(absolute.toString());
+
+        PathIndex previous = null;
+        if (Files.exists(file)) {
+            try {
+                previous = open(file);
+                if (!previous.root.equals(absolute.toString()))
+                    previous = null; // another tree, nothing to reuse
+            } catch (IOException e) {
+                previous = null; // unreadable or corrupt, rebuild it
+            }
+        }
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Stats stats = new Stats();
+        try (Writer writer = new Writer(temporary)) {
+            Walk walk = new Walk(writer, previous == null ? null : previous.new Cursor(), stats);
+            walk.visit(absolute, absolute.toString().getBytes(StandardCharsets.UTF_8),
+                    attributes.lastModifiedTime().toMillis());
+            writer.finish(absolute.toString());
+            stats.paths = writer.count;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return stats;
+    }
+
+    /**
+     * Cursor class: reads the entries of the index in order
+     */
+    private class Cursor {
+        private long index;
+        private int position = HEADER_SIZE;
+        byte[] path = new byte[256];
+        int length;
+        boolean directory;
+        long modified;
+
+        Cursor() {
+            advance();
+        }
+
+        boolean hasEntry() {
+            return length >= 0;
+        }
+
+        void advance() {
+            if (index == pathCount) {
+                index++;
+                length = -1;
+                return;
+            }
+            int shared = readVarint(position); // 0 at the start of a block
+            position = varintEnd;
+            int suffix = readVarint(position);
+            position = varintEnd;
+            if (shared + suffix > path.length)
+                path = Arrays.copyOf(path, Math.max(shared + suffix, path.length * 2));
+            buffer.get(position, path, shared, suffix);
+            position += suffix;
+            length = shared + suffix;
+            directory = buffer.get(position++) == 1;
+            if (directory) {
+                modified = buffer.getLong(position);
+                position += 8;
+            }
+            index++;
+        }
+
+        /**
+         * Skips the entries before a path (they were deleted).
+         */
+        void skipBefore(byte[] target) {
+            while (hasEntry() && comparePaths(path, length, target, target.length) < 0)
+                advance();
+        }
+
+        boolean isAt(byte[] target) {
+            return hasEntry() && comparePaths(path, length, target, target.length) == 0;
+        }
+
+        /**
+         * @return true if the entry is inside a directory (whose path ends with '/')
+         */
+        boolean isInside(byte[] prefix) {
+            return hasEntry() && length > prefix.length && Arrays.equals(path, 0, prefix.length, prefix, 0, prefix.length);
+        }
+    }
+
+    /**
+     * Walk class: the walk of an update, along with the cursor of the previous index
+     */
+    private static class Walk {
+        private final Writer writer;
+        private final Cursor previous; // null without a previous index
+        private final Stats stats;
+
+        Walk(Writer writer, Cursor previous, Stats stats) {
+            this.writer = writer;
+            this.previous = previous;
+            this.stats = stats;
+        }
+
+        void visit(Path directory, byte[] path, long modified) throws IOException {
+            boolean reuse = false;
+            if (previous != null) {
+                previous.skipBefore(path);
+                if (previous.isAt(path)) {
+                    reuse = previous.directory && previous.modified == modified && modified != UNREADABLE;
+                    previous.advance();
+                }
+            }
+            byte[] prefix = childPrefix(path);
+            if (reuse) {
+                stats.reused++;
+                writer.add(path, path.length, true, modified);
+                while (previous.isInside(prefix)) {
+                    if (contains(previous.path, prefix.length, previous.length, '/')) {
+                        previous.advance(); // left over from a subdirectory that was listed again
+                        continue;
+                    }
+                    if (!previous.directory) {
+                        writer.add(previous.path, previous.length, false, 0);
+                        previous.advance();
+                        continue;
+                    }
+                    byte[] child = Arrays.copyOf(previous.path, previous.length);
+                    Path childPath;
+                    BasicFileAttributes attributes;
+                    try {
+                        childPath = directory.resolve(new String(child, prefix.length, child.length - prefix.length,
+                                StandardCharsets.UTF_8));
+                        attributes = readAttributes(childPath);
+                    } catch (InvalidPathException e) {
+                        childPath = null; // a name the platform encoding can't map back
+                        attributes = null;
+                    }
+                    if (attributes == null || !attributes.isDirectory()) {
+                        previous.advance(); // replaced meanwhile: the next update lists this directory again
+                        continue;
+                    }
+                    visit(childPath, child, attributes.lastModifiedTime().toMillis());
+                }
+                return;
+            }
+
+            // Changed or new: list it, in walk order
+            stats.listed++;
+            List<Path> children = new ArrayList<>();
+            Trace.DirectoryWalkEvent walk = new Trace.DirectoryWalkEvent();
+            walk.begin();
+            IoScheduler.operation();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                entries.forEach(children::add);
+            } catch (AccessDeniedException | NoSuchFileException | NotDirectoryException e) {
+                modified = UNREADABLE; // indexed without entries, and listed again by the next update
+            } catch (DirectoryIteratorException e) {
+                throw e.getCause();
+            }
+            if (walk.shouldCommit()) {
+                walk.directory = directory.toString();
+                walk.entries = children.size();
+                walk.commit();
+            }
+            List<byte[]> names = new ArrayList<>();
+            for (Path child : children)
+                names.add(child.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+            Integer[] order = new Integer[children.size()];
+            Arrays.setAll(order, i -> i);
+            Arrays.sort(order, (x, y) -> Arrays.compareUnsigned(names.get(x), names.get(y)));
+            writer.add(path, path.length, true, modified);
+            for (int i : order) {
+                byte[] name = names.get(i);
+                byte[] child = Arrays.copyOf(prefix, prefix.length + name.length);
+                System.arraycopy(name, 0, child, prefix.length, name.length);
+                Path childPath = children.get(i);
+                BasicFileAttributes attributes = readAttributes(childPath);
+                if (attributes == null)
+                    continue; // deleted meanwhile
+                if (attributes.isDirectory()) {
+                    visit(childPath, child, attributes.lastModifiedTime().toMillis());
+                } else {
+                    writer.add(child, child.length, false, 0);
+                }
+            }
+        }
+
+        private static BasicFileAttributes readAttributes(Path path) throws IOException {
+            IoScheduler.operation();
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                return null;
+            }
+        }
+
+        private static byte[] childPrefix(byte[] path) {
+            if (path.length > 0 && path[path.length - 1] == '/')
+                return path; // the root directory
+            byte[] prefix = Arrays.copyOf(path, path.length + 1);
+            prefix[path.length] = '/';
+            return prefix;
+        }
+
+        private static boolean contains(byte[] bytes, int from, int to, char c) {
+            for (int i = from; i < to; i++) {
+                if (bytes[i] == c)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writer class: writes the paths in blocks as they come, and the trigram table at the end
+     */
+    private static class Writer implements AutoCloseable {
+        private final Path file;
+        private final DataOutputStream out;
+        private final List<Long> blockOffsets = new ArrayList<>();
+        private final Map<Integer, IntList> postings = new HashMap<>();
+        private final BitSet blockTrigrams = new BitSet(1 << 24); // the trigrams of the current block
+        private final IntList touched = new IntList();
+        private byte[] previous = new byte[0];
+        private byte[] lowered = new byte[256];
+        private long count;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            OutputStream stream = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream, BufferPool.DEFAULT_BUFFER_SIZE));
+            out.write(new byte[HEADER_SIZE]); // written at the end
+        }
+
+        void add(byte[] path, int length, boolean directory, long modified) throws IOException {
+            int shared = 0;
+            if (count % BLOCK_SIZE == 0) {
+                endBlock();
+                blockOffsets.add((long) out.size());
+            } else {
+                int max = Math.min(length, previous.length);
+                while (shared < max && path[shared] == previous[shared])
+                    shared++;
+            }
+            writeVarint(shared);
+            writeVarint(length - shared);
+            out.write(path, shared, length - shared);
+            out.writeByte(directory ? 1 : 0);
+            if (directory)
+                out.writeLong(modified);
+            checkSize();
+            previous = Arrays.copyOf(path, length);
+            count++;
+
+            if (lowered.length < length)
+                lowered = new byte[Math.max(length, lowered.length * 2)];
+            System.arraycopy(path, 0, lowered, 0, length);
+            lowerCase(lowered, length);
+            for (int i = 0; i + 3 <= length; i++) {
+                int trigram = trigram(lowered, i);
+                if (!blockTrigrams.get(trigram)) {
+                    blockTrigrams.set(trigram);
+                    touched.add(trigram);
+                }
+            }
+        }
+
+        /**
+         * Adds the current block to the posting lists of its trigrams.
+         */
+        private void endBlock() {
+            int block = blockOffsets.size() - 1;
+            for (int i = 0; i < touched.size; i++) {
+                postings.computeIfAbsent(touched.values[i], trigram -> new IntList()).add(block);
+                blockTrigrams.clear(touched.values[i]);
+            }
+            touched.size = 0;
+        }
+
+        void finish(String root) throws IOException {
+            endBlock();
+            int blocksOffset = out.size();
+            for (long offset : blockOffsets)
+                out.writeLong(offset);
+
+            // The table first (its offsets are known from the encoded sizes), then the lists
+            int[] trigrams = postings.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            int trigramsOffset = out.size();
+            long postingsOffset = trigramsOffset + trigrams.length * 16L;
+            long offset = postingsOffset;
+            for (int trigram : trigrams) {
+                IntList blocks = postings.get(trigram);
+                out.writeInt(trigram);
+                out.writeInt(blocks.size);
+                out.writeLong(offset);
+                for (int i = 0, last = 0; i < blocks.size; last = blocks.values[i++])
+                    offset += varintSize(blocks.values[i] - last);
+            }
+            for (int trigram : trigrams) {
+                IntList blocks = postings.get(trigram);
+                for (int i = 0, last = 0; i < blocks.size; last = blocks.values[i++])
+                    writeVarint(blocks.values[i] - last);
+            }
+            int rootOffset = out.size();
+            byte[] rootBytes = root.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(rootBytes.length);
+            out.write(rootBytes);
+            out.flush();
+            checkSize();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(count).putInt(blockOffsets.size()).putInt(trigrams.length)
+                    .putInt(blocksOffset).putInt(trigramsOffset).putInt((int) postingsOffset).putInt(rootOffset);
+            header.clear();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(header, 0);
+                channel.force(false);
+            }
+        }
+
+        private void checkSize() throws IOException {
+            if (out.size() == Integer.MAX_VALUE) // the count stops there
+                throw new IOException("path index too large");
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                out.writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value & ~0x7f) != 0) {
+                size++;
+                value >>>= 7;
+            }
+            return size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * IntList class: a growable list of ints
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
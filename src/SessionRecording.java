@@ -0,0 +1,102 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SessionRecording class: the command lines of a terminal session with the time each one was entered,
+ * written by the record command and replayed by LoadTest.
+ * The file has a header line, then one line per command: the milliseconds since the recording started,
+ * a tab, and the command line as it was typed.
+ */
+public class SessionRecording implements Closeable {
+    private static final String HEADER = "# terminal session recording: <milliseconds since the start><tab><command>";
+
+    private final Path file;
+    private final BufferedWriter writer;
+    private final long start = System.nanoTime();
+
+    private SessionRecording(Path file, BufferedWriter writer) {
+        this.file = file;
+        this.writer = writer;
+    }
+
+    /**
+     * Starts a recording, replacing the file if it exists.
+     *
+     * @throws IOException If the file can't be written
+     */
+    public static SessionRecording start(Path file) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        writer.write(HEADER);
+        writer.newLine();
+        writer.flush();
+        return new SessionRecording(file, writer);
+    }
+
+    /**
+     * @return the file of the recording
+     */
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * Records a command line entered now (written at once, so a session that ends abruptly keeps its commands).
+     */
+    public void add(String line) throws IOException {
+        writer.write(Long.toString((System.nanoTime() - start) / 1_000_000));
+        writer.write('\t');
+        writer.write(line);
+        writer.newLine();
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Entry class: a recorded command line, and when it was entered
+     */
+    public static class Entry {
+        final long offsetMillis; // since the start of the recording
+        final String line;
+
+        Entry(long offsetMillis, String line) {
+            this.offsetMillis = offsetMillis;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Reads the commands of a recording, in the order they were entered.
+     *
+     * @throws IOException If the file can't be read, or isn't a recording
+     */
+    public static List<Entry> load(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine()))
+                throw new IOException(file + ": not a session recording");
+            String line;
+            int number = 1;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                int tab = line.indexOf('\t');
+                try {
+                    entries.add(new Entry(Long.parseLong(line.substring(0, Math.max(tab, 0))), line.substring(tab + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ": line " + number + ": expected <milliseconds><tab><command>");
+                }
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.util.Arrays;
+
+/**
+ * StructuredOutput class: the ndjson output mode of the terminal (--output=ndjson), for programs reading the output.
+ * Every line of output is then a JSON object with a "type":
+ * "entry" (ls), "history", "copy" and "delete" (the files copied and removed by cp, rm and rmdir),
+ * "notice", "error" (with a stable "code", see error), "text" (a line printed by a command without typed records),
+ * and "end" after each command, with its number of errors.
+ * Records are encoded by a hand-written streaming encoder into a byte buffer of the thread, which is written
+ * to the output in one call when it fills, at the end of the command, or when the output is flushed.
+ * Commands report their errors with error(code, message), where the failure happens.
+ * Once installed, System.out turns the other lines printed by commands into "text" records.
+ */
+public class StructuredOutput {
+    private static final int FLUSH_BYTES = 8192; // records buffered before they are written
+
+    private static volatile boolean enabled;
+    private static PrintStream output; // under the System.out of the records (the job output router)
+    private static final ThreadLocal<Encoder> ENCODERS = ThreadLocal.withInitial(() -> new Encoder(output));
+    private static final ThreadLocal<int[]> REPORTED = ThreadLocal.withInitial(() -> new int[1]); // errors, any mode
+
+    /**
+     * Turns the ndjson mode on: System.out becomes the stream converting printed lines into records.
+     */
+    public static synchronized void install() {
+        if (enabled)
+            return;
+        JobScheduler.OutputRouter.install(); // below the records, so the lines of jobs are converted in their thread
+        output = System.out;
+        System.setOut(new PrintStream(new TextRecords(), true, StandardCharsets.UTF_8));
+        enabled = true;
+    }
+
+    /**
+     * @return true in ndjson mode
+     */
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Frame class: a command running on a thread, with the number of errors it printed
+     */
+    public static class Frame {
+        private final String command;
+        private final Frame outer; // of the command running it (e.g. time)
+        private int errors;
+
+        private Frame(String command, Frame outer) {
+            this.command = command;
+            this.outer = outer;
+        }
+    }
+
+    /**
+     * Starts the records of a command on the calling thread.
+     *
+     * @return the frame to end, or null when the ndjson mode is off
+     */
+    public static Frame begin(String command) {
+        if (!enabled)
+            return null;
+        Encoder encoder = ENCODERS.get();
+        encoder.flushLine();
+        encoder.frame = new Frame(command, encoder.frame);
+        return encoder.frame;
+    }
+
+    /**
+     * Ends the records of a command with an "end" record, and writes them.
+     */
+    public static void end(Frame frame) {
+        if (frame == null)
+            return;
+        Encoder encoder = ENCODERS.get();
+        encoder.flushLine();
+        encoder.begin("end").field("errors", frame.errors).end();
+        encoder.frame = frame.outer;
+        encoder.flush();
+    }
+
+    /**
+     * Starts a record of the calling thread, tagged with its running command,
+     * to be completed with fields and written by end().
+     */
+    public static Encoder record(String type) {
+        Encoder encoder = ENCODERS.get();
+        encoder.flushLine();
+        return encoder.begin(type);
+    }
+
+    /**
+     * Prints an informational message: a "notice" record in ndjson mode, a line otherwise.
+     */
+    public static void notice(String message) {
+        if (enabled)
+            record("notice").field("message", message).end();
+        else
+            System.out.println(message);
+    }
+
+    /**
+     * Reports an error of the running command where it happens: an "error" record with its code in ndjson mode,
+     * the message otherwise. The codes are stable: ENOENT (no such file, directory or snapshot),
+     * EACCES (permission denied), ENOTDIR, EISDIR, ENOTEMPTY, EEXIST, EINVAL (invalid path or operands),
+     * ENOCMD (command not found), ENOTSUP (can't be run as a job), EINTR (interrupted), EIO (read or write errors),
+     * EUSAGE (invalid arguments or options), EFAIL (anything else).
+     */
+    public static void error(String code, String message) {
+        REPORTED.get()[0]++;
+        if (enabled)
+            record("error").field("code", code).field("message", message).end();
+        else
+            System.out.println(message);
+    }
+
+    /**
+     * @return the number of errors reported with error() by the calling thread so far, in both output modes
+     * (a command failed if the number grew while it ran)
+     */
+    public static int errorsReported() {
+        return REPORTED.get()[0];
+    }
+
+    /**
+     * Encodes an error record on its own (e.g. for the output of a job), ending with a line separator.
+     */
+    public static byte[] errorRecord(String command, String code, String message) {
+        Encoder encoder = new Encoder(null);
+        encoder.begin("error").field("command", command).field("code", code).field("message", message).end();
+        return Arrays.copyOf(encoder.buffer, encoder.length);
+    }
+
+    /**
+     * Returns the code of a failed file operation, from the type of its exception (EIO if it has no code of its own).
+     */
+    public static String codeOf(IOException e) {
+        if (e instanceof NoSuchFileException)
+            return "ENOENT";
+        if (e instanceof AccessDeniedException)
+            return "EACCES";
+        if (e instanceof NotDirectoryException)
+            return "ENOTDIR";
+        if (e instanceof DirectoryNotEmptyException)
+            return "ENOTEMPTY";
+        if (e instanceof FileAlreadyExistsException)
+            return "EEXIST";
+        return "EIO";
+    }
+
+    /**
+     * Failure class: an error found on another thread (e.g. for one operand of mkdir), reported later in order
+     */
+    public static class Failure {
+        final String code;
+        final String message;
+
+        public Failure(String code, String message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        public void report() {
+            error(code, message);
+        }
+    }
+
+    /**
+     * Encoder class: the records of one thread, encoded as UTF-8 JSON into a reusable buffer,
+     * with the partial line printed by the thread
+     */
+    public static class Encoder {
+        private final PrintStream target; // null to keep the records in the buffer
+        private byte[] buffer = new byte[FLUSH_BYTES + 1024];
+        private int length;
+        private byte[] line = new byte[256]; // printed since the last line separator
+        private int lineLength;
+        private Frame frame;
+
+        private Encoder(PrintStream target) {
+            this.target = target;
+        }
+
+        private Encoder begin(String type) {
+            ensure(1);
+            buffer[length++] = '{';
+            name("type");
+            string(type);
+            if (frame != null)
+                field("command", frame.command);
+            if (type.equals("error") && frame != null)
+                frame.errors++;
+            return this;
+        }
+
+        public Encoder field(String name, String value) {
+            ensure(1);
+            buffer[length++] = ',';
+            name(name);
+            if (value == null)
+                ascii("null");
+            else
+                string(value);
+            return this;
+        }
+
+        public Encoder field(String name, long value) {
+            ensure(1);
+            buffer[length++] = ',';
+            name(name);
+            if (value == Long.MIN_VALUE) {
+                ascii(Long.toString(value));
+                return this;
+            }
+            ensure(20);
+            if (value < 0) {
+                buffer[length++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest != 0; rest /= 10)
+                digits++;
+            for (int i = length + digits - 1; i >= length; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        public Encoder field(String name, boolean value) {
+            ensure(1);
+            buffer[length++] = ',';
+            name(name);
+            ascii(value ? "true" : "false");
+            return this;
+        }
+
+        /**
+         * Completes the record, written at once outside of a command, or when the buffer is full
+         */
+        public void end() {
+            ensure(2);
+            buffer[length++] = '}';
+            buffer[length++] = '\n';
+            if (frame == null || length >= FLUSH_BYTES)
+                flush();
+        }
+
+        private void name(String name) {
+            string(name);
+            ensure(1);
+            buffer[length++] = ':';
+        }
+
+        private void ascii(String value) {
+            ensure(value.length());
+            for (int i = 0; i < value.length(); i++)
+                buffer[length++] = (byte) value.charAt(i);
+        }
+
+        // A JSON string: quotes, backslashes and control characters escaped, the rest encoded as UTF-8
+        private void string(String value) {
+            ensure(value.length() * 3 + 2); // a char is at most 3 bytes, or 6 escaped (ensured there)
+            buffer[length++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    ensure(2 + (value.length() - i) * 3);
+                    buffer[length++] = '\\';
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x20) {
+                    ensure(6 + (value.length() - i) * 3);
+                    escape(c);
+                } else if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | c >> 6);
+                    buffer[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | codePoint >> 18);
+                    buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    buffer[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else if (Character.isSurrogate(c)) {
+                    ensure(6 + (value.length() - i) * 3);
+                    escape(c); // a lone surrogate isn't UTF-8
+                } else {
+                    buffer[length++] = (byte) (0xE0 | c >> 12);
+                    buffer[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    buffer[length++] = (byte) (0x80 | c & 0x3F);
+                }
+            }
+            buffer[length++] = '"';
+        }
+
+        private void escape(char c) {
+            buffer[length++] = '\\';
+            switch (c) {
+                case '\n' -> buffer[length++] = 'n';
+                case '\r' -> buffer[length++] = 'r';
+                case '\t' -> buffer[length++] = 't';
+                default -> {
+                    buffer[length++] = 'u';
+                    for (int shift = 12; shift >= 0; shift -= 4)
+                        buffer[length++] = (byte) Character.forDigit(c >> shift & 0xF, 16);
+                }
+            }
+        }
+
+        private void ensure(int bytes) {
+            if (length + bytes > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+        }
+
+        private void flush() {
+            if (length == 0 || target == null)
+                return;
+            target.write(buffer, 0, length);
+            length = 0;
+            if (buffer.length > FLUSH_BYTES * 16) // don't keep the buffer of a huge line
+                buffer = new byte[FLUSH_BYTES + 1024];
+        }
+
+        private void appendLine(byte[] bytes, int offset, int count) {
+            if (lineLength + count > line.length)
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+            System.arraycopy(bytes, offset, line, lineLength, count);
+            lineLength += count;
+        }
+
+        // Turns the printed line into a "text" record
+        private void endLine() {
+            int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            String text = new String(line, 0, end, StandardCharsets.UTF_8);
+            lineLength = 0;
+            if (line.length > 64 * 1024)
+                line = new byte[256];
+            begin("text").field("line", text).end();
+        }
+
+        // A line printed without its line separator, before a record
+        private void flushLine() {
+            if (lineLength > 0)
+                endLine();
+        }
+    }
+
+    /**
+     * TextRecords class: the System.out of the ndjson mode, turning the lines printed by each thread into records
+     */
+    private static class TextRecords extends OutputStream {
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            Encoder encoder = ENCODERS.get();
+            int end = offset + count;
+            while (offset < end) {
+                int newline = offset;
+                while (newline < end && bytes[newline] != '\n')
+                    newline++;
+                encoder.appendLine(bytes, offset, newline - offset);
+                if (newline == end)
+                    break;
+                encoder.endLine();
+                offset = newline + 1;
+            }
+        }
+
+        @Override
+        public void flush() {
+            ENCODERS.get().flush();
+            output.flush();
+        }
+    }
+}
@@ -1,7 +1,30 @@
 import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * Command interface: used to hold the methods of the supported commands, to be used in the commands HashMap
@@ -16,15 +39,52 @@ interface Command {
  */
 public class Terminal {
     Parser parser;
-    Path currentDirectory;
+    Path currentDirectory; // normalized, set by changeDirectory
+    private String displayedDirectory; // how the prompt and pwd show it
+    private Path previousDirectory; // of cd -
+    private final ArrayDeque<Path> directoryStack = new ArrayDeque<>(); // of pushd and popd, top first
+    // The operands resolved in the recent working directories
+    private final PathCache paths = new PathCache();
+    // The command lines written to a file by the record command, for LoadTest (null when not recording)
+    private SessionRecording recording;
     private ArrayList<String> commandHistory;
     private HashMap<String, Command> commands;
+    // The input of the terminal, read by the prompt and by the commands reading lines (xargs, parallel)
+    private final Scanner input = new Scanner(System.in);
+    // The line tail -f waited for to stop, if it was interrupted before the line came: the next reader takes it
+    private CompletableFuture<String> pendingLine;
+    // Heap bytes sort may use before spilling sorted runs to temporary files (sort -S overrides it)
+    private static final long SORT_MEMORY = Long.getLong("terminal.sort.memory", 64L * 1024 * 1024);
+    // Journal of the atomic mode, shared by all the terminals and opened on first use
+    private static final Path JOURNAL_FILE = Path.of(System.getProperty("terminal.journal",
+            System.getProperty("user.home") + File.separator + ".terminal-journal"));
+    private static Journal journal;
+    // mkdir and touch run their operands in parallel from this many operands
+    private static final int PARALLEL_OPERANDS = 64;
+    // Files cat --async reads ahead of the one it prints (below the reads AsyncFileIO runs at once)
+    private static final int CAT_READ_AHEAD = 8;
+    // Path index of updatedb and locate
+    private static final Path LOCATE_DB = Path.of(System.getProperty("terminal.locate.db",
+            System.getProperty("user.home") + File.separator + ".terminal-locate.db"));
+    private boolean atomic = Boolean.getBoolean("terminal.atomic");
+    // The I/O limits and priorities of this session (-Dterminal.limits=cp:50M:1000,... sets default limits)
+    private final IoScheduler.Session ioSession = IoScheduler.shared().newSession();
+    // Shared by all the terminals, at most 16 asynchronous reads/writes are in flight at once
+    private static final AsyncFileIO asyncIO = new AsyncFileIO(BufferPool.shared(), 16);
+    // File systems opened for URI operands (zip:, mem:, ...), shared by all the terminals until exit,
+    // the in-memory file system is also mounted at /mem (-Dterminal.mem.mount, empty to not mount it)
+    private static final FileSystemRegistry fileSystems =
+            new FileSystemRegistry(System.getProperty("terminal.mem.mount", "/mem"));
 
     public Terminal() {
         parser = new Parser();
-        currentDirectory = Path.of(System.getProperty("user.dir"));
+        changeDirectory(Path.of(System.getProperty("user.dir")));
         commandHistory = new ArrayList<>();
         initCommands();
+        for (String limit : System.getProperty("terminal.limits", "").split(",")) {
+            if (!limit.isBlank())
+                limits(limit.split(":"));
+        }
     }
 
     /**
@@ -35,6 +95,8 @@ public class Terminal {
         // Methods that take a String[] as an argument
         commands.put("echo", this::echo);
         commands.put("cd", this::cd);
+        commands.put("pushd", this::pushd);
+        commands.put("popd", this::popd);
         commands.put("ls", this::ls);
         commands.put("mkdir", this::mkdir);
         commands.put("rmdir", this::rmdir);
@@ -42,47 +104,138 @@ public class Terminal {
         commands.put("rm", this::rm);
         commands.put("cat", this::cat);
         commands.put("cp", this::cp);
+        commands.put("head", this::head);
+        commands.put("tail", this::tail);
+        commands.put("sort", this::sort);
+        commands.put("uniq", this::uniq);
+        commands.put("diff", this::diff);
+        commands.put("updatedb", this::updatedb);
+        commands.put("locate", this::locate);
+        commands.put("xargs", this::xargs);
+        commands.put("parallel", this::parallel);
+        commands.put("sha256sum", (String[] args) -> checksum(Checksums.Algorithm.SHA256, args));
+        commands.put("md5sum", (String[] args) -> checksum(Checksums.Algorithm.MD5, args));
+        commands.put("crc32", (String[] args) -> checksum(Checksums.Algorithm.CRC32C, args));
+        commands.put("tar", this::tar);
+        commands.put("zip", this::zip);
+        commands.put("unzip", this::unzip);
+        commands.put("atomic", this::atomic);
+        commands.put("snapshot", this::snapshot);
+        commands.put("restore", this::restore);
+        commands.put("time", this::time);
+        commands.put("trace", this::trace);
+        commands.put("limits", this::limits);
+        commands.put("record", this::record);
         // Methods that take no arguments
         commands.put("pwd", (String[] args) -> pwd());
-        commands.put("exit", (String[] args) -> System.exit(0));
+        commands.put("exit", (String[] args) -> exit());
         commands.put("history", (String[] args) -> history());
         commands.put("help", (String[] args) -> help());
+        commands.put("pool", (String[] args) -> pool());
     }
 
     /**
      * Prints the prompt of the terminal, which is the current directory
      */
     public void showPrompt() {
-        currentDirectory = currentDirectory.normalize(); // Normalize the path to remove redundant parts
-        System.out.print(currentDirectory + "> ");
+        if (StructuredOutput.enabled()) // no prompt in the output read by programs
+            return;
+        System.out.print(displayedDirectory + "> ");
     }
 
     /**
      * Runs the terminal interface until the user exits
      */
     public void runInterface() {
-        Scanner scanner = new Scanner(System.in);
         while (true) {
             showPrompt();
-            String command = scanner.nextLine();
-            if (parser.parse(command)) {
-                String parsedCommand = parser.getCommandName();
-                if (isCommandAvailable(parsedCommand)) {
-                    commandHistory.add(parser.getNormalizedCommand()); // Add the command to the history
-                    chooseCommandAction();
-                } else {
-                    System.out.println(parsedCommand + ": command not found");
-                }
-            } // else do nothing (empty command)
+            String line = nextInputLine();
+            if (line == null) { // end of the input
+                exit();
+                return;
+            }
+            execute(line);
+        }
+    }
+
+    /**
+     * Reads the next line of the input, taking first the line a stopped tail -f was waiting for
+     *
+     * @return the line, or null at the end of the input
+     */
+    private String nextInputLine() {
+        if (pendingLine != null) {
+            String line = pendingLine.join();
+            pendingLine = null;
+            return line;
+        }
+        return input.hasNextLine() ? input.nextLine() : null;
+    }
+
+    /**
+     * Runs a command line as typed at the prompt: parses it, adds it to the history (and to the recording)
+     * and executes the command
+     *
+     * @param command The command line
+     * @return false if the command is not available
+     */
+    boolean execute(String command) {
+        if (!parser.parse(command))
+            return true; // do nothing (empty command)
+        String parsedCommand = parser.getCommandName();
+        if (!isCommandAvailable(parsedCommand)) {
+            StructuredOutput.Frame frame = StructuredOutput.begin(parsedCommand);
+            StructuredOutput.error("ENOCMD", parsedCommand + ": command not found");
+            StructuredOutput.end(frame);
+            return false;
+        }
+        commandHistory.add(parser.getNormalizedCommand()); // Add the command to the history
+        if (recording != null && !parsedCommand.equals("record")) {
+            try {
+                recording.add(command);
+            } catch (IOException e) {
+                StructuredOutput.error("EIO", "record: cannot write '" + recording.file() + "': Error writing the file"
+                        + " (recording stopped)");
+                stopRecording();
+            }
         }
+        chooseCommandAction();
+        return true;
     }
 
     /**
      * Executes the command that was parsed by the parser
      */
     public void chooseCommandAction() {
-        commands.get(parser.getCommandName()) // get the command from the commands HashMap
-                .execute(parser.getArgs()); // execute the command with the arguments
+        runCommand(parser.getCommandName(), parser.getArgs());
+    }
+
+    /**
+     * Executes a command, with its file I/O paced by the I/O scheduler, as a JFR event when a trace is recorded
+     *
+     * @param name The name of the command (must be available)
+     * @param args The arguments of the command
+     * @return the exit status of the command: 0 if it reported no error, 1 otherwise
+     */
+    private int runCommand(String name, String[] args) {
+        int errors = StructuredOutput.errorsReported();
+        Trace.CommandEvent event = new Trace.CommandEvent();
+        event.begin();
+        IoScheduler.Context ioContext = ioSession.begin(name);
+        StructuredOutput.Frame frame = StructuredOutput.begin(name); // the records of the command in ndjson mode
+        try {
+            commands.get(name) // get the command from the commands HashMap
+                    .execute(args); // execute the command with the arguments
+        } finally {
+            StructuredOutput.end(frame);
+            ioContext.close();
+            if (event.shouldCommit()) {
+                event.command = name;
+                event.arguments = String.join(" ", args);
+                event.commit();
+            }
+        }
+        return StructuredOutput.errorsReported() == errors ? 0 : 1;
     }
 
     /**
@@ -114,23 +267,80 @@ public class Terminal {
      * @param args The array of arguments to print (currently only supports 1 argument, which is -r)
      */
     public void ls(String[] args) {
-        File[] contents = currentDirectory.toFile().listFiles();
-        try {
+        List<Path> contents = new ArrayList<>();
+        Trace.DirectoryWalkEvent walk = new Trace.DirectoryWalkEvent();
+        walk.begin();
+        IoScheduler.operation();
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(currentDirectory)) {
+            directory.forEach(contents::add);
+            if (walk.shouldCommit()) {
+                walk.directory = currentDirectory.toString();
+                walk.entries = contents.size();
+                walk.commit();
+            }
             if (args.length == 1 && args[0].equals("-r")) {
-                Arrays.sort(contents, Comparator.reverseOrder());
+                contents.sort(Comparator.reverseOrder());
             } else if (args.length > 1) {
-                System.out.println("ls: too many arguments (currently only supports one argument)");
+                StructuredOutput.error("EUSAGE", "ls: too many arguments (currently only supports one argument)");
                 return;
             } else if (args.length == 1) {
-                System.out.println("ls: invalid argument (currently only supports -r)");
+                StructuredOutput.error("EUSAGE", "ls: invalid argument (currently only supports -r)");
                 return;
             }
-            for (File file : contents) {
-                System.out.println(file.getName());
+            for (Path path : contents) {
+                if (StructuredOutput.enabled())
+                    listEntry(path);
+                else
+                    System.out.println(path.getFileName());
             }
-        } catch (SecurityException | NullPointerException e) {
-            System.out.println("ls: failed to list contents of '" + currentDirectory + "': Permission denied");
+        } catch (IOException | DirectoryIteratorException | SecurityException e) {
+            StructuredOutput.error("EACCES", "ls: failed to list contents of '" + currentDirectory + "': Permission denied");
+        }
+    }
+
+    /**
+     * Prints an entry listed by ls as an "entry" record, with its type, size and modification time
+     */
+    private static void listEntry(Path path) {
+        StructuredOutput.Encoder entry = StructuredOutput.record("entry")
+                .field("name", path.getFileName().toString());
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            entry.field("kind", attributes.isDirectory() ? "directory" : attributes.isRegularFile() ? "file"
+                            : attributes.isSymbolicLink() ? "symlink" : "other")
+                    .field("size", attributes.size())
+                    .field("modified", attributes.lastModifiedTime().toString());
+        } catch (IOException e) {
+            entry.field("kind", null); // removed since it was listed
         }
+        entry.end();
+    }
+
+    /**
+     * Reports a file copied (or found already copied by cp -r --resume) as a "copy" record in ndjson mode
+     *
+     * @param bytes The size of the file (-1 if unknown)
+     */
+    private static void copied(Path source, Path destination, String status, long bytes) {
+        if (!StructuredOutput.enabled())
+            return;
+        StructuredOutput.Encoder copy = StructuredOutput.record("copy")
+                .field("source", fileSystems.display(source))
+                .field("destination", fileSystems.display(destination))
+                .field("status", status);
+        if (bytes >= 0)
+            copy.field("bytes", bytes);
+        copy.end();
+    }
+
+    /**
+     * Reports a removed file or directory as a "delete" record in ndjson mode
+     */
+    private static void deleted(Path path, String kind) {
+        if (StructuredOutput.enabled())
+            StructuredOutput.record("delete").field("path", fileSystems.display(path)).field("kind", kind)
+                    .field("status", "deleted").end();
     }
 
     /**
@@ -139,19 +349,55 @@ public class Terminal {
      * @param args The array of paths of files/directories to copy (currently only supports two files/directories)
      */
     public void cp(String[] args) {
+        if (args.length > 0 && args[0].equals("--async")) {
+            asyncCp(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // --resume makes cp -r keep a checkpoint, and continue the copy of an earlier run that stopped
+        boolean resume = Arrays.asList(args).contains("--resume");
+        if (resume) {
+            args = Arrays.stream(args).filter(arg -> !arg.equals("--resume")).toArray(String[]::new);
+            if (args.length != 3 || !args[0].equals("-r")) {
+                StructuredOutput.error("EUSAGE", "cp: --resume is only supported with -r");
+                return;
+            } else if (Arrays.asList(args).contains("--manifest")) {
+                StructuredOutput.error("EUSAGE", "cp: --resume can't be combined with --manifest");
+                return;
+            } else if (atomic) {
+                StructuredOutput.error("EUSAGE", "cp: --resume is not supported in atomic mode (an interrupted copy is undone)");
+                return;
+            }
+        }
+        // --manifest <file> writes the SHA-256 of every file copied by cp -r
+        String manifest = null;
+        int manifestIndex = Arrays.asList(args).indexOf("--manifest");
+        if (manifestIndex >= 0) {
+            if (manifestIndex + 1 == args.length) {
+                StructuredOutput.error("EUSAGE", "cp: option '--manifest' requires an argument");
+                return;
+            }
+            manifest = args[manifestIndex + 1];
+            List<String> rest = new ArrayList<>(Arrays.asList(args));
+            rest.subList(manifestIndex, manifestIndex + 2).clear();
+            args = rest.toArray(new String[0]);
+            if (args.length != 3 || !args[0].equals("-r")) {
+                StructuredOutput.error("EUSAGE", "cp: --manifest is only supported with -r");
+                return;
+            }
+        }
         if (args.length == 0) {
-            System.out.println("cp: missing file operand");
+            StructuredOutput.error("EUSAGE", "cp: missing file operand");
         } else if (args.length == 1) {
             if (args[0].equals("-r"))
-                System.out.println("cp: missing file operand");
+                StructuredOutput.error("EUSAGE", "cp: missing file operand");
             else
-                System.out.println("cp: missing destination file operand after '" + args[0] + "'");
+                StructuredOutput.error("EUSAGE", "cp: missing destination file operand after '" + args[0] + "'");
         } else if (args.length == 2 && args[0].equals("-r")) {
-            System.out.println("cp: missing destination file operand after '" + args[1] + "'");
+            StructuredOutput.error("EUSAGE", "cp: missing destination file operand after '" + args[1] + "'");
         } else if (args.length == 3 && !args[0].equals("-r")) {
-            System.out.println("cp: invalid argument (currently only supports -r)");
+            StructuredOutput.error("EUSAGE", "cp: invalid argument (currently only supports -r)");
         } else if (args.length > 3) {
-            System.out.println("cp: too many arguments");
+            StructuredOutput.error("EUSAGE", "cp: too many arguments");
         } else {
             String src, dest;
             boolean isRecursive = args.length == 3;
@@ -163,30 +409,156 @@ public class Terminal {
                 dest = args[1];
             }
             try {
-                Path srcPath = currentDirectory.resolve(src);
-                Path destPath = currentDirectory.resolve(dest);
+                Path srcPath = resolvePath(src);
+                Path destPath = resolvePath(dest);
                 if (isRecursive && !Files.isDirectory(srcPath)) {
-                    System.out.println("cp: failed to copy '" + src + "': Not a directory");
+                    StructuredOutput.error("ENOTDIR", "cp: failed to copy '" + src + "': Not a directory");
+                } else if (isRecursive && manifest != null) {
+                    try (Checksums.ManifestWriter manifestWriter = new Checksums.ManifestWriter(
+                            resolvePath(manifest), Checksums.Algorithm.SHA256, destPath, dest)) {
+                        copyTree(srcPath, destPath, manifestWriter);
+                    }
+                } else if (isRecursive && resume) {
+                    resumeTree(srcPath, destPath);
                 } else if (isRecursive) {
-                    copyDirectory(new File(srcPath.toString()), new File(destPath.toString()));
+                    copyTree(srcPath, destPath, null);
                 } else {
                     if (Files.exists(destPath) && Files.isDirectory(destPath))
-                        System.out.println("cp: failed to copy '" + src + ", '" + dest + "' Already exists as a directory");
+                        StructuredOutput.error("EISDIR",
+                                "cp: failed to copy '" + src + ", '" + dest + "' Already exists as a directory");
                     else if (Files.isDirectory(srcPath))
-                        System.out.println("cp: failed to copy '" + src + "': Is a directory");
+                        StructuredOutput.error("EISDIR", "cp: failed to copy '" + src + "': Is a directory");
                     else
-                        Files.copy(srcPath, destPath, StandardCopyOption.REPLACE_EXISTING);
+                        copied(srcPath, destPath, "copied", atomic ? copyFileAtomic(srcPath, destPath)
+                                : copyFile(srcPath, destPath));
                 }
             } catch (InvalidPathException e) {
-                System.out.println("cp: failed to copy '" + src + "': Invalid path");
+                StructuredOutput.error("EINVAL", "cp: failed to copy '" + src + "': Invalid path");
             } catch (NoSuchFileException e) {
-                System.out.println("cp: failed to copy '" + src + "': No such file or directory");
+                StructuredOutput.error("ENOENT", "cp: failed to copy '" + src + "': No such file or directory");
+            } catch (FileSystemException e) {
+                if ("are the same file".equals(e.getReason()))
+                    StructuredOutput.error("EINVAL", "cp: '" + src + "' and '" + dest + "' are the same file");
+                else
+                    StructuredOutput.error("EACCES", "cp: failed to copy '" + src + "': Permission denied");
             } catch (IOException e) {
-                System.out.println("cp: failed to copy '" + src + "': Permission denied");
+                StructuredOutput.error("EACCES", "cp: failed to copy '" + src + "': Permission denied");
             }
         }
     }
 
+    /**
+     * cp --async: copies one or more files at the same time using asynchronous I/O
+     * If the destination is an existing directory, every file is copied into it,
+     * otherwise exactly one file must be given and it is copied to the destination path.
+     *
+     * @param args The array of paths of the files to copy, followed by the destination
+     */
+    private void asyncCp(String[] args) {
+        if (args.length == 0) {
+            StructuredOutput.error("EUSAGE", "cp: missing file operand");
+            return;
+        } else if (args.length == 1) {
+            StructuredOutput.error("EUSAGE", "cp: missing destination file operand after '" + args[0] + "'");
+            return;
+        }
+        String dest = args[args.length - 1];
+        Path destPath;
+        try {
+            destPath = resolvePath(dest);
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "cp: failed to copy to '" + dest + "': Invalid path");
+            return;
+        }
+        boolean intoDirectory = Files.isDirectory(destPath);
+        if (!intoDirectory && args.length > 2) {
+            StructuredOutput.error("ENOTDIR", "cp: target '" + dest + "' is not a directory");
+            return;
+        }
+
+        // Start all the copies, each one waits for a free buffer, so only a bounded number runs at once
+        String[] sources = Arrays.copyOf(args, args.length - 1);
+        List<CompletableFuture<Void>> copies = new ArrayList<>();
+        try {
+            for (String src : sources) {
+                try {
+                    Path srcPath = resolvePath(src);
+                    if (Files.isDirectory(srcPath)) {
+                        copies.add(CompletableFuture.failedFuture(new IOException("Is a directory")));
+                        continue;
+                    }
+                    Path target = intoDirectory ? destPath.resolve(srcPath.getFileName()) : destPath;
+                    copies.add(asyncIO.copy(srcPath, target));
+                } catch (InvalidPathException e) {
+                    copies.add(CompletableFuture.failedFuture(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            StructuredOutput.error("EINTR", "cp: interrupted");
+            return;
+        }
+
+        // Report the failures in argument order
+        for (int i = 0; i < copies.size(); i++) {
+            try {
+                copies.get(i).join();
+                if (StructuredOutput.enabled()) {
+                    Path srcPath = resolvePath(sources[i]);
+                    copied(srcPath, intoDirectory ? destPath.resolve(srcPath.getFileName()) : destPath, "copied", -1);
+                }
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InvalidPathException)
+                    StructuredOutput.error("EINVAL", "cp: failed to copy '" + sources[i] + "': Invalid path");
+                else if (cause instanceof NoSuchFileException)
+                    StructuredOutput.error("ENOENT", "cp: failed to copy '" + sources[i] + "': No such file or directory");
+                else if ("Is a directory".equals(cause.getMessage()))
+                    StructuredOutput.error("EISDIR", "cp: failed to copy '" + sources[i] + "': Is a directory");
+                else if (cause instanceof FileSystemException
+                        && "are the same file".equals(((FileSystemException) cause).getReason()))
+                    StructuredOutput.error("EINVAL", "cp: '" + sources[i] + "' and '" + dest + "' are the same file");
+                else
+                    StructuredOutput.error("EACCES", "cp: failed to copy '" + sources[i] + "': Permission denied");
+            }
+        }
+    }
+
+    /**
+     * cp -r: copies a directory tree, as one transaction of the journal in atomic mode
+     * (files are copied to temporary files that are renamed into place once the whole tree is copied)
+     */
+    private void copyTree(Path srcPath, Path destPath, Checksums.ManifestWriter manifest) throws IOException {
+        if (!atomic) {
+            copyDirectory(srcPath, destPath, manifest, null);
+            return;
+        }
+        Journal.Transaction transaction = journal().begin("cp");
+        try {
+            copyDirectory(srcPath, destPath, manifest, transaction);
+            transaction.commit();
+        } catch (IOException | RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        }
+        transaction.apply();
+    }
+
+    /**
+     * cp -r --resume: copies a directory tree, keeping a checkpoint next to the destination
+     * (".dest.cp-checkpoint") until the whole tree is copied, the same command run again after an interruption
+     * skips what the checkpoint records as copied
+     */
+    private void resumeTree(Path srcPath, Path destPath) throws IOException {
+        Path sidecar = CopyCheckpoint.sidecar(destPath);
+        try (CopyCheckpoint checkpoint = CopyCheckpoint.open(sidecar, srcPath)) {
+            if (checkpoint.resumedEntries() > 0)
+                StructuredOutput.notice("cp: resuming the copy to '" + fileSystems.display(destPath) + "' ("
+                        + checkpoint.resumedEntries() + " entries already copied)");
+            copyDirectoryResumable(srcPath, destPath, "", checkpoint);
+            checkpoint.complete();
+        }
+    }
 
     /**
      * copyDirectory: copies a directory and its contents to another location recursively
@@ -196,265 +568,2248 @@ public class Terminal {
      * @throws IOException If an I/O error occurs (e.g. permission denied)
      */
     public static void copyDirectory(File source, File destination) throws IOException {
-        if (source.isDirectory()) {
-            // Create the destination directory if it doesn't exist
-            if (!destination.exists()) {
-                destination.mkdir();
-            }
-            // List all files and directories in the source directory
-            String[] files = source.list();
+        copyDirectory(source, destination, null);
+    }
+
+    /**
+     * copyDirectory: copies a directory and its contents to another location recursively,
+     * adding the checksum of every copied file to a manifest
+     *
+     * @param source      The source directory
+     * @param destination The destination directory
+     * @param manifest    The manifest of the copied files (null for no manifest)
+     * @throws IOException If an I/O error occurs (e.g. permission denied)
+     */
+    public static void copyDirectory(File source, File destination, Checksums.ManifestWriter manifest) throws IOException {
+        copyDirectory(source, destination, manifest, null);
+    }
 
-            if (files != null) {
-                for (String file : files) {
-                    File srcFile = new File(source, file);
-                    File destFile = new File(destination, file);
+    /**
+     * copyDirectory: copies a directory and its contents to another location recursively as part of a transaction:
+     * the created directories and the copied files are recorded in the journal, and every file is written
+     * to a temporary file that the transaction renames into place when it is applied
+     *
+     * @param source      The source directory
+     * @param destination The destination directory
+     * @param manifest    The manifest of the copied files (null for no manifest)
+     * @param transaction The transaction recording the copy (null to copy in place)
+     * @throws IOException If an I/O error occurs (e.g. permission denied)
+     */
+    public static void copyDirectory(File source, File destination, Checksums.ManifestWriter manifest,
+                                     Journal.Transaction transaction) throws IOException {
+        copyDirectory(source.toPath(), destination.toPath(), manifest, transaction);
+    }
 
-                    // Recursively copy subdirectories and their contents
-                    copyDirectory(srcFile, destFile);
-                }
-            } else
-                throw new IOException("Failed to list files in directory: " + source);
+    /**
+     * copyDirectory: copies a directory and its contents to another location recursively as part of a transaction,
+     * the source and the destination may belong to different file systems (e.g. a zip archive and the disk),
+     * every file is then streamed through a pooled buffer
+     *
+     * @param source      The source directory
+     * @param destination The destination directory
+     * @param manifest    The manifest of the copied files (null for no manifest)
+     * @param transaction The transaction recording the copy (null to copy in place)
+     * @throws IOException If an I/O error occurs (e.g. permission denied)
+     */
+    public static void copyDirectory(Path source, Path destination, Checksums.ManifestWriter manifest,
+                                     Journal.Transaction transaction) throws IOException {
+        if (Files.isDirectory(source)) {
+            // Create the destination directory if it doesn't exist
+            if (!Files.exists(destination)) {
+                if (transaction != null)
+                    transaction.createDirectory(destination);
+                IoScheduler.operation();
+                Files.createDirectory(destination);
+            }
+            // List the files and subdirectories of the source directory, then copy them recursively
+            for (Path srcFile : listDirectory(source)) {
+                // Names are resolved as strings, a Path of one file system can't resolve a Path of another
+                Path destFile = destination.resolve(srcFile.getFileName().toString());
+                copyDirectory(srcFile, destFile, manifest, transaction);
+            }
         } else {
-            // Copy a file from source to destination
-            Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // Copy a file from source to destination (or to its temporary file), hashing the bytes for the manifest
+            Path target = transaction == null ? destination : transaction.stage(destination);
+            Checksums.Hasher hasher = manifest == null ? null : manifest.newHasher();
+            copied(source, destination, "copied", copyFile(source, target, hasher));
+            if (manifest != null)
+                manifest.add(destination, hasher.finish());
         }
     }
 
     /**
-     * rmdir command: removes a directory
+     * copyDirectoryResumable: copies a directory and its contents to another location recursively,
+     * recording the progress in a checkpoint so an interrupted copy can resume where it stopped.
+     * Entries the checkpoint has are skipped with one lookup, a directory is recorded once its whole tree is copied,
+     * and every copied file gets the modification time of its source: a file copied by an earlier run but missing
+     * from the checkpoint (the last batch, or the file being copied when the copy stopped) is copied again
+     * only if its size or its modification time differ from the source
      *
-     * @param args The array of directory paths to be removed (currently only supports one file)
+     * @param source      The source directory
+     * @param destination The destination directory
+     * @param relative    The path of the source relative to the root of the copy ("" for the root)
+     * @param checkpoint  The checkpoint of the copy
+     * @throws IOException If an I/O error occurs (e.g. permission denied)
      */
-    public void rmdir(String[] args) {
-        if (args.length == 0) {
-            System.out.println("rmdir: missing file operand");
-            return;
-        } else if (args.length > 1) {
-            System.out.println("rmdir: too many arguments (currently only supports one argument)");
+    private static void copyDirectoryResumable(Path source, Path destination, String relative,
+                                               CopyCheckpoint checkpoint) throws IOException {
+        if (!relative.isEmpty() && checkpoint.isDone(relative))
             return;
-        }
-
-        String dir = args[0];
-        if (dir.equals("*")) {
-            File[] contents = currentDirectory.toFile().listFiles();
-            try {
-                for (File directory : contents) {
-                    if (directory.isDirectory()) {
-                        try {
-                            Files.delete(directory.toPath());
-                        } catch (DirectoryNotEmptyException e) {
-                            System.out.println("rmdir: failed to remove '" + directory.getName() + "': Directory not empty");
-                        } catch (IOException e) {
-                            System.out.println("rmdir: failed to remove '" + directory.getName() + "': Permission denied");
-                        }
-                    }
-                }
-            } catch (NullPointerException e) {
-                System.out.println("rmdir: failed to remove: Permission denied");
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        if (attributes.isDirectory()) {
+            if (!Files.isDirectory(destination)) {
+                IoScheduler.operation();
+                Files.createDirectory(destination);
+            }
+            for (Path srcFile : listDirectory(source)) {
+                String name = srcFile.getFileName().toString();
+                copyDirectoryResumable(srcFile, destination.resolve(name),
+                        relative.isEmpty() ? name : relative + "/" + name, checkpoint);
             }
         } else {
+            BasicFileAttributes copied = null;
             try {
-                Path dirPath = currentDirectory.resolve(dir);
-                if (!Files.isDirectory(dirPath))
-                    System.out.println("rmdir: failed to remove '" + dir + "': Not a directory");
-                else
-                    Files.delete(dirPath);
+                copied = Files.readAttributes(destination, BasicFileAttributes.class);
             } catch (NoSuchFileException e) {
-                System.out.println("rmdir: failed to remove '" + dir + "': No such file or directory");
-            } catch (DirectoryNotEmptyException e) {
-                System.out.println("rmdir: failed to remove '" + dir + "': Directory not empty");
-            } catch (IOException e) {
-                System.out.println("rmdir: failed to remove '" + dir + "': Permission denied");
-            } catch (InvalidPathException e) {
-                System.out.println("rmdir: failed to remove '" + dir + "': Invalid Path");
+                // not copied yet
+            }
+            if (copied == null || copied.size() != attributes.size()
+                    || !copied.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+                copyFile(source, destination);
+                Files.setLastModifiedTime(destination, attributes.lastModifiedTime());
+                copied(source, destination, "copied", attributes.size());
+            } else {
+                copied(source, destination, "unchanged", attributes.size());
             }
         }
+        if (!relative.isEmpty())
+            checkpoint.add(relative);
     }
 
     /**
-     * mkdir command: creates a directory
-     * If the directory already exists, it prints an error message
+     * listDirectory: lists the files and subdirectories of a directory
      *
-     * @param args The array of directory paths to be created
+     * @param directory The directory
+     * @return the paths of its entries
+     * @throws IOException If an I/O error occurs (e.g. permission denied)
      */
-    public void mkdir(String[] args) {
-        if (args.length < 1) {
-            System.out.println("mkdir: needs at least one argument");
-            return;
+    private static List<Path> listDirectory(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Trace.DirectoryWalkEvent walk = new Trace.DirectoryWalkEvent();
+        walk.begin();
+        IoScheduler.operation();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            entries.forEach(files::add);
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
         }
-        for (String dir : args) {
-            try {
-                Path DirPath = currentDirectory.resolve(dir);
-                File directory = new File(DirPath.toString());
-                if (directory.exists())
-                    System.out.println("Directory already exists at: \"" + directory.toPath() + "\"");
-                else {
-                    directory.mkdir();
-                }
-            } catch (InvalidPathException e) {
-                System.out.println("mkdir: failed to create directory '" + dir + "': Invalid path");
-            }
+        if (walk.shouldCommit()) {
+            walk.directory = directory.toString();
+            walk.entries = files.size();
+            walk.commit();
         }
+        return files;
     }
 
     /**
-     * pwd
-     * mkdir dir1 dir2
-     * touch f1.txt
-     * touch <current path>/f2.txt [full path]
-     * ls > f1.txt
-     * cat f1.txt
-     * wc f1.txt
-     * rmdir dir1
-     * cp f1.txt f3.txt
-     * cd dir2
-     * touch f3.txt
-     * ls
-     * history
-     */
-    /**
-     * rm command: removes a file
+     * copyFileAtomic: copies a file to a temporary file next to the destination, then renames it over
+     * the destination, so the destination is never seen half-written
      *
-     * @param args The array of file paths to be removed (currently only supports one file)
+     * @param source      The path of the file to copy
+     * @param destination The path of the copy
+     * @return the number of bytes copied
+     * @throws IOException If an I/O error occurs (e.g. no such file, permission denied)
      */
-    public void rm(String[] args) {
-        if (args.length == 1) {
-            String file = args[0];
-            try {
-                Path filePath = currentDirectory.resolve(file);
-                // Check if the path points to a regular file before deleting
-                if (Files.isRegularFile(filePath)) {
-                    Files.delete(filePath);
-                } else {
-                    System.out.println("rm: cannot remove '" + file + "': Not a regular file");
-                }
-            } catch (NoSuchFileException e) {
-                System.out.println("rm: cannot remove '" + file + "': No such file or directory");
-            } catch (IOException e) {
-                System.out.println("rm: cannot remove '" + file + "': Permission denied");
-            } catch (InvalidPathException e) {
-                System.out.println("rm: failed to remove '" + args[0] + "': Invalid path");
-            }
-        } else {
-            System.out.println("rm: Invalid number of arguments (currently only supports one file)");
+    public static long copyFileAtomic(Path source, Path destination) throws IOException {
+        checkNotSameFile(source, destination);
+        Path temporary = destination.resolveSibling("." + destination.getFileName() + ".tmp-"
+                + Long.toString(System.nanoTime(), 36));
+        try {
+            long copied = copyFile(source, temporary);
+            Journal.force(temporary); // on disk before it replaces the destination
+            Files.move(temporary, destination, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return copied;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
         }
     }
 
     /**
-     * cat command: prints the content of a file or concatenates the content of two files and prints it
+     * copyFile: copies a file to another location through a pooled buffer, replacing the destination if it exists
      *
-     * @param args The array of file paths to be printed or concatenated (one or two files)
+     * @param source      The path of the file to copy
+     * @param destination The path of the copy
+     * @return the number of bytes copied
+     * @throws IOException If an I/O error occurs (e.g. no such file, permission denied)
      */
-    public void cat(String[] args) {
-        if (args.length == 1 || args.length == 2) {
-            // Iterate over each argument to process
-            for (String arg : args) {
-                try {
-                    Path filePath = currentDirectory.resolve(arg);
-                    System.out.println(Files.readString(filePath));  // Read and print the content of the file
-                } catch (NoSuchFileException e) {
-                    System.out.println("cat: " + arg + ": No such file or directory");
-                } catch (IOException e) {
-                    System.out.println("cat: " + arg + ": Error reading the file");
-                } catch (InvalidPathException e) {
-                    System.out.println("cat: " + arg + ": Invalid path");
-                }
-            }
-        } else {
-            System.out.println("cat: Invalid number of arguments (currently only supports up to two files)");
-        }
+    public static long copyFile(Path source, Path destination) throws IOException {
+        return copyFile(source, destination, null);
     }
 
-
     /**
-     * history command: displays an enumerated list of past commands
+     * copyFile: copies a file to another location through a pooled buffer, replacing the destination if it exists,
+     * and feeds the copied bytes to a hasher
+     *
+     * @param source      The path of the file to copy
+     * @param destination The path of the copy
+     * @param hasher      The hasher computing the checksum of the copy (null for no checksum)
+     * @return the number of bytes copied
+     * @throws IOException If an I/O error occurs (e.g. no such file, permission denied)
      */
-    public void history() {
-        if (commandHistory.isEmpty()) {
-            System.out.println("No commands in history");
-        } else {
-            for (int i = 0; i < commandHistory.size(); i++) {
-                System.out.println((i + 1) + " " + commandHistory.get(i));
+    public static long copyFile(Path source, Path destination, Checksums.Hasher hasher) throws IOException {
+        Trace.CopyEvent event = new Trace.CopyEvent();
+        event.begin();
+        long copied = 0;
+        IoScheduler.operation();
+        checkNotSameFile(source, destination); // opening it would truncate the source
+        try (SeekableByteChannel in = Files.newByteChannel(source, StandardOpenOption.READ);
+             SeekableByteChannel out = Files.newByteChannel(destination, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    copied += buffer.remaining();
+                    IoScheduler.charge(buffer.remaining());
+                    if (hasher != null) {
+                        hasher.update(buffer);
+                        buffer.rewind();
+                    }
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
             }
         }
+        if (event.shouldCommit()) {
+            event.source = source.toString();
+            event.destination = destination.toString();
+            event.bytes = copied;
+            event.commit();
+        }
+        return copied;
     }
 
     /**
-     * pwd command: prints the current directory
+     * Refuses to copy a file onto itself (the same path, or a link to it)
+     *
+     * @throws FileSystemException If the destination is the source
      */
-    public void pwd() {
-        currentDirectory = currentDirectory.normalize();  // Normalize the path to remove redundant parts
-        System.out.println(currentDirectory);
+    static void checkNotSameFile(Path source, Path destination) throws IOException {
+        if (Files.exists(destination) && Files.isSameFile(source, destination))
+            throw new FileSystemException(source.toString(), destination.toString(), "are the same file");
     }
 
     /**
-     * touch command: creates a file
+     * streamFile: writes the content of a file to an output stream through a pooled buffer
      *
-     * @param args The array of paths of files to create (currently only supports one file)
+     * @param source The path of the file to read
+     * @param output The stream to write the content to
+     * @throws IOException If an I/O error occurs (e.g. no such file, permission denied)
      */
-    public void touch(String[] args) {
-        // Make sure only one argument is passed
-        if (args.length == 0) {
-            System.out.println("touch: missing file operand");
-            return;
-        } else if (args.length > 1) {
-            System.out.println("touch: too many arguments (currently only supports one file)");
-            return;
+    public static void streamFile(Path source, OutputStream output) throws IOException {
+        Trace.ReadEvent event = new Trace.ReadEvent();
+        event.begin();
+        long read = 0;
+        IoScheduler.operation();
+        try (SeekableByteChannel in = Files.newByteChannel(source, StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(output); // not closed, it would close the output
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) >= 0) {
+                    buffer.flip();
+                    IoScheduler.charge(bytesRead);
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                    read += bytesRead;
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
+            }
         }
-        // If one argument is passed
-        String file = args[0];
+        if (event.shouldCommit()) {
+            event.path = source.toString();
+            event.bytes = read;
+            event.commit();
+        }
+    }
+
+    /**
+     * Takes a buffer from the shared pool, turning an interruption into an IOException for the command methods
+     */
+    private static ByteBuffer acquireBuffer() throws IOException {
         try {
-            // Get the path of the file and create it
-            Path filePath = currentDirectory.resolve(file);
-            Files.createFile(filePath);
-        } catch (FileAlreadyExistsException e) {
-            // If the file already exists, do nothing (real touch simulation)
-        } catch (InvalidPathException e) {
-            System.out.println("touch: failed to create file '" + file + "': Invalid path");
-        } catch (IOException e) {
-            System.out.println("touch: cannot create file '" + file + "': Permission denied or invalid path/file name");
+            return BufferPool.shared().acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a buffer");
         }
     }
 
     /**
-     * cd command: changes the current directory, or goes to the home directory if no arguments are passed
+     * rmdir command: removes a directory
      *
-     * @param args The arguments array, which holds the path of the directory to change to (must have 0 or 1 arguments)
+     * @param args The array of directory paths to be removed (currently only supports one file)
      */
-    public void cd(String[] args) {
-        // Make sure 0 or 1 arguments are passed
-        if (args.length > 1) {
-            System.out.println("cd: too many arguments");
+    public void rmdir(String[] args) {
+        if (args.length == 0) {
+            StructuredOutput.error("EUSAGE", "rmdir: missing file operand");
+            return;
+        } else if (args.length > 1) {
+            StructuredOutput.error("EUSAGE", "rmdir: too many arguments (currently only supports one argument)");
             return;
         }
 
-        // If no arguments are passed
+        String dir = args[0];
+        if (dir.equals("*") && atomic) {
+            rmdirAllAtomic();
+        } else if (dir.equals("*")) {
+            try (DirectoryStream<Path> contents = Files.newDirectoryStream(currentDirectory, Files::isDirectory)) {
+                for (Path directory : contents) {
+                    try {
+                        IoScheduler.operation();
+                        Files.delete(directory);
+                        paths.invalidate(directory);
+                        deleted(directory, "directory");
+                    } catch (DirectoryNotEmptyException e) {
+                        StructuredOutput.error("ENOTEMPTY",
+                                "rmdir: failed to remove '" + directory.getFileName() + "': Directory not empty");
+                    } catch (IOException e) {
+                        StructuredOutput.error("EACCES",
+                                "rmdir: failed to remove '" + directory.getFileName() + "': Permission denied");
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                StructuredOutput.error("EACCES", "rmdir: failed to remove: Permission denied");
+            }
+        } else {
+            try {
+                Path dirPath = resolvePath(dir);
+                if (!Files.isDirectory(dirPath))
+                    StructuredOutput.error("ENOTDIR", "rmdir: failed to remove '" + dir + "': Not a directory");
+                else {
+                    IoScheduler.operation();
+                    Files.delete(dirPath);
+                    paths.invalidate(dirPath);
+                    deleted(dirPath, "directory");
+                }
+            } catch (NoSuchFileException e) {
+                StructuredOutput.error("ENOENT", "rmdir: failed to remove '" + dir + "': No such file or directory");
+            } catch (DirectoryNotEmptyException e) {
+                StructuredOutput.error("ENOTEMPTY", "rmdir: failed to remove '" + dir + "': Directory not empty");
+            } catch (IOException e) {
+                StructuredOutput.error("EACCES", "rmdir: failed to remove '" + dir + "': Permission denied");
+            } catch (InvalidPathException e) {
+                StructuredOutput.error("EINVAL", "rmdir: failed to remove '" + dir + "': Invalid Path");
+            }
+        }
+    }
+
+    /**
+     * rmdir * in atomic mode: removes all the empty directories of the current directory as one transaction
+     * (they are moved aside first, and deleted once the transaction is committed)
+     */
+    private void rmdirAllAtomic() {
+        List<Path> emptyDirectories = new ArrayList<>();
+        try (DirectoryStream<Path> contents = Files.newDirectoryStream(currentDirectory)) {
+            for (Path directory : contents) {
+                if (!Files.isDirectory(directory))
+                    continue;
+                try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                    if (children.iterator().hasNext())
+                        StructuredOutput.error("ENOTEMPTY",
+                                "rmdir: failed to remove '" + directory.getFileName() + "': Directory not empty");
+                    else
+                        emptyDirectories.add(directory);
+                } catch (IOException e) {
+                    StructuredOutput.error("EACCES",
+                            "rmdir: failed to remove '" + directory.getFileName() + "': Permission denied");
+                }
+            }
+        } catch (IOException e) {
+            StructuredOutput.error("EACCES", "rmdir: failed to remove: Permission denied");
+            return;
+        }
+        if (emptyDirectories.isEmpty())
+            return;
+        try {
+            Journal.Transaction transaction = journal().begin("rmdir");
+            try {
+                transaction.delete(emptyDirectories);
+                transaction.commit();
+            } catch (IOException | RuntimeException e) {
+                transaction.rollback();
+                throw e;
+            }
+            transaction.apply();
+            for (Path directory : emptyDirectories) {
+                paths.invalidate(directory);
+                deleted(directory, "directory");
+            }
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e),
+                    "rmdir: failed to remove: " + e.getMessage() + " (nothing was removed)");
+        }
+    }
+
+    /**
+     * mkdir command: creates directories
+     * If a directory already exists, it prints an error message (unless -p is given)
+     * With -p, the missing parent directories are created too, each shared parent only once for all the operands.
+     * Long operand lists are created in parallel (level by level, so parents exist before their children).
+     *
+     * @param args The array of directory paths to be created, with the options -p and -@ &lt;file&gt; (operands read from a file)
+     */
+    public void mkdir(String[] args) {
+        OperandList operands = readOperandList("mkdir", args, "-p");
+        if (operands == null)
+            return;
+        if (operands.paths.isEmpty()) {
+            StructuredOutput.error("EUSAGE", "mkdir: needs at least one argument");
+            return;
+        }
+        boolean parents = operands.flags.contains("-p");
+
+        // In atomic mode the directories are created as one transaction
+        Journal.Transaction transaction = null;
+        if (atomic && operands.paths.size() > 1) {
+            try {
+                transaction = journal().begin("mkdir");
+            } catch (IOException e) {
+                StructuredOutput.error(StructuredOutput.codeOf(e), "mkdir: cannot open the journal: " + e.getMessage());
+                return;
+            }
+        }
+
+        StructuredOutput.Failure[] errors = new StructuredOutput.Failure[operands.paths.size()];
+        Journal.Transaction mkdirTransaction = transaction;
+        if (parents)
+            createDirectoriesByLevel(operands, errors, transaction);
+        else
+            forEachOperand(operands.paths.size(), i -> errors[i] = createDirectory(operands, i, mkdirTransaction));
+        boolean failed = false;
+        for (StructuredOutput.Failure error : errors) {
+            if (error != null) {
+                error.report();
+                failed = true;
+            }
+        }
+
+        if (transaction != null) {
+            // All the directories or none: an operand that failed undoes the others
+            if (failed) {
+                transaction.rollback();
+                StructuredOutput.error("EFAIL", "mkdir: no directory created (atomic mode)");
+                return;
+            }
+            try {
+                transaction.commit();
+                transaction.apply();
+            } catch (IOException e) {
+                transaction.rollback();
+                StructuredOutput.error(StructuredOutput.codeOf(e), "mkdir: failed to commit: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Creates one directory without its parents (a single syscall, so it can't race with another mkdir)
+     *
+     * @return the error, or null if the directory was created
+     */
+    private StructuredOutput.Failure createDirectory(OperandList operands, int index, Journal.Transaction transaction) {
+        String dir = operands.names.get(index);
+        Path dirPath = operands.paths.get(index);
+        if (dirPath == null)
+            return new StructuredOutput.Failure("EINVAL", "mkdir: failed to create directory '" + dir + "': Invalid path");
+        try {
+            IoScheduler.operation();
+            if (transaction != null) {
+                // Only a new directory is recorded, a rollback must not remove a directory the user had
+                if (Files.exists(dirPath, LinkOption.NOFOLLOW_LINKS))
+                    throw new FileAlreadyExistsException(dirPath.toString());
+                transaction.createDirectory(dirPath);
+            }
+            Files.createDirectory(dirPath);
+            return null;
+        } catch (FileAlreadyExistsException e) {
+            return new StructuredOutput.Failure("EEXIST", "Directory already exists at: \"" + dirPath + "\"");
+        } catch (IOException e) {
+            return new StructuredOutput.Failure(StructuredOutput.codeOf(e),
+                    "mkdir: cannot create directory '" + dir + "': " + mkdirFailure(e));
+        }
+    }
+
+    /**
+     * @return the reason a directory couldn't be created, as mkdir reports it
+     */
+    private static String mkdirFailure(IOException e) {
+        if (e instanceof NoSuchFileException)
+            return "No such file or directory";
+        if (e instanceof NotDirectoryException)
+            return "Not a directory";
+        if (e instanceof FileSystemException && ((FileSystemException) e).getReason() != null)
+            return ((FileSystemException) e).getReason(); // e.g. "Not a directory", "Read-only file system"
+        return "Permission denied";
+    }
+
+    /**
+     * mkdir -p: creates the operands and all their missing parents.
+     * The directories needed by all the operands are deduplicated and grouped by depth,
+     * then each depth is created in parallel before the next one.
+     */
+    private void createDirectoriesByLevel(OperandList operands, StructuredOutput.Failure[] errors,
+                                          Journal.Transaction transaction) {
+        // A directory that couldn't be created, and everything below it, reports its error (the reason only)
+        Map<Path, StructuredOutput.Failure> failures = new ConcurrentHashMap<>();
+        // Every directory to create (operands and their missing ancestors), deduplicated, by depth
+        TreeMap<Integer, Set<Path>> levels = new TreeMap<>();
+        Set<Path> seen = new HashSet<>();
+        for (int i = 0; i < operands.paths.size(); i++) {
+            Path dirPath = operands.paths.get(i);
+            if (dirPath == null) {
+                errors[i] = new StructuredOutput.Failure("EINVAL",
+                        "mkdir: failed to create directory '" + operands.names.get(i) + "': Invalid path");
+                continue;
+            }
+            Path path = dirPath.toAbsolutePath().normalize();
+            if (!seen.add(path))
+                continue;
+            levels.computeIfAbsent(path.getNameCount(), depth -> new HashSet<>()).add(path);
+            // The walk up stops at the first existing ancestor (or one already walked), as Files.createDirectories
+            for (Path parent = path.getParent(); parent != null && seen.add(parent); parent = parent.getParent()) {
+                if (Files.isDirectory(parent))
+                    break;
+                if (Files.exists(parent)) {
+                    failures.put(parent, new StructuredOutput.Failure("ENOTDIR", "Not a directory"));
+                    break;
+                }
+                levels.computeIfAbsent(parent.getNameCount(), depth -> new HashSet<>()).add(parent);
+            }
+        }
+
+        for (Set<Path> level : levels.values()) {
+            List<Path> paths = new ArrayList<>(level);
+            forEachOperand(paths.size(), i -> {
+                Path path = paths.get(i);
+                if (path.getParent() != null && failures.containsKey(path.getParent())) {
+                    failures.put(path, failures.get(path.getParent()));
+                    return;
+                }
+                try {
+                    IoScheduler.operation();
+                    // In a transaction only the directories that don't exist yet are recorded (and undone)
+                    if (transaction == null) {
+                        Files.createDirectory(path);
+                    } else if (!Files.isDirectory(path)) {
+                        transaction.createDirectory(path);
+                        Files.createDirectory(path);
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    if (!Files.isDirectory(path))
+                        failures.put(path, new StructuredOutput.Failure("EEXIST", "File exists"));
+                } catch (IOException e) {
+                    failures.put(path, new StructuredOutput.Failure(StructuredOutput.codeOf(e), mkdirFailure(e)));
+                }
+            });
+        }
+        for (int i = 0; i < operands.paths.size(); i++) {
+            Path dirPath = operands.paths.get(i);
+            StructuredOutput.Failure failure = dirPath == null ? null : failures.get(dirPath.toAbsolutePath().normalize());
+            if (failure != null)
+                errors[i] = new StructuredOutput.Failure(failure.code,
+                        "mkdir: cannot create directory '" + operands.names.get(i) + "': " + failure.message);
+        }
+    }
+
+    /**
+     * The operands of mkdir/touch: from the arguments and from the files given with -@
+     */
+    private static class OperandList {
+        final List<String> names = new ArrayList<>();
+        final List<Path> paths = new ArrayList<>(); // null for an invalid path
+        final Set<String> flags = new HashSet<>();
+    }
+
+    /**
+     * Reads the operands of mkdir/touch, printing an error message if an option is invalid
+     * or an operand list file can't be read
+     *
+     * @param command      The name of the command
+     * @param args         The arguments of the command
+     * @param allowedFlags The flags the command supports (besides -@ &lt;file&gt;)
+     * @return the operands, or null on error
+     */
+    private OperandList readOperandList(String command, String[] args, String... allowedFlags) {
+        OperandList operands = new OperandList();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-@")) {
+                if (i + 1 == args.length) {
+                    StructuredOutput.error("EUSAGE", command + ": option requires an argument -- '@'");
+                    return null;
+                }
+                String listFile = args[++i];
+                try {
+                    for (String line : Files.readAllLines(resolvePath(listFile))) {
+                        if (!line.isBlank())
+                            names.add(line.strip());
+                    }
+                } catch (IOException | InvalidPathException e) {
+                    StructuredOutput.error("EIO", command + ": cannot read operand list '" + listFile + "'");
+                    return null;
+                }
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                if (!Arrays.asList(allowedFlags).contains(arg)) {
+                    StructuredOutput.error("EUSAGE", command + ": invalid option '" + arg + "'");
+                    return null;
+                }
+                operands.flags.add(arg);
+            } else {
+                names.add(arg);
+            }
+        }
+        for (String name : names) {
+            operands.names.add(name);
+            try {
+                operands.paths.add(resolvePath(name));
+            } catch (InvalidPathException e) {
+                operands.paths.add(null);
+            }
+        }
+        return operands;
+    }
+
+    /**
+     * Runs an action for every operand index, in parallel when there are many operands
+     */
+    private static void forEachOperand(int count, IntConsumer action) {
+        IntStream indexes = IntStream.range(0, count);
+        if (count >= PARALLEL_OPERANDS)
+            indexes = indexes.parallel();
+        indexes.forEach(IoScheduler.bind(action)); // the workers' I/O is paced as the command's
+    }
+
+    /**
+     * pwd
+     * mkdir dir1 dir2
+     * touch f1.txt
+     * touch <current path>/f2.txt [full path]
+     * ls > f1.txt
+     * cat f1.txt
+     * wc f1.txt
+     * rmdir dir1
+     * cp f1.txt f3.txt
+     * cd dir2
+     * touch f3.txt
+     * ls
+     * history
+     */
+    /**
+     * rm command: removes a file
+     *
+     * @param args The array of file paths to be removed (currently only supports one file)
+     */
+    public void rm(String[] args) {
+        if (args.length == 1) {
+            String file = args[0];
+            try {
+                Path filePath = resolvePath(file);
+                // Check if the path points to a regular file before deleting
+                if (Files.isRegularFile(filePath)) {
+                    IoScheduler.operation();
+                    Files.delete(filePath);
+                    deleted(filePath, "file");
+                } else {
+                    StructuredOutput.error("EFAIL", "rm: cannot remove '" + file + "': Not a regular file");
+                }
+            } catch (NoSuchFileException e) {
+                StructuredOutput.error("ENOENT", "rm: cannot remove '" + file + "': No such file or directory");
+            } catch (IOException e) {
+                StructuredOutput.error("EACCES", "rm: cannot remove '" + file + "': Permission denied");
+            } catch (InvalidPathException e) {
+                StructuredOutput.error("EINVAL", "rm: failed to remove '" + args[0] + "': Invalid path");
+            }
+        } else {
+            StructuredOutput.error("EUSAGE", "rm: Invalid number of arguments (currently only supports one file)");
+        }
+    }
+
+    /**
+     * cat command: prints the content of a file or concatenates the content of two files and prints it
+     *
+     * @param args The array of file paths to be printed or concatenated (one or two files),
+     *             or --async [--unordered] followed by any number of files
+     */
+    public void cat(String[] args) {
+        if (args.length > 0 && args[0].equals("--async")) {
+            boolean completionOrder = args.length > 1 && args[1].equals("--unordered");
+            asyncCat(Arrays.copyOfRange(args, completionOrder ? 2 : 1, args.length), completionOrder);
+        } else if (args.length == 1 || args.length == 2) {
+            // Iterate over each argument to process
+            for (String arg : args) {
+                try {
+                    Path filePath = resolvePath(arg);
+                    streamFile(filePath, System.out);  // Read and print the content of the file
+                    System.out.println();
+                } catch (NoSuchFileException e) {
+                    StructuredOutput.error("ENOENT", "cat: " + arg + ": No such file or directory");
+                } catch (IOException e) {
+                    StructuredOutput.error("EIO", "cat: " + arg + ": Error reading the file");
+                } catch (InvalidPathException e) {
+                    StructuredOutput.error("EINVAL", "cat: " + arg + ": Invalid path");
+                }
+            }
+        } else {
+            StructuredOutput.error("EUSAGE", "cat: Invalid number of arguments (currently only supports up to two files)");
+        }
+    }
+
+    /**
+     * cat --async: reads the files at the same time using asynchronous I/O (up to CAT_READ_AHEAD files ahead
+     * of the one printed), and prints each file by chunks as they are read
+     *
+     * @param files           The array of file paths to be printed
+     * @param completionOrder true to print first the files whose first chunk is read first,
+     *                        false to print in argument order
+     */
+    private void asyncCat(String[] files, boolean completionOrder) {
+        if (files.length == 0) {
+            StructuredOutput.error("EUSAGE", "cat: missing file operand");
+            return;
+        }
+        AsyncFileIO.ChunkedRead[] reads = new AsyncFileIO.ChunkedRead[files.length];
+        BlockingQueue<Integer> ready = new LinkedBlockingQueue<>();
+        int started = 0;
+        try {
+            for (int printed = 0; printed < files.length; printed++) {
+                // The files being read wait for this thread to print them, so only a few are started at once
+                for (; started < files.length && started < printed + CAT_READ_AHEAD; started++) {
+                    try {
+                        reads[started] = asyncIO.read(resolvePath(files[started]));
+                    } catch (InvalidPathException e) {
+                        reads[started] = asyncIO.failed(e);
+                    }
+                    final int index = started;
+                    reads[started].ready().whenComplete((chunk, exc) -> ready.add(index));
+                }
+                int index = completionOrder ? ready.take() : printed;
+                printCatResult(files[index], reads[index]);
+                reads[index] = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            StructuredOutput.error("EINTR", "cat: interrupted");
+        } finally {
+            for (AsyncFileIO.ChunkedRead read : reads) {
+                if (read != null)
+                    read.close();
+            }
+        }
+    }
+
+    /**
+     * Prints the content of a file read by asyncCat chunk by chunk, or the error that happened while reading it
+     */
+    private void printCatResult(String file, AsyncFileIO.ChunkedRead read) {
+        WritableByteChannel out = Channels.newChannel(System.out);
+        try (read) {
+            ByteBuffer chunk;
+            while ((chunk = read.next().join()) != null) {
+                while (chunk.hasRemaining())
+                    out.write(chunk);
+            }
+            System.out.println();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchFileException)
+                StructuredOutput.error("ENOENT", "cat: " + file + ": No such file or directory");
+            else if (cause instanceof InvalidPathException)
+                StructuredOutput.error("EINVAL", "cat: " + file + ": Invalid path");
+            else
+                StructuredOutput.error("EIO", "cat: " + file + ": Error reading the file");
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "cat: " + file + ": Error reading the file");
+        }
+    }
+
+    /**
+     * head command: prints the first lines of a file, reading only as much of the file as needed
+     *
+     * @param args The array of arguments: [-n N] followed by the file path (N defaults to 10)
+     */
+    public void head(String[] args) {
+        LineCountArgs parsed = parseLineCountArgs("head", args, false);
+        if (parsed == null)
+            return;
+        String file = parsed.file;
+        try (SeekableByteChannel channel = Files.newByteChannel(resolvePath(file), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(System.out);
+            ByteBuffer buffer = acquireBuffer();
+            long remainingLines = parsed.lines;
+            try {
+                int bytesRead;
+                while (remainingLines > 0 && (bytesRead = channel.read(buffer)) >= 0) {
+                    IoScheduler.charge(bytesRead);
+                    buffer.flip();
+                    int end = 0;
+                    // Stop right after the Nth newline
+                    while (end < bytesRead && remainingLines > 0) {
+                        if (buffer.get(end++) == '\n')
+                            remainingLines--;
+                    }
+                    buffer.limit(end);
+                    while (buffer.hasRemaining())
+                        out.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.shared().release(buffer);
+            }
+            System.out.flush();
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "head: cannot open '" + file + "': No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "head: error reading '" + file + "'");
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "head: " + file + ": Invalid path");
+        }
+    }
+
+    /**
+     * tail command: prints the last lines of a file, reading the file backwards from its end
+     * in fixed-size blocks until enough lines are found, so the size of the file doesn't matter.
+     * With -f, keeps printing the lines appended to the file until Enter is pressed or the input ends (only when the input is a terminal).
+     *
+     * @param args The array of arguments: [-n N] [-f] followed by the file path (N defaults to 10)
+     */
+    public void tail(String[] args) {
+        LineCountArgs parsed = parseLineCountArgs("tail", args, true);
+        if (parsed == null)
+            return;
+        String file = parsed.file;
+        try {
+            Path filePath = resolvePath(file);
+            long position;
+            try (SeekableByteChannel channel = Files.newByteChannel(filePath, StandardOpenOption.READ)) {
+                long size = channel.size();
+                writeRange(channel, findTailStart(channel, size, parsed.lines), size);
+                position = size;
+            }
+            System.out.flush();
+            if (parsed.follow)
+                followFile(filePath, position);
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "tail: cannot open '" + file + "': No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "tail: error reading '" + file + "'");
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "tail: " + file + ": Invalid path");
+        }
+    }
+
+    /**
+     * The arguments of head and tail
+     */
+    private static class LineCountArgs {
+        long lines = 10;
+        boolean follow;
+        String file;
+    }
+
+    /**
+     * Parses the arguments of head and tail, printing an error message if they are invalid
+     *
+     * @return the parsed arguments, or null if they are invalid
+     */
+    private static LineCountArgs parseLineCountArgs(String command, String[] args, boolean allowFollow) {
+        LineCountArgs parsed = new LineCountArgs();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                if (i + 1 == args.length) {
+                    StructuredOutput.error("EUSAGE", command + ": option requires an argument -- 'n'");
+                    return null;
+                }
+                try {
+                    parsed.lines = Long.parseLong(args[++i]);
+                    if (parsed.lines < 0)
+                        throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    StructuredOutput.error("EUSAGE", command + ": invalid number of lines: '" + args[i] + "'");
+                    return null;
+                }
+            } else if (allowFollow && args[i].equals("-f")) {
+                parsed.follow = true;
+            } else if (args[i].startsWith("-")) {
+                StructuredOutput.error("EUSAGE", command + ": invalid argument '" + args[i] + "'");
+                return null;
+            } else if (parsed.file != null) {
+                StructuredOutput.error("EUSAGE", command + ": too many arguments (currently only supports one file)");
+                return null;
+            } else {
+                parsed.file = args[i];
+            }
+        }
+        if (parsed.file == null) {
+            StructuredOutput.error("EUSAGE", command + ": missing file operand");
+            return null;
+        }
+        return parsed;
+    }
+
+    /**
+     * Finds the offset where the last lines of a file start, reading blocks backwards from the end
+     * until enough newlines are found (a newline at the very end of the file doesn't start a new line)
+     *
+     * @param channel The channel of the file
+     * @param size    The size of the file
+     * @param lines   The number of lines wanted
+     * @return the offset of the first byte to print
+     */
+    private static long findTailStart(SeekableByteChannel channel, long size, long lines) throws IOException {
+        if (lines == 0)
+            return size;
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long newlines = 0;
+            long blockEnd = size;
+            while (blockEnd > 0) {
+                long blockStart = Math.max(0, blockEnd - buffer.capacity());
+                buffer.clear().limit((int) (blockEnd - blockStart));
+                while (buffer.hasRemaining()) {
+                    int bytesRead = channel.position(blockStart + buffer.position()).read(buffer);
+                    if (bytesRead < 0)
+                        break;
+                    IoScheduler.charge(bytesRead);
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    long offset = blockStart + i;
+                    if (buffer.get(i) == '\n' && offset != size - 1 && ++newlines == lines)
+                        return offset + 1;
+                }
+                blockEnd = blockStart;
+            }
+            return 0;
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * Writes a range of a file to the standard output through a pooled buffer
+     */
+    private static void writeRange(SeekableByteChannel channel, long from, long to) throws IOException {
+        WritableByteChannel out = Channels.newChannel(System.out);
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long position = from;
+            while (position < to) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+                int bytesRead = channel.position(position).read(buffer);
+                if (bytesRead < 0)
+                    break;
+                IoScheduler.charge(bytesRead);
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                position += bytesRead;
+            }
+        } finally {
+            BufferPool.shared().release(buffer);
+        }
+    }
+
+    /**
+     * tail -f: prints what is appended to a file after the given position, until Enter is pressed.
+     * Changes are noticed through a WatchService on the parent directory (when the file system has one),
+     * and the size of the file is also polled, so appends are never missed. Only the bytes after the last
+     * printed position are read, if the file shrinks it was truncated and it is printed again from its start.
+     *
+     * @param filePath The path of the followed file
+     * @param position The position up to which the file was already printed
+     */
+    private void followFile(Path filePath, long position) throws IOException {
+        if (System.console() == null)
+            return; // input from a file or a pipe: nobody can press Enter, the next lines are commands
+        // Enter (or the end of the input) stops following, the line is read by a thread so the file is watched meanwhile
+        if (pendingLine == null) {
+            CompletableFuture<String> line = new CompletableFuture<>();
+            Thread reader = new Thread(() -> line.complete(input.hasNextLine() ? input.nextLine() : null), "tail-input");
+            reader.setDaemon(true);
+            reader.start();
+            pendingLine = line;
+        }
+        WatchService watcher = null;
+        try {
+            watcher = filePath.getFileSystem().newWatchService();
+            filePath.toAbsolutePath().getParent().register(watcher,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (UnsupportedOperationException | IOException e) {
+            watcher = null; // fall back to polling only
+        }
+        try {
+            while (!pendingLine.isDone()) {
+                if (watcher != null) {
+                    WatchKey key = watcher.poll(500, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(500);
+                }
+                try (SeekableByteChannel channel = Files.newByteChannel(filePath, StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size < position) {
+                        StructuredOutput.notice("tail: " + filePath.getFileName() + ": file truncated");
+                        position = 0;
+                    }
+                    if (size > position) {
+                        writeRange(channel, position, size);
+                        System.out.flush();
+                        position = size;
+                    }
+                } catch (NoSuchFileException e) {
+                    // The file may be recreated (e.g. log rotation), keep waiting for it
+                }
+            }
+            pendingLine = null; // the line that stopped following
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (watcher != null)
+                watcher.close();
+        }
+    }
+
+    /**
+     * sort command: prints the lines of one or more files in sorted order (compared as raw bytes).
+     * Inputs that don't fit in the memory budget are sorted in runs on all cores and merged from temporary files.
+     *
+     * @param args The array of arguments: [-r] [-n] [-u] [-k N] [-S size] followed by the file paths
+     */
+    public void sort(String[] args) {
+        boolean reverse = false, numeric = false, unique = false;
+        int keyField = 0;
+        long memory = SORT_MEMORY;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                switch (arg) {
+                    case "-r" -> reverse = true;
+                    case "-n" -> numeric = true;
+                    case "-u" -> unique = true;
+                    case "-k" -> {
+                        keyField = Integer.parseInt(args[++i]);
+                        if (keyField < 1)
+                            throw new NumberFormatException();
+                    }
+                    case "-S" -> memory = parseSize(args[++i]);
+                    default -> {
+                        if (arg.startsWith("-")) {
+                            StructuredOutput.error("EUSAGE", "sort: invalid argument '" + arg + "'");
+                            return;
+                        }
+                        files.add(resolvePath(arg));
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                StructuredOutput.error("EUSAGE", "sort: option requires an argument -- '" + arg.substring(1) + "'");
+                return;
+            } catch (NumberFormatException e) {
+                StructuredOutput.error("EUSAGE", "sort: invalid value '" + args[i] + "' for " + arg);
+                return;
+            } catch (InvalidPathException e) {
+                StructuredOutput.error("EINVAL", "sort: " + arg + ": Invalid path");
+                return;
+            }
+        }
+        if (files.isEmpty()) {
+            StructuredOutput.error("EUSAGE", "sort: missing file operand");
+            return;
+        }
+
+        Comparator<byte[]> comparator = keyField > 0 || numeric
+                ? ExternalSorter.byKey(Math.max(1, keyField), numeric, !unique)
+                : ExternalSorter.bytewise();
+        if (reverse)
+            comparator = comparator.reversed();
+        try {
+            new ExternalSorter(comparator, memory, unique).sort(files, System.out);
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "sort: cannot read: " + e.getFile() + ": No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e), "sort: failed to sort: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a size such as 512, 64K, 100M or 2G (in bytes)
+     */
+    static long parseSize(String size) {
+        long multiplier = switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K' -> 1024L;
+            case 'M' -> 1024L * 1024;
+            case 'G' -> 1024L * 1024 * 1024;
+            default -> 1;
+        };
+        String number = multiplier == 1 ? size : size.substring(0, size.length() - 1);
+        long value = Long.parseLong(number) * multiplier;
+        if (value <= 0)
+            throw new NumberFormatException();
+        return value;
+    }
+
+    /**
+     * uniq command: prints the lines of a file, dropping the lines equal to the line before them
+     *
+     * @param args The array of arguments: [-c] followed by the file path (-c prefixes each line with its count)
+     */
+    public void uniq(String[] args) {
+        boolean count = args.length > 0 && args[0].equals("-c");
+        if (args.length != (count ? 2 : 1)) {
+            StructuredOutput.error("EUSAGE", args.length == (count ? 1 : 0) ? "uniq: missing file operand"
+                    : "uniq: invalid arguments (currently only supports [-c] and one file)");
+            return;
+        }
+        String file = args[args.length - 1];
+        try (LineReader reader = new LineReader(Files.newByteChannel(resolvePath(file), StandardOpenOption.READ))) {
+            OutputStream out = new BufferedOutputStream(System.out, BufferPool.DEFAULT_BUFFER_SIZE);
+            byte[] previous = reader.readLine();
+            long repeats = 1;
+            while (previous != null) {
+                byte[] line = reader.readLine();
+                if (line != null && Arrays.equals(line, previous)) {
+                    repeats++;
+                    continue;
+                }
+                if (count)
+                    out.write(String.format("%7d ", repeats).getBytes(StandardCharsets.UTF_8));
+                out.write(previous);
+                out.write('\n');
+                previous = line;
+                repeats = 1;
+            }
+            out.flush();
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "uniq: " + file + ": No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "uniq: " + file + ": Error reading the file");
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "uniq: " + file + ": Invalid path");
+        }
+    }
+
+    /**
+     * diff command: prints the differences between two files (lines to delete and to add),
+     * or with -r between two directory trees (entries only in one of them, then the differing files)
+     *
+     * @param args The array of arguments: [-r] [-q] followed by two files, or two directories with -r
+     */
+    public void diff(String[] args) {
+        boolean recursive = false, brief = false;
+        List<String> operands = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-r"))
+                recursive = true;
+            else if (arg.equals("-q"))
+                brief = true;
+            else if (arg.startsWith("-") && arg.length() > 1) {
+                StructuredOutput.error("EUSAGE", "diff: invalid argument '" + arg + "'");
+                return;
+            } else
+                operands.add(arg);
+        }
+        if (operands.size() < 2) {
+            StructuredOutput.error("EUSAGE", operands.isEmpty() ? "diff: missing operand"
+                    : "diff: missing operand after '" + operands.get(0) + "'");
+            return;
+        } else if (operands.size() > 2) {
+            StructuredOutput.error("EUSAGE", "diff: extra operand '" + operands.get(2) + "'");
+            return;
+        }
+        String first = operands.get(0), second = operands.get(1);
+        try {
+            Path firstPath = resolvePath(first), secondPath = resolvePath(second);
+            for (String operand : operands) {
+                if (!Files.exists(operand.equals(first) ? firstPath : secondPath)) {
+                    StructuredOutput.error("ENOENT", "diff: " + operand + ": No such file or directory");
+                    return;
+                }
+            }
+            boolean firstIsDirectory = Files.isDirectory(firstPath), secondIsDirectory = Files.isDirectory(secondPath);
+            Diff diff = new Diff(brief, System.out);
+            if (firstIsDirectory && secondIsDirectory) {
+                if (!recursive)
+                    StructuredOutput.error("EISDIR", "diff: " + first + ": Is a directory (use diff -r to compare directories)");
+                else
+                    diff.compareTrees(firstPath, first, secondPath, second);
+            } else if (firstIsDirectory || secondIsDirectory) {
+                // A file compared with a directory is compared with the file of the same name inside it
+                if (firstIsDirectory) {
+                    first = first + "/" + secondPath.getFileName();
+                    firstPath = firstPath.resolve(secondPath.getFileName().toString());
+                } else {
+                    second = second + "/" + firstPath.getFileName();
+                    secondPath = secondPath.resolve(firstPath.getFileName().toString());
+                }
+                if (!Files.isRegularFile(firstIsDirectory ? firstPath : secondPath))
+                    StructuredOutput.error("ENOENT",
+                            "diff: " + (firstIsDirectory ? first : second) + ": No such file or directory");
+                else
+                    diff.compareFiles(firstPath, first, secondPath, second);
+            } else {
+                diff.compareFiles(firstPath, first, secondPath, second);
+            }
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "diff: " + e.getInput() + ": Invalid path");
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "diff: " + first + ", " + second + ": Error reading the files");
+        }
+    }
+
+    /**
+     * updatedb command: indexes the paths of a directory tree for locate. Only the directories that changed
+     * since the last update are listed again, the others keep their entries from the index
+     *
+     * @param args The directory to index (by default the one indexed last time, or the home directory)
+     */
+    public void updatedb(String[] args) {
+        if (args.length > 1) {
+            StructuredOutput.error("EUSAGE", "updatedb: too many arguments");
+            return;
+        }
+        try {
+            Path root;
+            if (args.length == 1)
+                root = resolvePath(args[0]);
+            else if (Files.exists(LOCATE_DB))
+                root = Path.of(PathIndex.open(LOCATE_DB).root());
+            else
+                root = Path.of(System.getProperty("user.home"));
+            if (root.getFileSystem() != FileSystems.getDefault()) {
+                StructuredOutput.error("EINVAL",
+                        "updatedb: " + fileSystems.display(root) + ": Only directories of the default file system can be indexed");
+                return;
+            }
+            PathIndex.Stats stats = PathIndex.update(LOCATE_DB, root);
+            StructuredOutput.notice("updatedb: " + stats.paths + " paths indexed under " + root.toAbsolutePath().normalize()
+                    + " (" + stats.listed + " directories listed, " + stats.reused + " unchanged)");
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "updatedb: " + e.getInput() + ": Invalid path");
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "updatedb: " + e.getFile() + ": No such file or directory");
+        } catch (NotDirectoryException e) {
+            StructuredOutput.error("ENOTDIR", "updatedb: " + e.getFile() + ": Not a directory");
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e),
+                    "updatedb: Error writing the index " + LOCATE_DB + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * locate command: prints the indexed paths containing a string, from the index of updatedb only
+     * (paths created since the last update aren't found, deleted ones still are)
+     *
+     * @param args The array of arguments: [-i] [-c] [-l N] followed by the string to find
+     */
+    public void locate(String[] args) {
+        boolean ignoreCase = false, count = false;
+        long limit = Long.MAX_VALUE;
+        String query = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                switch (arg) {
+                    case "-i" -> ignoreCase = true;
+                    case "-c" -> count = true;
+                    case "-l" -> {
+                        limit = Long.parseLong(args[++i]);
+                        if (limit < 0)
+                            throw new NumberFormatException();
+                    }
+                    default -> {
+                        if (arg.startsWith("-") || query != null) {
+                            StructuredOutput.error("EUSAGE", "locate: invalid argument '" + arg + "'");
+                            return;
+                        }
+                        query = arg;
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                StructuredOutput.error("EUSAGE", "locate: option requires an argument -- 'l'");
+                return;
+            } catch (NumberFormatException e) {
+                StructuredOutput.error("EUSAGE", "locate: invalid value '" + args[i] + "' for -l");
+                return;
+            }
+        }
+        if (query == null) {
+            StructuredOutput.error("EUSAGE", "locate: no pattern to search for specified");
+            return;
+        }
+        PathIndex index;
+        try {
+            index = PathIndex.open(LOCATE_DB);
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "locate: " + LOCATE_DB + ": No such file (run updatedb first)");
+            return;
+        } catch (IOException e) {
+            StructuredOutput.error("EIO", "locate: " + LOCATE_DB + ": Error reading the index");
+            return;
+        }
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, BufferPool.DEFAULT_BUFFER_SIZE), false,
+                StandardCharsets.UTF_8);
+        boolean print = !count;
+        long found = index.search(query, ignoreCase, limit, path -> {
+            if (print)
+                out.println(path);
+        });
+        out.flush();
+        if (count)
+            System.out.println(found);
+    }
+
+    /**
+     * xargs command: runs a command with the words read from the input as arguments, with -n N words per run
+     * (all of them in one run by default) and -P N runs at the same time. The words are read from a file with -a,
+     * or from the terminal until an empty line
+     *
+     * @param args The array of arguments: [-P N] [-n N] [-a file] followed by the command and its first arguments
+     *             (echo by default)
+     */
+    public void xargs(String[] args) {
+        int parallelism = 1, perJob = Integer.MAX_VALUE;
+        String file = null;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                switch (args[i]) {
+                    case "-P" -> parallelism = positive(args[++i]);
+                    case "-n" -> perJob = positive(args[++i]);
+                    case "-a" -> file = args[++i];
+                    default -> {
+                        StructuredOutput.error("EUSAGE", "xargs: invalid argument '" + args[i] + "'");
+                        return;
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            StructuredOutput.error("EUSAGE", "xargs: option requires an argument -- '" + args[i - 1].substring(1) + "'");
+            return;
+        } catch (NumberFormatException e) {
+            StructuredOutput.error("EUSAGE", "xargs: invalid number '" + args[i] + "' for " + args[i - 1]);
+            return;
+        }
+        String[] base = i < args.length ? Arrays.copyOfRange(args, i, args.length) : new String[]{"echo"};
+        int wordsPerJob = perJob;
+        runJobs("xargs", parallelism, file, lines -> new Iterator<>() {
+            private final ArrayDeque<String> words = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (words.isEmpty() && lines.hasNext())
+                    words.addAll(Arrays.asList(lines.next().trim().split("\\s+")));
+                words.remove("");
+                return !words.isEmpty();
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                List<String> line = new ArrayList<>(Arrays.asList(base));
+                while (line.size() - base.length < wordsPerJob && hasNext())
+                    line.add(words.poll());
+                return line.toArray(new String[0]);
+            }
+        });
+    }
+
+    /**
+     * parallel command: runs one command per line of the input, -j N at the same time (one per processor by default).
+     * Without a command, every line is a command; otherwise {} in its arguments is replaced by the line
+     * (or the words of the line are added at the end). The lines are read from a file with -a,
+     * or from the terminal until an empty line
+     *
+     * @param args The array of arguments: [-j N] [-a file] followed by the command and its arguments, if any
+     */
+    public void parallel(String[] args) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String file = null;
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                switch (args[i]) {
+                    case "-j" -> parallelism = positive(args[++i]);
+                    case "-a" -> file = args[++i];
+                    default -> {
+                        StructuredOutput.error("EUSAGE", "parallel: invalid argument '" + args[i] + "'");
+                        return;
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            StructuredOutput.error("EUSAGE", "parallel: option requires an argument -- '" + args[i - 1].substring(1) + "'");
+            return;
+        } catch (NumberFormatException e) {
+            StructuredOutput.error("EUSAGE", "parallel: invalid number '" + args[i] + "' for " + args[i - 1]);
+            return;
+        }
+        String template = String.join(" ", Arrays.copyOfRange(args, i, args.length));
+        runJobs("parallel", parallelism, file, lines -> new Iterator<>() {
+            private String[] next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && lines.hasNext()) {
+                    String line = lines.next();
+                    String commandLine = template.isEmpty() ? line : template.contains("{}")
+                            ? template.replace("{}", line.trim()) : template + " " + line;
+                    Parser jobParser = new Parser();
+                    if (jobParser.parse(commandLine)) { // empty lines are skipped
+                        List<String> words = new ArrayList<>(List.of(jobParser.getCommandName()));
+                        words.addAll(Arrays.asList(jobParser.getArgs()));
+                        next = words.toArray(new String[0]);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String[] next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                String[] line = next;
+                next = null;
+                return line;
+            }
+        });
+    }
+
+    private static int positive(String value) {
+        int number = Integer.parseInt(value);
+        if (number < 1)
+            throw new NumberFormatException();
+        return number;
+    }
+
+    /**
+     * Runs the jobs of xargs or parallel, built from the lines of a file or of the terminal input
+     * (until an empty line or the end of the input)
+     */
+    private void runJobs(String command, int parallelism, String file,
+                         Function<Iterator<String>, Iterator<String[]>> jobs) {
+        JobScheduler scheduler = new JobScheduler(command, parallelism, this::runCommand, this::resolvePath,
+                commands.keySet());
+        try {
+            int failed;
+            if (file != null) {
+                try (Stream<String> lines = Files.lines(resolvePath(file))) {
+                    failed = scheduler.run(jobs.apply(lines.iterator()));
+                }
+            } else {
+                Iterator<String> lines = new Iterator<>() {
+                    private String line;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (line == null)
+                            line = nextInputLine();
+                        return line != null && !line.isEmpty();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        String next = line;
+                        line = null;
+                        return next;
+                    }
+                };
+                failed = scheduler.run(jobs.apply(lines));
+            }
+            if (failed > 0)
+                StructuredOutput.error("EFAIL", command + ": " + failed + " job(s) failed");
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", command + ": " + file + ": Invalid path");
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", command + ": " + file + ": No such file or directory");
+        } catch (IOException | UncheckedIOException e) {
+            StructuredOutput.error("EIO", command + ": " + (file != null ? file : "input") + ": Error reading the jobs");
+        }
+    }
+
+    /**
+     * sha256sum, md5sum and crc32 commands: print the checksum of files ("checksum  name" lines),
+     * or verify the checksums listed in a manifest with --check
+     *
+     * @param algorithm The checksum algorithm of the command
+     * @param args      The array of arguments: [-r] followed by file/directory paths, or --check followed by a manifest
+     */
+    public void checksum(Checksums.Algorithm algorithm, String[] args) {
+        String command = algorithm.command;
+        if (args.length == 0) {
+            StructuredOutput.error("EUSAGE", command + ": missing file operand");
+            return;
+        }
+        if (args[0].equals("--check")) {
+            if (args.length != 2)
+                StructuredOutput.error("EUSAGE", command + ": --check needs exactly one manifest file");
+            else
+                checkManifest(algorithm, args[1]);
+            return;
+        }
+
+        boolean recursive = args[0].equals("-r");
+        List<Path> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = recursive ? 1 : 0; i < args.length; i++) {
+            String arg = args[i];
+            try {
+                Path path = resolvePath(arg);
+                if (Files.isDirectory(path)) {
+                    if (!recursive) {
+                        StructuredOutput.error("EISDIR", command + ": " + arg + ": Is a directory");
+                        continue;
+                    }
+                    // Every file of the tree, named relative to the operand, in a stable order
+                    try (Stream<Path> tree = Files.walk(path)) {
+                        for (Path file : (Iterable<Path>) tree.filter(Files::isRegularFile).sorted()::iterator) {
+                            files.add(file);
+                            names.add(arg + "/" + path.relativize(file).toString().replace('\\', '/'));
+                        }
+                    }
+                } else {
+                    files.add(path);
+                    names.add(arg);
+                }
+            } catch (InvalidPathException e) {
+                StructuredOutput.error("EINVAL", command + ": " + arg + ": Invalid path");
+            } catch (IOException | UncheckedIOException e) {
+                StructuredOutput.error("EIO", command + ": " + arg + ": Error reading the directory");
+            }
+        }
+        for (Checksums.Result result : Checksums.checksumAll(files, names, algorithm)) {
+            if (result.error instanceof NoSuchFileException)
+                StructuredOutput.error("ENOENT", command + ": " + result.name + ": No such file or directory");
+            else if (result.error != null)
+                StructuredOutput.error("EIO", command + ": " + result.name + ": Error reading the file");
+            else
+                System.out.println(Checksums.manifestLine(result.checksum, result.name));
+        }
+    }
+
+    /**
+     * --check: verifies the files listed in a manifest, printing OK or FAILED for each of them
+     */
+    private void checkManifest(Checksums.Algorithm algorithm, String manifest) {
+        String command = algorithm.command;
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(resolvePath(manifest));
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", command + ": " + manifest + ": No such file or directory");
+            return;
+        } catch (IOException | InvalidPathException e) {
+            StructuredOutput.error("EIO", command + ": " + manifest + ": Error reading the file");
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        int malformed = 0;
+        for (String line : lines) {
+            int separator = line.indexOf("  ");
+            if (separator <= 0) {
+                malformed++;
+                continue;
+            }
+            try {
+                String name = line.substring(separator + 2);
+                files.add(resolvePath(name));
+                names.add(name);
+                expected.add(line.substring(0, separator).toLowerCase());
+            } catch (InvalidPathException e) {
+                malformed++;
+            }
+        }
+
+        List<Checksums.Result> results = Checksums.checksumAll(files, names, algorithm);
+        int failed = 0, unreadable = 0;
+        for (int i = 0; i < results.size(); i++) {
+            Checksums.Result result = results.get(i);
+            if (result.error != null) {
+                unreadable++;
+                System.out.println(result.name + ": FAILED open or read");
+            } else if (!result.checksum.equals(expected.get(i))) {
+                failed++;
+                System.out.println(result.name + ": FAILED");
+            } else {
+                System.out.println(result.name + ": OK");
+            }
+        }
+        if (malformed > 0)
+            StructuredOutput.error("EFAIL", command + ": WARNING: " + malformed + " line(s) are improperly formatted");
+        if (unreadable > 0)
+            StructuredOutput.error("EFAIL", command + ": WARNING: " + unreadable + " listed file(s) could not be read");
+        if (failed > 0)
+            StructuredOutput.error("EFAIL", command + ": WARNING: " + failed + " computed checksum(s) did NOT match");
+    }
+
+    /**
+     * tar command: creates (-c), extracts (-x) or lists (-t) a tar archive.
+     * The archive is gzip-compressed with -z or when its name ends with .gz/.tgz, compression runs in parallel chunks.
+     *
+     * @param args The array of arguments: -c [-z] archive paths..., -x archive [directory] or -t archive
+     */
+    public void tar(String[] args) {
+        if (args.length < 2) {
+            StructuredOutput.error("EUSAGE",
+                    "tar: usage: tar -c [-z] <archive> <paths...> | tar -x <archive> [directory] | tar -t <archive>");
+            return;
+        }
+        String mode = args[0];
+        boolean gzip = mode.equals("-cz") || (args.length > 2 && mode.equals("-c") && args[1].equals("-z"));
+        int archiveIndex = mode.equals("-c") && gzip ? 2 : 1;
+        String archive = args[archiveIndex];
+        gzip |= archive.endsWith(".gz") || archive.endsWith(".tgz");
+        try {
+            Path archivePath = resolvePath(archive);
+            Archiver archiver = new Archiver();
+            switch (mode) {
+                case "-c", "-cz" -> {
+                    List<Path> roots = resolveArchiveOperands("tar", Arrays.copyOfRange(args, archiveIndex + 1, args.length));
+                    if (roots != null)
+                        archiver.createTar(roots, archivePath, gzip);
+                }
+                case "-x" -> {
+                    if (args.length > 3) {
+                        StructuredOutput.error("EUSAGE", "tar: too many arguments");
+                        return;
+                    }
+                    Path target = args.length == 3 ? resolvePath(args[2]) : currentDirectory;
+                    archiver.extractTar(archivePath, target);
+                }
+                case "-t" -> {
+                    for (String name : archiver.listTar(archivePath))
+                        System.out.println(name);
+                }
+                default -> StructuredOutput.error("EUSAGE", "tar: invalid argument '" + mode + "' (supports -c, -cz, -x and -t)");
+            }
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "tar: " + e.getInput() + ": Invalid path");
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "tar: " + e.getFile() + ": No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e), "tar: " + archive + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * zip command: creates a zip archive of files and directory trees (files are compressed in parallel)
+     *
+     * @param args The array of arguments: the archive followed by the paths to archive
+     */
+    public void zip(String[] args) {
+        if (args.length < 2) {
+            StructuredOutput.error("EUSAGE", "zip: usage: zip <archive> <paths...>");
+            return;
+        }
+        try {
+            List<Path> roots = resolveArchiveOperands("zip", Arrays.copyOfRange(args, 1, args.length));
+            if (roots != null)
+                new Archiver().createZip(roots, resolvePath(args[0]));
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "zip: " + e.getInput() + ": Invalid path");
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "zip: " + e.getFile() + ": No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e), "zip: " + args[0] + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * unzip command: extracts a zip archive (files are written on a worker pool)
+     *
+     * @param args The array of arguments: the archive, optionally followed by the directory to extract into
+     */
+    public void unzip(String[] args) {
+        if (args.length == 0 || args.length > 2) {
+            StructuredOutput.error("EUSAGE", "unzip: usage: unzip <archive> [directory]");
+            return;
+        }
+        try {
+            Path target = args.length == 2 ? resolvePath(args[1]) : currentDirectory;
+            new Archiver().extractZip(resolvePath(args[0]), target);
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "unzip: " + e.getInput() + ": Invalid path");
+        } catch (NoSuchFileException e) {
+            StructuredOutput.error("ENOENT", "unzip: " + e.getFile() + ": No such file or directory");
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e), "unzip: " + args[0] + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Resolves the paths to archive, printing an error message for the missing ones
+     *
+     * @return the resolved paths, or null if one of them doesn't exist
+     */
+    private List<Path> resolveArchiveOperands(String command, String[] operands) {
+        if (operands.length == 0) {
+            StructuredOutput.error("EUSAGE", command + ": nothing to archive");
+            return null;
+        }
+        List<Path> roots = new ArrayList<>();
+        for (String operand : operands) {
+            Path path = resolvePath(operand);
+            if (!Files.exists(path)) {
+                StructuredOutput.error("ENOENT", command + ": " + operand + ": No such file or directory");
+                return null;
+            }
+            roots.add(path);
+        }
+        return roots;
+    }
+
+    /**
+     * history command: displays an enumerated list of past commands
+     */
+    public void history() {
+        if (StructuredOutput.enabled()) {
+            for (int i = 0; i < commandHistory.size(); i++)
+                StructuredOutput.record("history").field("index", i + 1).field("line", commandHistory.get(i)).end();
+        } else if (commandHistory.isEmpty()) {
+            System.out.println("No commands in history");
+        } else {
+            for (int i = 0; i < commandHistory.size(); i++) {
+                System.out.println((i + 1) + " " + commandHistory.get(i));
+            }
+        }
+    }
+
+    /**
+     * atomic command: turns the atomic mode on or off, or prints whether it is on.
+     * In atomic mode cp writes files to temporary files renamed into place, and cp -r, rmdir * and mkdir of
+     * several directories run as journaled transactions that are completed or undone on the next start after a crash
+     * (rm and rmdir of one path are already atomic).
+     *
+     * @param args The arguments array: empty, "on" or "off"
+     */
+    public void atomic(String[] args) {
+        if (args.length == 0) {
+            System.out.println("atomic: " + (atomic ? "on" : "off") + " (journal: " + JOURNAL_FILE + ")");
+        } else if (args.length == 1 && args[0].equals("on")) {
+            try {
+                journal();
+                atomic = true;
+            } catch (IOException e) {
+                StructuredOutput.error(StructuredOutput.codeOf(e),
+                        "atomic: cannot open the journal '" + JOURNAL_FILE + "': " + e.getMessage());
+            }
+        } else if (args.length == 1 && args[0].equals("off")) {
+            atomic = false;
+        } else {
+            StructuredOutput.error("EUSAGE", "atomic: invalid argument (supports on and off)");
+        }
+    }
+
+    /**
+     * Gets the journal, opening it (and recovering the operations interrupted by a previous run) on first use
+     *
+     * @return the journal shared by all the terminals
+     * @throws IOException If the journal can't be opened
+     */
+    private static synchronized Journal journal() throws IOException {
+        if (journal == null) {
+            List<String> report = new ArrayList<>();
+            journal = Journal.open(JOURNAL_FILE, report);
+            for (String line : report)
+                System.out.println(line);
+        }
+        return journal;
+    }
+
+    /**
+     * Recovers the operations interrupted by a previous run, if the journal isn't empty
+     */
+    public static void recoverJournal() {
+        try {
+            if (Journal.hasRecords(JOURNAL_FILE))
+                journal();
+        } catch (IOException e) {
+            StructuredOutput.error(StructuredOutput.codeOf(e),
+                    "journal: cannot recover '" + JOURNAL_FILE + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * exit command: closes the journal and exits the terminal
+     */
+    public void exit() {
+        stopRecording();
+        synchronized (Terminal.class) {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {
+                    // the next start recovers from the journal as it is
+                }
+            }
+        }
+        fileSystems.closeAll(); // writes back the changes made inside zip archives
+        System.exit(0);
+    }
+
+    /**
+     * snapshot command: saves the state of the in-memory file system (the one of the current directory,
+     * or the one mounted at /mem) in constant time, files are only copied when they change afterwards.
+     * Without a name, lists the snapshots; -d deletes one.
+     *
+     * @param args The array of arguments: [name] or -d name
+     */
+    public void snapshot(String[] args) {
+        MemFileSystem fileSystem = memFileSystem();
+        if (args.length == 0) {
+            Map<String, Integer> snapshots = fileSystem.listSnapshots();
+            if (snapshots.isEmpty())
+                StructuredOutput.notice("snapshot: no snapshots");
+            snapshots.forEach((name, inodes) -> System.out.println(name + " (" + inodes + " inodes)"));
+        } else if (args.length == 1 && !args[0].startsWith("-")) {
+            fileSystem.snapshot(args[0]);
+        } else if (args.length == 2 && args[0].equals("-d")) {
+            if (!fileSystem.deleteSnapshot(args[1]))
+                StructuredOutput.error("ENOENT", "snapshot: cannot delete '" + args[1] + "': No such snapshot");
+        } else {
+            StructuredOutput.error("EUSAGE", "snapshot: invalid arguments (snapshot [name], snapshot -d name)");
+        }
+    }
+
+    /**
+     * restore command: brings the in-memory file system back to a snapshot in constant time
+     * (the snapshot is kept, so a test script can restore it before every test)
+     *
+     * @param args The array of arguments: the name of the snapshot
+     */
+    public void restore(String[] args) {
+        if (args.length != 1) {
+            StructuredOutput.error("EUSAGE",
+                    args.length == 0 ? "restore: missing snapshot operand" : "restore: too many arguments");
+            return;
+        }
+        MemFileSystem fileSystem = memFileSystem();
+        if (!fileSystem.restore(args[0])) {
+            StructuredOutput.error("ENOENT", "restore: cannot restore '" + args[0] + "': No such snapshot");
+            return;
+        }
+        paths.invalidate(fileSystem);
+        if (currentDirectory.getFileSystem() == fileSystem && !Files.isDirectory(currentDirectory)) {
+            changeDirectory(currentDirectory.getRoot());
+            StructuredOutput.notice("restore: current directory no longer exists, moved to " + fileSystems.display(currentDirectory));
+        }
+    }
+
+    /**
+     * record command: writes the command lines of the session, with the time each one is entered, to a file
+     * that LoadTest replays. record <file> starts a recording, record off stops it.
+     *
+     * @param args The array of arguments: the file, or off
+     */
+    public void record(String[] args) {
+        if (args.length == 0) {
+            System.out.println("record: " + (recording == null ? "off" : "on (" + recording.file() + ")"));
+        } else if (args.length > 1) {
+            StructuredOutput.error("EUSAGE", "record: too many arguments (record <file>, record off)");
+        } else if (args[0].equals("off")) {
+            if (recording == null)
+                StructuredOutput.error("EFAIL", "record: already off");
+            stopRecording();
+        } else if (recording != null) {
+            StructuredOutput.error("EFAIL", "record: already recording to '" + recording.file() + "'");
+        } else {
+            try {
+                recording = SessionRecording.start(resolvePath(args[0]));
+            } catch (InvalidPathException e) {
+                StructuredOutput.error("EINVAL", "record: cannot write '" + args[0] + "': Invalid path");
+            } catch (NoSuchFileException e) {
+                StructuredOutput.error("ENOENT", "record: cannot write '" + args[0] + "': No such file or directory");
+            } catch (IOException e) {
+                StructuredOutput.error("EACCES", "record: cannot write '" + args[0] + "': Permission denied");
+            }
+        }
+    }
+
+    private void stopRecording() {
+        if (recording == null)
+            return;
+        try {
+            recording.close();
+        } catch (IOException ignored) {
+            // the commands were flushed as they were recorded
+        }
+        recording = null;
+    }
+
+    /**
+     * time command: runs a command and reports its wall time, CPU time, allocated bytes
+     * and the bytes read/written by system calls (from /proc/self/io, on Linux)
+     *
+     * @param args The command to run and its arguments
+     */
+    public void time(String[] args) {
+        if (args.length == 0) {
+            StructuredOutput.error("EUSAGE", "time: missing command operand");
+            return;
+        } else if (!isCommandAvailable(args[0])) {
+            StructuredOutput.error("ENOCMD", "time: " + args[0] + ": command not found");
+            return;
+        }
+        Trace.Usage start = Trace.Usage.now();
+        runCommand(args[0], Arrays.copyOfRange(args, 1, args.length));
+        Trace.Usage end = Trace.Usage.now();
+        System.out.flush();
+        for (String line : end.since(start))
+            System.out.println(line);
+    }
+
+    /**
+     * trace command: records the commands (with their directory walks, copies and reads) as JFR events,
+     * along with the JDK profiling events, to open in JMC or convert to a flame graph.
+     * trace on starts the recording, trace off [file] writes it (terminal-<time>.jfr by default).
+     *
+     * @param args The array of arguments: on, or off [file]
+     */
+    public void trace(String[] args) {
+        if (args.length == 0) {
+            System.out.println("trace: " + (Trace.isRecording() ? "on" : "off"));
+            return;
+        }
+        try {
+            if (args[0].equals("on") && args.length == 1) {
+                if (!Trace.start())
+                    StructuredOutput.error("EFAIL", "trace: already on");
+            } else if (args[0].equals("off") && args.length <= 2) {
+                Path file = args.length == 2 ? resolvePath(args[1]) : (currentDirectory.getFileSystem()
+                        == FileSystems.getDefault() ? currentDirectory : Path.of(System.getProperty("user.dir")))
+                        .resolve("terminal-" + System.currentTimeMillis() + ".jfr");
+                if (file.getFileSystem() != FileSystems.getDefault())
+                    StructuredOutput.error("EIO",
+                            "trace: cannot write '" + file + "': the recording must be written to the disk");
+                else if (!Trace.stop(file))
+                    StructuredOutput.error("EFAIL", "trace: already off");
+                else
+                    StructuredOutput.notice("trace: recording written to " + file);
+            } else {
+                StructuredOutput.error("EUSAGE", "trace: invalid arguments (trace on, trace off [file])");
+            }
+        } catch (InvalidPathException e) {
+            StructuredOutput.error("EINVAL", "trace: " + args[1] + ": Invalid path");
+        } catch (IOException | IllegalStateException e) {
+            StructuredOutput.error("EFAIL", "trace: failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * limits command: shows or sets the I/O limits of this session. Without arguments, lists the limits,
+     * the priority of the limited and bulk commands, and the time I/O waited in all the sessions.
+     * limits <command> <bytes/s|-> [ops/s|-] sets the limits of a command (sizes as in sort -S, - for none),
+     * limits <command> off removes them, limits <command> bulk|interactive sets its priority.
+     *
+     * @param args The array of arguments
+     */
+    public void limits(String[] args) {
+        if (args.length == 0) {
+            Map<String, IoScheduler.Limit> limits = ioSession.limits();
+            Set<String> shown = new TreeSet<>(limits.keySet());
+            for (String command : commands.keySet()) {
+                if (ioSession.isBulk(command))
+                    shown.add(command);
+            }
+            System.out.println(String.format("%-10s %-12s %-10s %s", "command", "bytes/s", "ops/s", "priority"));
+            for (String command : shown) {
+                IoScheduler.Limit limit = limits.get(command);
+                System.out.println(String.format("%-10s %-12s %-10s %s", command,
+                        limit == null || limit.bytesPerSecond == 0 ? "-" : Trace.formatBytes(limit.bytesPerSecond),
+                        limit == null || limit.opsPerSecond == 0 ? "-" : Long.toString(limit.opsPerSecond),
+                        ioSession.isBulk(command) ? "bulk" : "interactive"));
+            }
+            IoScheduler scheduler = IoScheduler.shared();
+            System.out.println("interactive commands running: " + scheduler.interactiveCommands()
+                    + ", bulk I/O deferred: " + scheduler.deferredMillis() + " ms, throttled: "
+                    + scheduler.throttledMillis() + " ms");
+            return;
+        }
+        String command = args[0];
+        if (!commands.containsKey(command)) {
+            StructuredOutput.error("ENOCMD", "limits: " + command + ": command not found");
+        } else if (args.length == 2 && args[1].equals("off")) {
+            if (!ioSession.removeLimit(command))
+                StructuredOutput.error("EFAIL", "limits: " + command + " has no limits");
+        } else if (args.length == 2 && (args[1].equals("bulk") || args[1].equals("interactive"))) {
+            ioSession.setBulk(command, args[1].equals("bulk"));
+        } else if (args.length == 2 || args.length == 3) {
+            try {
+                long bytes = args[1].equals("-") ? 0 : parseSize(args[1]);
+                long ops = args.length == 2 || args[2].equals("-") ? 0 : Long.parseLong(args[2]);
+                if (ops < 0)
+                    throw new NumberFormatException();
+                ioSession.setLimit(command, new IoScheduler.Limit(bytes, ops));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                StructuredOutput.error("EUSAGE", "limits: invalid limit for '" + command + "'");
+            }
+        } else {
+            StructuredOutput.error("EUSAGE",
+                    "limits: invalid arguments (limits <command> <bytes/s> [ops/s], off, bulk or interactive)");
+        }
+    }
+
+    /**
+     * Returns the in-memory file system of the current directory, or the mounted one
+     */
+    private MemFileSystem memFileSystem() {
+        if (currentDirectory.getFileSystem() instanceof MemFileSystem)
+            return (MemFileSystem) currentDirectory.getFileSystem();
+        return fileSystems.mounted();
+    }
+
+    /**
+     * pool command: prints the metrics of the buffer pool shared by the I/O commands
+     */
+    public void pool() {
+        for (String line : BufferPool.shared().stats())
+            System.out.println(line);
+    }
+
+    /**
+     * pwd command: prints the current directory
+     */
+    public void pwd() {
+        System.out.println(displayedDirectory);
+    }
+
+    /**
+     * touch command: creates files, or updates the access and modification times of the files that exist
+     * Long operand lists are touched in parallel, and once a parent directory is found missing
+     * the other operands in it fail without another syscall.
+     *
+     * @param args The array of paths of files to touch, with the option -@ &lt;file&gt; (operands read from a file)
+     */
+    public void touch(String[] args) {
+        OperandList operands = readOperandList("touch", args);
+        if (operands == null)
+            return;
+        if (operands.paths.isEmpty()) {
+            StructuredOutput.error("EUSAGE", "touch: missing file operand");
+            return;
+        }
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis()); // the same time for all the files
+        Set<Path> missingParents = ConcurrentHashMap.newKeySet();
+        StructuredOutput.Failure[] errors = new StructuredOutput.Failure[operands.paths.size()];
+        forEachOperand(operands.paths.size(), i -> {
+            String file = operands.names.get(i);
+            Path filePath = operands.paths.get(i);
+            if (filePath == null) {
+                errors[i] = new StructuredOutput.Failure("EINVAL", "touch: failed to create file '" + file + "': Invalid path");
+                return;
+            }
+            Path parent = filePath.toAbsolutePath().normalize().getParent();
+            if (parent != null && missingParents.contains(parent)) {
+                errors[i] = new StructuredOutput.Failure("ENOENT", "touch: cannot touch '" + file + "': No such file or directory");
+                return;
+            }
+            try {
+                // Create the file, or if it already exists update its times (real touch simulation)
+                IoScheduler.operation();
+                Files.createFile(filePath);
+            } catch (FileAlreadyExistsException e) {
+                try {
+                    Files.getFileAttributeView(filePath, BasicFileAttributeView.class).setTimes(now, now, null);
+                } catch (IOException ex) {
+                    errors[i] = new StructuredOutput.Failure("EACCES", "touch: cannot touch '" + file + "': Permission denied");
+                }
+            } catch (NoSuchFileException e) {
+                if (parent != null)
+                    missingParents.add(parent);
+                errors[i] = new StructuredOutput.Failure("ENOENT", "touch: cannot touch '" + file + "': No such file or directory");
+            } catch (IOException e) {
+                errors[i] = new StructuredOutput.Failure(StructuredOutput.codeOf(e),
+                        "touch: cannot create file '" + file + "': Permission denied or invalid path/file name");
+            }
+        });
+        for (StructuredOutput.Failure error : errors) {
+            if (error != null)
+                error.report();
+        }
+    }
+
+    /**
+     * cd command: changes the current directory, to the home directory without arguments,
+     * or back to the previous directory with "-"
+     *
+     * @param args The arguments array, which holds the path of the directory to change to (must have 0 or 1 arguments)
+     */
+    public void cd(String[] args) {
+        // Make sure 0 or 1 arguments are passed
+        if (args.length > 1) {
+            StructuredOutput.error("EUSAGE", "cd: too many arguments");
+            return;
+        }
+
+        // If no arguments are passed
         if (args.length == 0) {
             // Go to the home directory
             Path homeDir = Path.of(System.getProperty("user.home"));
             if (!Files.isDirectory(homeDir)) { // if home directory doesn't exist
                 // print error message
-                System.out.println("cd: cannot change directory to home directory: No such directory");
+                StructuredOutput.error("ENOENT", "cd: cannot change directory to home directory: No such directory");
             } else {
-                currentDirectory = homeDir;
+                changeDirectory(homeDir);
             }
             return;
         }
 
-        // If one argument is passed
-        String dir = args[0];
-        try {
-            Path dirPath = currentDirectory.resolve(dir);
-            if (Files.isDirectory(dirPath)) { // if the directory exists
-                currentDirectory = dirPath; // change the current directory
+        // cd -: back to the previous directory, which is printed
+        if (args[0].equals("-")) {
+            if (previousDirectory == null) {
+                StructuredOutput.error("EFAIL", "cd: no previous directory");
+            } else if (!Files.isDirectory(previousDirectory)) {
+                StructuredOutput.error("ENOENT", "cd: cannot change directory '" + fileSystems.display(previousDirectory)
+                        + "': No such directory");
             } else {
-                // print error message
-                System.out.println("cd: cannot change directory '" + dir + "': No such directory");
+                changeDirectory(previousDirectory);
+                pwd();
+            }
+            return;
+        }
+
+        // If one argument is passed
+        Path dirPath = directoryOperand("cd", args[0]);
+        if (dirPath != null)
+            changeDirectory(dirPath);
+    }
+
+    /**
+     * pushd command: changes the current directory, pushing the one it leaves on the directory stack,
+     * or without arguments exchanges the current directory with the top of the stack,
+     * then prints the current directory and the stack
+     *
+     * @param args The array of arguments (the directory to change to)
+     */
+    public void pushd(String[] args) {
+        if (args.length > 1) {
+            StructuredOutput.error("EUSAGE", "pushd: too many arguments");
+            return;
+        }
+        Path dirPath;
+        if (args.length == 0) {
+            if (directoryStack.isEmpty()) {
+                StructuredOutput.error("EFAIL", "pushd: no other directory");
+                return;
+            }
+            dirPath = directoryStack.peek();
+            if (!Files.isDirectory(dirPath)) {
+                StructuredOutput.error("ENOENT", "pushd: cannot change directory '" + fileSystems.display(dirPath)
+                        + "': No such directory");
+                return;
             }
+            directoryStack.pop();
+        } else {
+            dirPath = directoryOperand("pushd", args[0]);
+            if (dirPath == null)
+                return;
+        }
+        directoryStack.push(currentDirectory);
+        changeDirectory(dirPath);
+        printDirectoryStack();
+    }
+
+    /**
+     * popd command: removes the top of the directory stack and changes the current directory to it,
+     * then prints the current directory and the stack (a directory removed since is dropped from the stack)
+     *
+     * @param args The array of arguments (none)
+     */
+    public void popd(String[] args) {
+        if (args.length > 0) {
+            StructuredOutput.error("EUSAGE", "popd: too many arguments");
+            return;
+        }
+        Path dirPath = directoryStack.poll();
+        if (dirPath == null) {
+            StructuredOutput.error("EFAIL", "popd: directory stack empty");
+        } else if (!Files.isDirectory(dirPath)) {
+            StructuredOutput.error("ENOENT", "popd: cannot change directory '" + fileSystems.display(dirPath)
+                    + "': No such directory");
+        } else {
+            changeDirectory(dirPath);
+            printDirectoryStack();
+        }
+    }
+
+    private void printDirectoryStack() {
+        StringBuilder line = new StringBuilder(displayedDirectory);
+        for (Path directory : directoryStack)
+            line.append(' ').append(fileSystems.display(directory));
+        System.out.println(line);
+    }
+
+    /**
+     * Resolves the directory operand of cd or pushd
+     *
+     * @return the directory, or null (after printing why) if it isn't one
+     */
+    private Path directoryOperand(String command, String dir) {
+        try {
+            Path dirPath = resolvePath(dir);
+            if (Files.isDirectory(dirPath)) // if the directory exists
+                return dirPath;
+            // print error message
+            StructuredOutput.error("ENOENT", command + ": cannot change directory '" + dir + "': No such directory");
         }
-        // If the path is invalid
+        // If the path is invalid (or the file system of a URI can't be opened)
         catch (InvalidPathException e) {
-            System.out.println("cd: failed to change directory '" + dir + "': Invalid path");
+            StructuredOutput.error("EINVAL", command + ": failed to change directory '" + dir + "': "
+                    + (FileSystemRegistry.isUri(dir) ? e.getReason() : "Invalid path"));
+        }
+        return null;
+    }
+
+    /**
+     * Changes the current directory, normalized once here rather than by every prompt,
+     * and remembers the directory it leaves for cd -
+     */
+    private void changeDirectory(Path directory) {
+        previousDirectory = currentDirectory;
+        currentDirectory = directory.normalize();
+        displayedDirectory = fileSystems.display(currentDirectory);
+    }
+
+    /**
+     * Resolves an operand against the current directory (paths under /mem are in the in-memory file system),
+     * or opens the file system of a URI operand ("zip:archive.zip!/dir", "mem:/dir", ...),
+     * which is then reused by the later commands.
+     * Resolved operands are cached per working directory (see PathCache).
+     *
+     * @param operand The path or URI given to a command
+     * @return the path of the operand
+     * @throws InvalidPathException If the operand is not a valid path, or the file system of the URI can't be opened
+     */
+    Path resolvePath(String operand) {
+        try {
+            return paths.resolve(currentDirectory, operand, fileSystems::resolvePath);
+        } catch (InvalidPathException e) {
+            throw e;
+        } catch (IOException | ProviderNotFoundException | FileSystemNotFoundException | IllegalArgumentException e) {
+            throw new InvalidPathException(operand, e.getMessage() == null ? e.toString() : e.getMessage());
         }
     }
 
@@ -465,26 +2820,62 @@ public class Terminal {
         System.out.println("1.help     -> prints the list of supported commands");
         System.out.println("2.echo     -> prints the arguments passed to it");
         System.out.println("3.pwd      -> prints the current working directory");
-        System.out.println("4.cd       -> changes the current working directory");
+        System.out.println("4.cd       -> changes the current working directory (also zip:a.zip!/dir, mem:/dir, file:/dir URIs, cd - goes back)");
         System.out.println("5.ls       -> lists the contents of the current directory");
         System.out.println("6.ls -r    -> lists the contents of the current directory in reverse order");
         System.out.println("7.cp       -> copies a file to a new location");
-        System.out.println("8.cp -r    -> copies a directory to a new location");
+        System.out.println("8.cp -r    -> copies a directory to a new location (--manifest <file> writes its checksums, --resume continues an interrupted copy)");
         System.out.println("9.history  -> prints the last 5 commands");
-        System.out.println("10.mkdir   -> creates a new directory");
+        System.out.println("10.mkdir   -> creates new directories (-p creates parents, -@ <file> reads the list from a file)");
         System.out.println("11.rmdir   -> removes an empty directory");
-        System.out.println("12.touch   -> creates a new file");
+        System.out.println("12.touch   -> creates files or updates their times (-@ <file> reads the list from a file)");
         System.out.println("13.rm      -> removes a file");
         System.out.println("14.cat     -> prints the contents of a file");
-        System.out.println("15.exit    -> exits the terminal");
+        System.out.println("15.cat --async [--unordered] -> prints many files read at once, in argument (or completion) order");
+        System.out.println("16.cp --async -> copies many files at once into a directory");
+        System.out.println("17.head    -> prints the first lines of a file (head -n N)");
+        System.out.println("18.tail    -> prints the last lines of a file (tail -n N), tail -f follows appends");
+        System.out.println("19.sort    -> prints the sorted lines of files (-r, -n, -u, -k N, -S memory)");
+        System.out.println("20.uniq    -> prints a file without repeated adjacent lines (-c counts them)");
+        System.out.println("21.sha256sum/md5sum/crc32 -> prints file checksums (-r for directories, --check <manifest>)");
+        System.out.println("22.tar     -> creates (-c, -cz for gzip), extracts (-x) or lists (-t) tar archives");
+        System.out.println("23.zip     -> creates a zip archive of files and directories");
+        System.out.println("24.unzip   -> extracts a zip archive");
+        System.out.println("25.atomic  -> turns the crash-safe mode of cp, rmdir * and mkdir on/off (atomic on|off)");
+        System.out.println("26.pool    -> prints the buffer pool metrics (hit rate, off-heap memory, leaks in debug mode)");
+        System.out.println("27.snapshot -> saves the in-memory file system (/mem) in constant time (snapshot [name], -d name)");
+        System.out.println("28.restore -> brings the in-memory file system back to a snapshot (restore name)");
+        System.out.println("29.time    -> runs a command and reports its wall/CPU time, allocations and I/O (time <command>)");
+        System.out.println("30.trace   -> records JFR events of the commands (trace on, trace off [file])");
+        System.out.println("31.limits  -> shows or sets the I/O limits and priority of commands (limits cp 50M 1000)");
+        System.out.println("32.diff    -> prints the differences between two files, or two directories with -r (-q only says which files differ)");
+        System.out.println("33.updatedb -> indexes the paths of a directory tree for locate, listing only changed directories");
+        System.out.println("34.locate  -> prints the indexed paths containing a string (-i, -c counts, -l N limits)");
+        System.out.println("35.xargs   -> runs a command with words of the input as arguments (-n N per run, -P N runs at once, -a file)");
+        System.out.println("36.parallel -> runs one command per input line at once (-j N, -a file, {} is replaced by the line)");
+        System.out.println("37.pushd   -> changes the current directory, pushing the previous one on the directory stack");
+        System.out.println("38.popd    -> changes the current directory to the top of the directory stack, removing it");
+        System.out.println("39.record  -> records the commands of the session with their timing, for LoadTest (record <file>, record off)");
+        System.out.println("40.exit    -> exits the terminal");
     }
 
     /**
      * Entry point of the program
      *
-     * @param args The arguments passed to the program (not used)
+     * @param args The arguments passed to the program: --output=ndjson prints JSON records instead of text
+     *             (see StructuredOutput), --output=text is the default
      */
     public static void main(String[] args) {
+        for (String arg : args) {
+            if (arg.equals("--output=ndjson")) {
+                StructuredOutput.install();
+            } else if (!arg.equals("--output=text")) {
+                StructuredOutput.error("EUSAGE",
+                        "terminal: invalid argument '" + arg + "' (supports --output=text and --output=ndjson)");
+                return;
+            }
+        }
+        recoverJournal();
         Terminal terminal = new Terminal();
         terminal.runInterface();
     }
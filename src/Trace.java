@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+/**
+ * Trace class: the profiling support of the terminal.
+ * The JFR events below are emitted for every command and for the directory walks, copies and reads inside them.
+ * They cost nothing while no recording runs, and "trace on" starts one (with the JDK "profile" settings,
+ * so execution samples are recorded too) that "trace off" writes to a .jfr file for JMC or a flame graph tool.
+ * Usage takes the resource counters "time" reports the difference of.
+ */
+public class Trace {
+    private static Recording recording; // guarded by Trace.class
+
+    @Name("terminal.Command")
+    @Label("Command")
+    @Category("Terminal")
+    @Description("One command run by the terminal")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Arguments")
+        String arguments;
+    }
+
+    @Name("terminal.DirectoryWalk")
+    @Label("Directory Walk")
+    @Category({"Terminal", "I/O"})
+    @Description("The listing of one directory")
+    static class DirectoryWalkEvent extends Event {
+        @Label("Directory")
+        String directory;
+
+        @Label("Entries")
+        long entries;
+    }
+
+    @Name("terminal.Copy")
+    @Label("File Copy")
+    @Category({"Terminal", "I/O"})
+    @Description("The copy of one file")
+    static class CopyEvent extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("terminal.Read")
+    @Label("File Read")
+    @Category({"Terminal", "I/O"})
+    @Description("The read of one file")
+    static class ReadEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Starts recording the events of the terminal.
+     *
+     * @return false if a recording is already running
+     * @throws IOException If the recording can't be started
+     */
+    public static synchronized boolean start() throws IOException {
+        if (recording != null)
+            return false;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException e) {
+            throw new IOException("invalid JFR configuration", e);
+        }
+        recording.setName("terminal");
+        for (Class<? extends Event> event : List.of(CommandEvent.class, DirectoryWalkEvent.class, CopyEvent.class,
+                ReadEvent.class))
+            recording.enable(event).withStackTrace().withoutThreshold();
+        recording.start();
+        return true;
+    }
+
+    /**
+     * Stops the recording and writes it to a file.
+     *
+     * @param destination The .jfr file
+     * @return false if no recording was running
+     * @throws IOException If the recording can't be written
+     */
+    public static synchronized boolean stop(Path destination) throws IOException {
+        if (recording == null)
+            return false;
+        try {
+            recording.stop();
+            recording.dump(destination);
+        } finally {
+            recording.close();
+            recording = null;
+        }
+        return true;
+    }
+
+    public static synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Usage class: the resource counters of the process at one moment
+     */
+    public static class Usage {
+        final long wallNanos;
+        final long threadCpuNanos; // the calling thread
+        final long processCpuNanos; // all threads, -1 if unknown
+        final long allocatedBytes; // the calling thread, -1 if unknown
+        final Map<String, Long> io; // /proc/self/io, empty if unknown
+
+        private Usage(long wallNanos, long threadCpuNanos, long processCpuNanos, long allocatedBytes,
+                      Map<String, Long> io) {
+            this.wallNanos = wallNanos;
+            this.threadCpuNanos = threadCpuNanos;
+            this.processCpuNanos = processCpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.io = io;
+        }
+
+        /**
+         * Reads the counters now.
+         */
+        public static Usage now() {
+            long wall = System.nanoTime(); // first in both samples, so the counters fall within the wall time
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long threadCpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+            // Only the calling thread: a sum over the live threads loses the allocations of the threads that ended
+            long allocated = -1;
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean extended = (com.sun.management.ThreadMXBean) threads;
+                if (extended.isThreadAllocatedMemorySupported() && extended.isThreadAllocatedMemoryEnabled())
+                    allocated = extended.getCurrentThreadAllocatedBytes();
+            }
+            long processCpu = -1;
+            if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean)
+                processCpu = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                        .getProcessCpuTime();
+            return new Usage(wall, threadCpu, processCpu, allocated, readProcIo());
+        }
+
+        /**
+         * Reads the I/O counters of the process kept by Linux: rchar/wchar count the bytes of the read/write
+         * system calls (cache hits included), syscr/syscw the calls, read_bytes/write_bytes the storage traffic.
+         */
+        private static Map<String, Long> readProcIo() {
+            Path io = Path.of("/proc/self/io");
+            Map<String, Long> counters = new HashMap<>();
+            try {
+                for (String line : Files.readAllLines(io)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0)
+                        counters.put(line.substring(0, colon), Long.parseLong(line.substring(colon + 1).trim()));
+                }
+            } catch (IOException | NumberFormatException | SecurityException e) {
+                counters.clear(); // not Linux, or not readable
+            }
+            return counters;
+        }
+
+        /**
+         * Formats the difference from an earlier usage, one line per counter.
+         */
+        public List<String> since(Usage start) {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("real      %.3fs", (wallNanos - start.wallNanos) / 1e9));
+            if (threadCpuNanos >= 0)
+                lines.add(String.format("cpu       %.3fs (terminal thread)", (threadCpuNanos - start.threadCpuNanos) / 1e9));
+            if (processCpuNanos >= 0) {
+                // The process time is counted in clock ticks, so it can read less than the thread's own time
+                long processCpu = processCpuNanos - start.processCpuNanos;
+                if (threadCpuNanos >= 0)
+                    processCpu = Math.max(processCpu, threadCpuNanos - start.threadCpuNanos);
+                lines.add(String.format("cpu all   %.3fs (all threads)", processCpu / 1e9));
+            }
+            if (allocatedBytes >= 0)
+                lines.add("allocated " + formatBytes(allocatedBytes - start.allocatedBytes) + " (terminal thread)");
+            if (!io.isEmpty() && !start.io.isEmpty()) {
+                lines.add("read      " + formatBytes(delta(start, "rchar")) + " in " + delta(start, "syscr")
+                        + " syscalls (" + formatBytes(delta(start, "read_bytes")) + " from storage)");
+                lines.add("written   " + formatBytes(delta(start, "wchar")) + " in " + delta(start, "syscw")
+                        + " syscalls (" + formatBytes(delta(start, "write_bytes")) + " to storage)");
+            }
+            return lines;
+        }
+
+        private long delta(Usage start, String counter) {
+            return io.getOrDefault(counter, 0L) - start.io.getOrDefault(counter, 0L);
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KiB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024)
+            return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+        return String.format("%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+    }
+}